@@ -17,6 +17,7 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -82,9 +83,25 @@ public class ZAliasedName implements java.io.Serializable {
 			column = st.nextToken();
 			break;
 		}
-		schema = postProcess(schema);
-		table = postProcess(table);
-		column = postProcess(column);
+		schema = ZUtils.intern(postProcess(schema));
+		table = ZUtils.intern(postProcess(table));
+		column = ZUtils.intern(postProcess(column));
+		if (isPlainName(fullname)) {
+			this.strform = fullname.intern();
+		}
+	}
+
+	/**
+	 * @return true if s is a [[schema.]table.]column name (not an expression).
+	 */
+	private static boolean isPlainName(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '(' || c == ' ' || c == '\'') {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	private String postProcess(final String val) {
@@ -103,12 +120,18 @@ public class ZAliasedName implements java.io.Serializable {
 		return ret.trim();
 	}
 
+	/**
+	 * Write the SQL text of this name (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
 	public String toString() {
-		if (alias == null) {
-			return strform;
-		} else {
-			return strform + " " + alias;
-		}
+		return ZSqlWriter.format(this);
 	}
 
 	/**
@@ -132,6 +155,10 @@ public class ZAliasedName implements java.io.Serializable {
 		return column;
 	}
 
+	String getStrform() {
+		return strform;
+	}
+
 	protected void setStrform (final String strform) {
 		this.strform = strform;
 	}
@@ -161,6 +188,6 @@ public class ZAliasedName implements java.io.Serializable {
 	 *            the alias associated to the current name.
 	 */
 	public void setAlias(String a) {
-		this.alias = a;
+		this.alias = ZUtils.intern(a);
 	}
 }
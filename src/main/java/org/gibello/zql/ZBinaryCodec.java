@@ -0,0 +1,626 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZBinaryCodec: a compact, versioned binary encoding of SQL statements and expressions.<br>
+ * Compared to java.io serialization, the encoding does not depend on class layouts, uses no reflection, writes
+ * integers as varints and writes each distinct string (identifier, operator, literal) only once: later occurrences
+ * are references to a string table built on the fly.<br>
+ * Custom function calls keep their function: it is resolved again by name when decoding, in the function registry of
+ * the codec.<br>
+ * A ZBinaryCodec keeps reusable buffers, so it is not thread-safe: use one instance per thread.
+ */
+public class ZBinaryCodec {
+
+	/**
+	 * The format version, written in every encoded buffer.
+	 */
+	public static final int VERSION = 2;
+
+	private static final int MAGIC = 0x5A; // 'Z'
+
+	private static final int T_NULL = 0;
+	private static final int T_CONSTANT = 1;
+	private static final int T_EXPRESSION = 2;
+	private static final int T_QUERY = 3;
+	private static final int T_INSERT = 4;
+	private static final int T_UPDATE = 5;
+	private static final int T_DELETE = 6;
+	private static final int T_LOCK = 7;
+	private static final int T_TRANSACT = 8;
+
+	// String references: 0 = null, 1 = new string (follows), n >= 2: string number n - 2
+	private static final int S_NULL = 0;
+	private static final int S_NEW = 1;
+
+	private static final ZConstant.Type[] TYPES = ZConstant.Type.values();
+
+	private byte[] buf = new byte[256];
+	private int pos;
+	private int limit;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+	private final List<String> table = new ArrayList<String>();
+	private char[] chars = new char[64];
+	private ZFunctionRegistry functions = ZFunctionRegistry.getDefault();
+
+	/**
+	 * Use a function registry to resolve the custom functions of decoded expressions.
+	 *
+	 * @param functions
+	 *            The registry, or null to use the default registry.
+	 */
+	public void setFunctionRegistry(ZFunctionRegistry functions) {
+		this.functions = (functions == null ? ZFunctionRegistry.getDefault() : functions);
+	}
+
+	/**
+	 * @return The function registry used to decode expressions.
+	 */
+	public ZFunctionRegistry getFunctionRegistry() {
+		return functions;
+	}
+
+	/**
+	 * Encode an SQL statement.
+	 *
+	 * @param st
+	 *            A statement (ZQuery, ZInsert, ZUpdate, ZDelete, ZLockTable or ZTransactStmt)
+	 * @return The encoded statement.
+	 */
+	public byte[] encodeStatement(ZStatement st) {
+		startEncoding();
+		writeStatement(st);
+		return Arrays.copyOf(buf, pos);
+	}
+
+	/**
+	 * Encode an SQL expression.
+	 *
+	 * @param e
+	 *            An expression (ZExpression, ZConstant or ZQuery)
+	 * @return The encoded expression.
+	 */
+	public byte[] encodeExpression(ZExp e) {
+		startEncoding();
+		writeExp(e);
+		return Arrays.copyOf(buf, pos);
+	}
+
+	/**
+	 * Decode a statement encoded by encodeStatement().
+	 */
+	public ZStatement decodeStatement(byte[] b) throws IOException {
+		return decodeStatement(b, 0, b.length);
+	}
+
+	/**
+	 * Decode a statement encoded by encodeStatement().
+	 */
+	public ZStatement decodeStatement(byte[] b, int offset, int length) throws IOException {
+		byte[] out = buf;
+		try {
+			startDecoding(b, offset, length);
+			ZStatement st = readStatement();
+			checkEnd();
+			return st;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw corrupted("truncated data");
+		} finally {
+			buf = out;
+		}
+	}
+
+	/**
+	 * Decode an expression encoded by encodeExpression().
+	 */
+	public ZExp decodeExpression(byte[] b) throws IOException {
+		return decodeExpression(b, 0, b.length);
+	}
+
+	/**
+	 * Decode an expression encoded by encodeExpression().
+	 */
+	public ZExp decodeExpression(byte[] b, int offset, int length) throws IOException {
+		byte[] out = buf;
+		try {
+			startDecoding(b, offset, length);
+			ZExp e = readExp();
+			checkEnd();
+			return e;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw corrupted("truncated data");
+		} finally {
+			buf = out;
+		}
+	}
+
+	// ---------------------------------------------------------------- Encoding
+
+	private void startEncoding() {
+		pos = 0;
+		strings.clear();
+		writeByte(MAGIC);
+		writeVarint(VERSION);
+	}
+
+	private void writeStatement(ZStatement st) {
+		if (st == null) {
+			writeByte(T_NULL);
+		} else if (st instanceof ZQuery) {
+			writeQuery((ZQuery) st);
+		} else if (st instanceof ZInsert) {
+			ZInsert ins = (ZInsert) st;
+			writeByte(T_INSERT);
+			writeString(ins.getTable());
+			writeStrings(ins.getColumns());
+			writeExp(ins.getValueSpec());
+		} else if (st instanceof ZUpdate) {
+			writeUpdate((ZUpdate) st);
+		} else if (st instanceof ZDelete) {
+			ZDelete del = (ZDelete) st;
+			writeByte(T_DELETE);
+			writeString(del.getTable());
+			writeExp(del.getWhere());
+		} else if (st instanceof ZLockTable) {
+			ZLockTable lck = (ZLockTable) st;
+			writeByte(T_LOCK);
+			writeVarint(lck.isNowait() ? 1 : 0);
+			writeString(lck.getLockMode());
+			writeStrings(lck.getTables());
+		} else if (st instanceof ZTransactStmt) {
+			ZTransactStmt t = (ZTransactStmt) st;
+			writeByte(T_TRANSACT);
+			writeVarint(t.isReadOnly() ? 1 : 0);
+			writeString(t.getStatement());
+			writeString(t.getComment());
+		} else {
+			throw new IllegalArgumentException("ZBinaryCodec: unsupported statement " + st.getClass().getName());
+		}
+	}
+
+	private void writeUpdate(ZUpdate u) {
+		writeByte(T_UPDATE);
+		writeString(u.getTable());
+		writeString(u.getAlias());
+		int n = u.getColumnUpdateCount();
+		boolean ordered = n > 0 && u.getColumnUpdateName(1) != null;
+		writeVarint(u.getSet() == null ? 0 : (n << 2) | (ordered ? 2 : 0) | 1);
+		if (u.getSet() != null) {
+			if (ordered) {
+				for (int i = 1; i <= n; i++) {
+					writeString(u.getColumnUpdateName(i));
+					writeExp(u.getColumnUpdate(i));
+				}
+			} else {
+				for (Map.Entry<String, ZExp> e : u.getSet().entrySet()) {
+					writeString(e.getKey());
+					writeExp(e.getValue());
+				}
+			}
+		}
+		writeExp(u.getWhere());
+	}
+
+	private void writeQuery(ZQuery q) {
+		writeByte(T_QUERY);
+		int flags = (q.isDistinct() ? 1 : 0) | (q.isForUpdate() ? 2 : 0);
+		writeVarint(flags);
+
+		List<ZSelectItem> select = q.getSelect();
+		writeVarint(select == null ? 0 : select.size() + 1);
+		if (select != null) {
+			for (ZSelectItem it : select) {
+				writeString(it.getStrform());
+				writeString(it.getAlias());
+				writeString(it.getAggregate());
+				writeExp(it.isExpression() ? it.getExpression() : null);
+			}
+		}
+
+		List<ZFromItem> from = q.getFrom();
+		writeVarint(from == null ? 0 : from.size() + 1);
+		if (from != null) {
+			for (ZFromItem it : from) {
+				writeString(it.getStrform());
+				writeString(it.getAlias());
+			}
+		}
+
+		writeExp(q.getWhere());
+
+		ZGroupBy g = q.getGroupBy();
+		if (g == null) {
+			writeVarint(0);
+		} else {
+			writeExps(g.getGroupBy());
+			writeExp(g.getHaving());
+		}
+
+		writeExp(q.getSet());
+
+		List<ZOrderBy> order = q.getOrderBy();
+		writeVarint(order == null ? 0 : order.size() + 1);
+		if (order != null) {
+			for (ZOrderBy o : order) {
+				writeVarint(o.getAscOrder() ? 1 : 0);
+				writeExp(o.getExpression());
+			}
+		}
+	}
+
+	private void writeExp(ZExp e) {
+		if (e == null) {
+			writeByte(T_NULL);
+		} else if (e instanceof ZConstant) {
+			ZConstant c = (ZConstant) e;
+			writeByte(T_CONSTANT);
+			writeVarint(c.getType().ordinal());
+			writeString(c.getValue());
+		} else if (e instanceof ZExpression) {
+			ZExpression x = (ZExpression) e;
+			writeByte(T_EXPRESSION);
+			writeString(x.getOperator());
+			// Function: name (null if none), number of parameters, aggregate flag
+			ZFunction f = x.getFunction();
+			writeString(f == null ? null : f.getName());
+			if (f != null) {
+				writeVarint(f.getArity());
+				writeByte(f.isAggregate() ? 1 : 0);
+			}
+			writeExps(x.getOperands());
+		} else if (e instanceof ZQuery) {
+			writeQuery((ZQuery) e);
+		} else {
+			throw new IllegalArgumentException("ZBinaryCodec: unsupported expression " + e.getClass().getName());
+		}
+	}
+
+	// Lists are written as size + 1 (0 = null list)
+	private void writeExps(List<ZExp> l) {
+		writeVarint(l == null ? 0 : l.size() + 1);
+		if (l != null) {
+			for (int i = 0; i < l.size(); i++) {
+				writeExp(l.get(i));
+			}
+		}
+	}
+
+	private void writeStrings(List<String> l) {
+		writeVarint(l == null ? 0 : l.size() + 1);
+		if (l != null) {
+			for (int i = 0; i < l.size(); i++) {
+				writeString(l.get(i));
+			}
+		}
+	}
+
+	private void writeString(String s) {
+		if (s == null) {
+			writeVarint(S_NULL);
+			return;
+		}
+		Integer ref = strings.get(s);
+		if (ref != null) {
+			writeVarint(ref.intValue() + 2);
+			return;
+		}
+		strings.put(s, Integer.valueOf(strings.size()));
+		writeVarint(S_NEW);
+
+		int len = s.length();
+		writeVarint(len);
+		ensure(len * 3);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				// Surrogates are encoded one by one: the decoder restores the same chars
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void writeVarint(int v) {
+		ensure(5);
+		while ((v & ~0x7F) != 0) {
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+	}
+
+	private void writeByte(int b) {
+		ensure(1);
+		buf[pos++] = (byte) b;
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+		}
+	}
+
+	// ---------------------------------------------------------------- Decoding
+
+	private void startDecoding(byte[] b, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > b.length) {
+			throw new IndexOutOfBoundsException("ZBinaryCodec: bad offset/length");
+		}
+		buf = b;
+		pos = offset;
+		limit = offset + length;
+		table.clear();
+		if (length < 2 || readByte() != MAGIC) {
+			throw corrupted("not an encoded statement");
+		}
+		int v = readVarint();
+		if (v != VERSION) {
+			throw corrupted("unsupported version " + v);
+		}
+	}
+
+	private void checkEnd() throws IOException {
+		if (pos != limit) {
+			throw corrupted("trailing data");
+		}
+	}
+
+	private ZStatement readStatement() throws IOException {
+		int tag = readByte();
+		switch (tag) {
+		case T_NULL:
+			return null;
+		case T_QUERY:
+			return readQuery();
+		case T_INSERT:
+			ZInsert ins = new ZInsert(readString());
+			ins.addColumns(readStrings());
+			ins.addValueSpec(readExp());
+			return ins;
+		case T_UPDATE:
+			return readUpdate();
+		case T_DELETE:
+			ZDelete del = new ZDelete(readString());
+			del.addWhere(readExp());
+			return del;
+		case T_LOCK:
+			ZLockTable lck = new ZLockTable();
+			lck.setNowait(readVarint() != 0);
+			lck.setLockMode(readString());
+			lck.addTables(readStrings());
+			return lck;
+		case T_TRANSACT:
+			boolean rdonly = readVarint() != 0;
+			ZTransactStmt t = new ZTransactStmt(readString());
+			t.setReadOnly(rdonly);
+			t.setComment(readString());
+			return t;
+		default:
+			throw corrupted("bad statement tag " + tag);
+		}
+	}
+
+	private ZUpdate readUpdate() throws IOException {
+		ZUpdate u = new ZUpdate(readString());
+		u.setAlias(readString());
+		int h = readVarint();
+		if ((h & 1) != 0) {
+			int n = h >>> 2;
+			if ((h & 2) != 0) {
+				for (int i = 0; i < n; i++) {
+					String col = readString();
+					u.addColumnUpdate(col, readExp());
+				}
+			} else {
+				Map<String, ZExp> set = new HashMap<String, ZExp>();
+				for (int i = 0; i < n; i++) {
+					String col = readString();
+					set.put(col, readExp());
+				}
+				u.addSet(set);
+			}
+		}
+		u.addWhere(readExp());
+		return u;
+	}
+
+	private ZQuery readQuery() throws IOException {
+		ZQuery q = new ZQuery();
+		int flags = readVarint();
+		q.setDistinct((flags & 1) != 0);
+		q.setForUpdate((flags & 2) != 0);
+
+		int n = readVarint();
+		if (n > 0) {
+			List<ZSelectItem> select = new ArrayList<ZSelectItem>(n - 1);
+			for (int i = 1; i < n; i++) {
+				ZSelectItem it = new ZSelectItem(readString());
+				it.setAlias(readString());
+				it.setAggregate(readString());
+				it.initExpression(readExp());
+				select.add(it);
+			}
+			q.addSelect(select);
+		}
+
+		n = readVarint();
+		if (n > 0) {
+			List<ZFromItem> from = new ArrayList<ZFromItem>(n - 1);
+			for (int i = 1; i < n; i++) {
+				ZFromItem it = new ZFromItem(readString());
+				it.setAlias(readString());
+				from.add(it);
+			}
+			q.addFrom(from);
+		}
+
+		q.addWhere(readExp());
+
+		List<ZExp> groupby = readExps();
+		if (groupby != null) {
+			ZGroupBy g = new ZGroupBy(groupby);
+			g.setHaving(readExp());
+			q.addGroupBy(g);
+		}
+
+		ZExp set = readExp();
+		if (set != null && !(set instanceof ZExpression)) {
+			throw corrupted("bad SET clause");
+		}
+		q.addSet((ZExpression) set);
+
+		n = readVarint();
+		if (n > 0) {
+			List<ZOrderBy> order = new ArrayList<ZOrderBy>(n - 1);
+			for (int i = 1; i < n; i++) {
+				boolean asc = readVarint() != 0;
+				ZOrderBy o = new ZOrderBy(readExp());
+				o.setAscOrder(asc);
+				order.add(o);
+			}
+			q.addOrderBy(order);
+		}
+		return q;
+	}
+
+	private ZExp readExp() throws IOException {
+		int tag = readByte();
+		switch (tag) {
+		case T_NULL:
+			return null;
+		case T_CONSTANT:
+			int type = readVarint();
+			if (type >= TYPES.length) {
+				throw corrupted("bad constant type " + type);
+			}
+			return ZConstant.valueOf(readString(), TYPES[type]);
+		case T_EXPRESSION:
+			ZExpression x = new ZExpression(readString());
+			String f = readString();
+			if (f != null) {
+				int nparm = readVarint();
+				x.setFunction(functions.resolve(f, nparm, readByte() != 0));
+			}
+			x.setOperands(readExps());
+			return x;
+		case T_QUERY:
+			return readQuery();
+		default:
+			throw corrupted("bad expression tag " + tag);
+		}
+	}
+
+	private List<ZExp> readExps() throws IOException {
+		int n = readVarint();
+		if (n == 0) {
+			return null;
+		}
+		List<ZExp> l = new ArrayList<ZExp>(n - 1);
+		for (int i = 1; i < n; i++) {
+			l.add(readExp());
+		}
+		return l;
+	}
+
+	private List<String> readStrings() throws IOException {
+		int n = readVarint();
+		if (n == 0) {
+			return null;
+		}
+		List<String> l = new ArrayList<String>(n - 1);
+		for (int i = 1; i < n; i++) {
+			l.add(readString());
+		}
+		return l;
+	}
+
+	private String readString() throws IOException {
+		int ref = readVarint();
+		if (ref == S_NULL) {
+			return null;
+		}
+		if (ref != S_NEW) {
+			if (ref - 2 >= table.size()) {
+				throw corrupted("bad string reference " + ref);
+			}
+			return table.get(ref - 2);
+		}
+
+		int len = readVarint();
+		if (len > limit - pos) {
+			throw corrupted("bad string length " + len);
+		}
+		if (chars.length < len) {
+			chars = new char[Math.max(len, chars.length * 2)];
+		}
+		for (int i = 0; i < len; i++) {
+			int b = buf[pos++] & 0xFF;
+			if (b < 0x80) {
+				chars[i] = (char) b;
+			} else if (b < 0xE0) {
+				chars[i] = (char) (((b & 0x1F) << 6) | (buf[pos++] & 0x3F));
+			} else {
+				chars[i] = (char) (((b & 0x0F) << 12) | ((buf[pos++] & 0x3F) << 6) | (buf[pos++] & 0x3F));
+			}
+		}
+		if (pos > limit) {
+			throw corrupted("truncated string");
+		}
+		String s = new String(chars, 0, len);
+		table.add(s);
+		return s;
+	}
+
+	private int readVarint() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw corrupted("bad varint");
+	}
+
+	private int readByte() throws IOException {
+		if (pos >= limit) {
+			throw corrupted("truncated data");
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	private IOException corrupted(String msg) {
+		return new IOException("ZBinaryCodec: " + msg + " at offset " + pos);
+	}
+}
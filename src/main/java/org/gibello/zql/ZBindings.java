@@ -0,0 +1,220 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.Arrays;
+
+/**
+ * ZBindings: the parameter values of a ZPreparedTemplate, for one execution.<br>
+ * Parameters are numbered from 1. Numbers can be bound as primitive doubles, so that binding them does not allocate.
+ * Bindings can be cleared and reused from one execution to the next; they are not thread-safe.
+ */
+public class ZBindings {
+
+	// Markers in the values array
+	private static final Object UNBOUND = new Object();
+	private static final Object DOUBLE = new Object();
+
+	private final ZPreparedTemplate template;
+	private final Object[] values;
+	private final double[] doubles;
+
+	ZBindings(ZPreparedTemplate template) {
+		this.template = template;
+		int n = template.getParameterCount();
+		values = new Object[n];
+		doubles = new double[n];
+		clear();
+	}
+
+	/**
+	 * @return The template of these bindings.
+	 */
+	public ZPreparedTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Unbind all the parameters.
+	 */
+	public void clear() {
+		Arrays.fill(values, UNBOUND);
+	}
+
+	/**
+	 * Bind a parameter.
+	 *
+	 * @param index
+	 *            The parameter index, starting at 1
+	 * @param value
+	 *            The value (a String or a Number, or null for SQL NULL)
+	 * @return These bindings.
+	 */
+	public ZBindings setObject(int index, Object value) {
+		values[check(index)] = value;
+		return this;
+	}
+
+	/**
+	 * Bind a parameter to a number.
+	 *
+	 * @param index
+	 *            The parameter index, starting at 1
+	 * @param value
+	 *            The value
+	 * @return These bindings.
+	 */
+	public ZBindings setDouble(int index, double value) {
+		int i = check(index);
+		values[i] = DOUBLE;
+		doubles[i] = value;
+		return this;
+	}
+
+	/**
+	 * Bind a named parameter.
+	 *
+	 * @param name
+	 *            The placeholder name (without the leading ':')
+	 * @param value
+	 *            The value (a String or a Number, or null for SQL NULL)
+	 * @return These bindings.
+	 */
+	public ZBindings setObject(String name, Object value) {
+		return setObject(indexOf(name), value);
+	}
+
+	/**
+	 * Bind a named parameter to a number.
+	 *
+	 * @param name
+	 *            The placeholder name (without the leading ':')
+	 * @param value
+	 *            The value
+	 * @return These bindings.
+	 */
+	public ZBindings setDouble(String name, double value) {
+		return setDouble(indexOf(name), value);
+	}
+
+	/**
+	 * @return true if the parameter has a value.
+	 */
+	public boolean isBound(int index) {
+		return values[check(index)] != UNBOUND;
+	}
+
+	/**
+	 * @return true if the parameter is bound to a number.
+	 */
+	public boolean isNumber(int index) {
+		Object v = values[check(index)];
+		return v == DOUBLE || v instanceof Number;
+	}
+
+	/**
+	 * Get the value of a parameter.
+	 *
+	 * @param index
+	 *            The parameter index, starting at 1
+	 * @return The value (numbers bound with setDouble() are returned as Double objects).
+	 * @throws IllegalStateException
+	 *             If the parameter is not bound.
+	 */
+	public Object getObject(int index) {
+		int i = bound(index);
+		return values[i] == DOUBLE ? Double.valueOf(doubles[i]) : values[i];
+	}
+
+	/**
+	 * Get the value of a numeric parameter.
+	 *
+	 * @param index
+	 *            The parameter index, starting at 1
+	 * @return The value.
+	 * @throws IllegalStateException
+	 *             If the parameter is not bound, or is not bound to a number.
+	 */
+	public double getDouble(int index) {
+		int i = bound(index);
+		if (values[i] == DOUBLE) {
+			return doubles[i];
+		}
+		if (values[i] instanceof Number) {
+			return ((Number) values[i]).doubleValue();
+		}
+		throw new IllegalStateException("ZBindings: parameter " + index + " is not a number");
+	}
+
+	/**
+	 * Get the value of an integer parameter.
+	 *
+	 * @param index
+	 *            The parameter index, starting at 1
+	 * @return The value.
+	 * @throws IllegalStateException
+	 *             If the parameter is not bound, or is not bound to an integer.
+	 */
+	public long getLong(int index) {
+		int i = bound(index);
+		Object v = values[i];
+		if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+			return ((Number) v).longValue();
+		}
+		double d = getDouble(index);
+		if (d != Math.rint(d) || Math.abs(d) >= 0x1p63) {
+			throw new IllegalStateException("ZBindings: parameter " + index + " is not an integer");
+		}
+		return (long) d;
+	}
+
+	private int indexOf(String name) {
+		int i = template.indexOf(name);
+		if (i == 0) {
+			throw new IllegalArgumentException("ZBindings: unknown parameter :" + name);
+		}
+		return i;
+	}
+
+	private int check(int index) {
+		if (index < 1 || index > values.length) {
+			throw new IllegalArgumentException("ZBindings: parameter index " + index + " out of range [1, "
+					+ values.length + "]");
+		}
+		return index - 1;
+	}
+
+	private int bound(int index) {
+		int i = check(index);
+		if (values[i] == UNBOUND) {
+			throw new IllegalStateException("ZBindings: parameter " + index + " is not bound");
+		}
+		return i;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(values[i] == UNBOUND ? "?" : String.valueOf(getObject(i + 1)));
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * ZCharSequenceStream: a character stream for the parser, that reads directly from a CharSequence or a char array.<br>
+ * Unlike SimpleCharStream, no Reader is involved and the characters are never copied into an intermediate buffer.
+ * Line and column numbers are computed on demand, as tokens are created.
+ */
+public class ZCharSequenceStream extends SimpleCharStream {
+
+	/**
+	 * Thrown at end of input (the token manager expects an IOException).
+	 */
+	private static final IOException EOF = new EOFException("End of input") {
+		private static final long serialVersionUID = 1L;
+
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	};
+
+	private CharSequence seq;
+	private char[] chars;
+	private int start;
+	private int end;
+
+	private int pos;
+	private int begin;
+
+	// Line/column of the character at trackPos, as computed by SimpleCharStream
+	private int trackPos;
+	private int trackLine;
+	private int trackColumn;
+	private boolean trackCR;
+	private boolean trackLF;
+
+	/**
+	 * Create a stream that reads from a CharSequence.
+	 */
+	public ZCharSequenceStream(CharSequence in) {
+		super((Reader) null, 1, 1, 1);
+		reset(in);
+	}
+
+	/**
+	 * Create a stream that reads from a part of a char array (the array is not copied).
+	 */
+	public ZCharSequenceStream(char[] in, int offset, int length) {
+		super((Reader) null, 1, 1, 1);
+		reset(in, offset, length);
+	}
+
+	/**
+	 * Restart the stream on a new CharSequence.
+	 */
+	public void reset(CharSequence in) {
+		seq = in;
+		chars = null;
+		init(0, in.length());
+	}
+
+	/**
+	 * Restart the stream on a part of a CharSequence (from start inclusive to end exclusive).
+	 */
+	public void reset(CharSequence in, int start, int end) {
+		if (start < 0 || start > end || end > in.length()) {
+			throw new IndexOutOfBoundsException("ZCharSequenceStream: bad start/end");
+		}
+		seq = in;
+		chars = null;
+		init(start, end);
+	}
+
+	/**
+	 * Restart the stream on a part of a char array (the array is not copied).
+	 */
+	public void reset(char[] in, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > in.length) {
+			throw new IndexOutOfBoundsException("ZCharSequenceStream: bad offset/length");
+		}
+		seq = null;
+		chars = in;
+		init(offset, offset + length);
+	}
+
+	private void init(int from, int to) {
+		start = from;
+		end = to;
+		pos = from - 1;
+		begin = from;
+		resetTracker();
+	}
+
+	private void resetTracker() {
+		trackPos = start - 1;
+		trackLine = 1;
+		trackColumn = 0;
+		trackCR = false;
+		trackLF = false;
+	}
+
+	private char charAt(int i) {
+		return chars != null ? chars[i] : seq.charAt(i);
+	}
+
+	public char BeginToken() throws IOException {
+		begin = -1;
+		char c = readChar();
+		begin = pos;
+		return c;
+	}
+
+	public char readChar() throws IOException {
+		if (pos + 1 >= end) {
+			if (begin == -1) {
+				begin = pos;
+			}
+			throw EOF;
+		}
+		return charAt(++pos);
+	}
+
+	public void backup(int amount) {
+		pos -= amount;
+	}
+
+	public String GetImage() {
+		if (chars != null) {
+			return new String(chars, begin, pos - begin + 1);
+		}
+		return seq.subSequence(begin, pos + 1).toString();
+	}
+
+	public char[] GetSuffix(int len) {
+		char[] ret = new char[len];
+		for (int i = 0; i < len; i++) {
+			ret[i] = charAt(pos - len + 1 + i);
+		}
+		return ret;
+	}
+
+	public void Done() {
+		seq = null;
+		chars = null;
+	}
+
+	public void adjustBeginLineColumn(int newLine, int newCol) {
+		track(begin);
+		trackLine = newLine;
+		trackColumn = newCol;
+	}
+
+	public int getBeginLine() {
+		track(begin);
+		return trackLine;
+	}
+
+	public int getBeginColumn() {
+		track(begin);
+		return trackColumn;
+	}
+
+	public int getEndLine() {
+		track(pos);
+		return trackLine;
+	}
+
+	public int getEndColumn() {
+		track(pos);
+		return trackColumn;
+	}
+
+	@Deprecated
+	public int getLine() {
+		return getEndLine();
+	}
+
+	@Deprecated
+	public int getColumn() {
+		return getEndColumn();
+	}
+
+	/**
+	 * Move the line/column tracker to a given position. Tokens are created in increasing order, so the tracker
+	 * normally only moves forward: the cost is linear in the input length.
+	 */
+	private void track(int target) {
+		if (target < trackPos) {
+			resetTracker();
+		}
+		while (trackPos < target) {
+			char c = charAt(++trackPos);
+			trackColumn++;
+			if (trackLF) {
+				trackLF = false;
+				trackLine += (trackColumn = 1);
+			} else if (trackCR) {
+				trackCR = false;
+				if (c == '\n') {
+					trackLF = true;
+				} else {
+					trackLine += (trackColumn = 1);
+				}
+			}
+			switch (c) {
+			case '\r':
+				trackCR = true;
+				break;
+			case '\n':
+				trackLF = true;
+				break;
+			case '\t':
+				trackColumn--;
+				trackColumn += (tabSize - (trackColumn % tabSize));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
@@ -17,6 +17,8 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
+
 /**
  * ZConstant: a representation of SQL constants
  */
@@ -25,23 +27,69 @@ public class ZConstant implements ZExp {
 	private static final long serialVersionUID = 5152573166867973827L;
 
 	/**
-	 * ZConstant types
+	 * ZConstant types. BIND constants are :name placeholders (their value is the placeholder text, like ":name").
 	 */
 	public static enum Type {
-		UNKNOWN, COLUMNNAME, NULL, NUMBER, STRING
+		UNKNOWN, COLUMNNAME, NULL, NUMBER, STRING, BIND
+	}
+
+	/**
+	 * The NULL constant.
+	 */
+	public static final ZConstant NULL = new ZConstant("NULL", Type.NULL);
+
+	// Shared instances of frequent constants
+	private static final ZConstant STAR = new ZConstant("*", Type.COLUMNNAME);
+	private static final ZConstant[] DIGITS = new ZConstant[10];
+	static {
+		for (int i = 0; i < DIGITS.length; i++) {
+			DIGITS[i] = new ZConstant(String.valueOf(i), Type.NUMBER);
+		}
 	}
 
 	final Type type;
 	final String val;
 
 	/**
-	 * Create a new constant, given its name and type.
+	 * Create a new constant, given its name and type. Column names are interned.
 	 */
 	public ZConstant(String v, Type typ) {
-		val = v;
+		val = (typ == Type.COLUMNNAME && v != null ? v.intern() : v);
 		type = typ;
 	}
 
+	/**
+	 * Get a constant, given its name and type. Constants are immutable, so frequent constants (NULL, the "*" column,
+	 * single digit numbers) are shared instances.
+	 *
+	 * @return A constant equal to new ZConstant(v, typ).
+	 */
+	public static ZConstant valueOf(String v, Type typ) {
+		if (v != null) {
+			if (typ == Type.NULL && "NULL".equals(v)) {
+				return NULL;
+			}
+			if (typ == Type.COLUMNNAME && "*".equals(v)) {
+				return STAR;
+			}
+			if (typ == Type.NUMBER && v.length() == 1 && v.charAt(0) >= '0' && v.charAt(0) <= '9') {
+				return DIGITS[v.charAt(0) - '0'];
+			}
+		}
+		return new ZConstant(v, typ);
+	}
+
+	/**
+	 * @return true if this constant is a shared instance returned by valueOf().
+	 */
+	boolean isShared() {
+		if (this == NULL || this == STAR) {
+			return true;
+		}
+		return type == Type.NUMBER && val != null && val.length() == 1 && val.charAt(0) >= '0' && val.charAt(0) <= '9'
+				&& this == DIGITS[val.charAt(0) - '0'];
+	}
+
 	/*
 	 * @return the constant value
 	 */
@@ -56,6 +104,44 @@ public class ZConstant implements ZExp {
 		return type;
 	}
 
+	/**
+	 * Traverse this constant with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		v.visit(this);
+	}
+
+	/**
+	 * Write the SQL text of this constant (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	/**
+	 * Two constants are equal if they have the same type and value.
+	 */
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ZConstant)) {
+			return false;
+		}
+		ZConstant c = (ZConstant) o;
+		return type == c.type && (val == null ? c.val == null : val.equals(c.val));
+	}
+
+	public int hashCode() {
+		return 31 * (type == null ? 0 : type.ordinal() + 1) + (val == null ? 0 : val.hashCode());
+	}
+
 	public String toString() {
 		if (type == Type.STRING) {
 			return '\'' + val + '\'';
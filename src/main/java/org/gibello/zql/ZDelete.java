@@ -17,6 +17,8 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
+
 /**
  * ZDelete: an SQL DELETE statement.<br>
  * SQL Syntax: DELETE [from] table [where Expression];
@@ -63,15 +65,30 @@ public class ZDelete implements ZStatement {
 		return where;
 	}
 
-	public String toString() {
-		String res = "delete ";
-		if (where != null) {
-			res += "from ";
-		}
-		res += table;
-		if (where != null) {
-			res += " where " + where.toString();
+	/**
+	 * Traverse this statement with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		if (v.visit(this) && where != null) {
+			ZVisitor.accept(where, v);
 		}
-		return res;
+		v.endVisit(this);
+	}
+
+	/**
+	 * Write the SQL text of this statement (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
 }
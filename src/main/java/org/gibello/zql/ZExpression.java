@@ -17,18 +17,35 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * ZExpression: an SQL Expression An SQL expression is an operator and one or more operands Example: a AND b AND c ->
- * operator = AND, operands = (a, b, c)
+ * operator = AND, operands = (a, b, c)<br>
+ * Expressions are compared structurally (same operator and equal operands; sub-queries and "?" placeholders are
+ * compared by identity, each "?" being a distinct parameter). An
+ * expression can be made immutable with freeze(): its hash code is then computed once, and it can be shared between
+ * statements and threads (see ZInterner).
  */
 public class ZExpression implements ZExp {
 	private static final long serialVersionUID = 3034365237806330384L;
 
 	private final String op;
-	private List<ZExp> operands = new ArrayList<ZExp>();
+	private transient ZOperator opcode;
+	// Resolved by the parser for custom function calls
+	private transient ZFunction function;
+	// Most expressions have one or two operands
+	private List<ZExp> operands = new ArrayList<ZExp>(2);
+	// Set by freeze()
+	private transient boolean frozen = false;
+	private transient int hash;
 
 	/**
 	 * Create an SQL Expression given the operator
@@ -37,7 +54,8 @@ public class ZExpression implements ZExp {
 	 *            The operator
 	 */
 	public ZExpression(String op) {
-		this.op = op;
+		opcode = ZOperator.of(op);
+		this.op = ZOperator.canonical(op, opcode);
 	}
 
 	/**
@@ -49,7 +67,7 @@ public class ZExpression implements ZExp {
 	 *            The 1st operand
 	 */
 	public ZExpression(String op, ZExp o1) {
-		this.op = op;
+		this(op);
 		addOperand(o1);
 	}
 
@@ -64,7 +82,7 @@ public class ZExpression implements ZExp {
 	 *            The 2nd operand
 	 */
 	public ZExpression(String op, ZExp o1, ZExp o2) {
-		this.op = op;
+		this(op);
 		addOperand(o1);
 		addOperand(o2);
 	}
@@ -78,20 +96,53 @@ public class ZExpression implements ZExp {
 		return op;
 	}
 
+	/**
+	 * Get this expression's operator code.
+	 * 
+	 * @return the opcode (FUNCTION for custom functions).
+	 */
+	public ZOperator getOpcode() {
+		if (opcode == null) {
+			opcode = ZOperator.of(op); // Deserialized expression
+		}
+		return opcode;
+	}
+
+	/**
+	 * Get the custom function called by this expression, as resolved by the parser.
+	 * 
+	 * @return The function descriptor, or null if this expression is not a custom function call (or was not parsed).
+	 */
+	public ZFunction getFunction() {
+		return function;
+	}
+
+	/**
+	 * Set the custom function called by this expression.
+	 * 
+	 * @param f
+	 *            The function descriptor
+	 */
+	public void setFunction(ZFunction f) {
+		checkMutable();
+		function = f;
+	}
+
 	/**
 	 * Set the operands list
 	 * 
 	 * @param v
-	 *            A vector that contains all operands (ZExp objects).
+	 *            A vector that contains all operands (ZExp objects). An ArrayList is trimmed to its size.
 	 */
 	public void setOperands(final List<ZExp> v) {
-		operands = v;
+		checkMutable();
+		operands = ZUtils.trim(v);
 	}
 
 	/**
 	 * Get this expression's operands.
 	 * 
-	 * @return the operands (as a Vector of ZExp objects).
+	 * @return the operands (as a Vector of ZExp objects, unmodifiable if the expression is frozen).
 	 */
 	public List<ZExp> getOperands() {
 		return operands;
@@ -104,9 +155,186 @@ public class ZExpression implements ZExp {
 	 *            The operand to add.
 	 */
 	public final void addOperand(ZExp o) {
+		checkMutable();
 		operands.add(o);
 	}
 
+	private void checkMutable() {
+		if (frozen) {
+			throw new UnsupportedOperationException("ZExpression: the expression is frozen");
+		}
+	}
+
+	/**
+	 * Make this expression and its operands (recursively, except sub-queries) immutable. The operands can no longer be
+	 * changed, and the hash code is computed once.
+	 * 
+	 * @return This expression.
+	 */
+	public ZExpression freeze() {
+		if (frozen) {
+			return this;
+		}
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		stack.push(new Frame(this));
+		while (!stack.isEmpty()) {
+			Frame f = stack.peek();
+			if (f.push(stack)) {
+				continue;
+			}
+			stack.pop();
+			ZExpression e = f.e;
+			e.operands = (e.operands == null ? null : Collections.unmodifiableList(ZUtils.trim(e.operands)));
+			e.hash = f.h;
+			e.frozen = true;
+			if (!stack.isEmpty()) {
+				stack.peek().add(e.hash);
+			}
+		}
+		return this;
+	}
+
+	// The function is written as its name, number of parameters and aggregate flag (null name if none)
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(function == null ? null : function.getName());
+		if (function != null) {
+			out.writeInt(function.getArity());
+			out.writeBoolean(function.isAggregate());
+		}
+	}
+
+	// Deserialized expressions are mutable, and their function is resolved in the default registry
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (operands != null && !(operands instanceof ArrayList)) {
+			operands = new ArrayList<ZExp>(operands);
+		}
+		String name = null;
+		try {
+			name = (String) in.readObject();
+		} catch (OptionalDataException e) {
+			if (!e.eof) {
+				throw e; // Else: written by a version that did not write the function
+			}
+		}
+		if (name != null) {
+			int nparm = in.readInt();
+			function = ZFunctionRegistry.getDefault().resolve(name, nparm, in.readBoolean());
+		}
+	}
+
+	/**
+	 * @return true if this expression is immutable (see freeze()).
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * An expression whose hash code is being computed (its operands one after the other).
+	 */
+	private static final class Frame {
+		final ZExpression e;
+		int next = 0;
+		int h;
+
+		Frame(ZExpression e) {
+			this.e = e;
+			this.h = (e.getOpcode() == ZOperator.PARAMETER ? System.identityHashCode(e)
+					: e.op == null ? 0 : e.op.hashCode());
+		}
+
+		/**
+		 * Hash the next operands, until one needs its own frame.
+		 * 
+		 * @return true if a frame has been pushed.
+		 */
+		boolean push(ArrayDeque<Frame> stack) {
+			for (int n = e.nbOperands(); next < n;) {
+				ZExp o = e.operands.get(next);
+				if (o instanceof ZExpression && !((ZExpression) o).frozen) {
+					stack.push(new Frame((ZExpression) o));
+					return true;
+				}
+				add(o == null ? 0 : o.hashCode());
+			}
+			return false;
+		}
+
+		void add(int operandHash) {
+			h = 31 * h + operandHash;
+			next++;
+		}
+	}
+
+	/**
+	 * Two expressions are equal if they have the same operator and equal operands (sub-queries and "?" placeholders are
+	 * compared by identity).
+	 */
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ZExpression)) {
+			return false;
+		}
+		ArrayDeque<ZExpression> stack = new ArrayDeque<ZExpression>();
+		stack.push(this);
+		stack.push((ZExpression) o);
+		while (!stack.isEmpty()) {
+			ZExpression y = stack.pop();
+			ZExpression x = stack.pop();
+			if (x == y) {
+				continue;
+			}
+			if ((x.frozen && y.frozen && x.hash != y.hash) || x.getOpcode() == ZOperator.PARAMETER) {
+				return false;
+			}
+			int n = x.nbOperands();
+			if (n != y.nbOperands() || !(x.op == null ? y.op == null : x.op.equals(y.op))) {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				ZExp a = x.operands.get(i);
+				ZExp b = y.operands.get(i);
+				if (a == b) {
+					continue;
+				}
+				if (a instanceof ZExpression && b instanceof ZExpression) {
+					stack.push((ZExpression) a);
+					stack.push((ZExpression) b);
+				} else if (a == null || !a.equals(b)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The hash code of an expression depends on its operator and operands. It is computed once if the expression is
+	 * frozen, and at each call otherwise.
+	 */
+	public int hashCode() {
+		if (frozen) {
+			return hash;
+		}
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		stack.push(new Frame(this));
+		for (;;) {
+			Frame f = stack.peek();
+			if (f.push(stack)) {
+				continue;
+			}
+			stack.pop();
+			if (stack.isEmpty()) {
+				return f.h;
+			}
+			stack.peek().add(f.h);
+		}
+	}
+
 	/**
 	 * Get an operand according to its index (position).
 	 * 
@@ -157,105 +385,35 @@ public class ZExpression implements ZExp {
 		return ret;
 	}
 
-	public String toString() {
-		if ("?".equals(op)) {
-			return op; // For prepared columns ("?")
-		}
-		if (ZUtils.isCustomFunction(op) >= 0) {
-			return formatFunction();
-		}
-
-		String ret = "";
-		if (needPar(op)) {
-			ret += "(";
-		}
-
-		ZExp operand;
-		switch (nbOperands()) {
-
-		case 1:
-			operand = getOperand(0);
-			if (operand instanceof ZConstant) {
-				// Operator may be an aggregate function (MAX, SUM...)
-				if (ZUtils.isAggregate(op)) {
-					ret += op + "(" + operand.toString() + ")";
-				} else if ("IS NULL".equals(op) || "IS NOT NULL".equals(op)) {
-					ret += operand.toString() + " " + op;
-					// "," = list of values, here just one single value
-				} else if (",".equals(op)) {
-					ret += operand.toString();
-				} else {
-					ret += op + " " + operand.toString();
-				}
-			} else if (operand instanceof ZQuery) {
-				ret += op + " (" + operand.toString() + ")";
-			} else {
-				if ("IS NULL".equals(op) || "IS NOT NULL".equals(op)) {
-					ret += operand.toString() + " " + op;
-					// "," = list of values, here just one single value
-				} else if (",".equals(op)) {
-					ret += operand.toString();
-				} else {
-					ret += op + " " + operand.toString();
-				}
-			}
-			break;
-
-		case 3:
-			if (op.toUpperCase().endsWith("BETWEEN")) {
-				ret += getOperand(0).toString() + " " + op + " " + getOperand(1).toString() + " AND "
-						+ getOperand(2).toString();
-				break;
-			}
-		default:
-
-			boolean inOp = "IN".equals(op) || "NOT IN".equals(op);
-
-			int nb = nbOperands();
-			for (int i = 0; i < nb; i++) {
-
-				if (inOp && i == 1) {
-					ret += " " + op + " (";
-				}
-
-				operand = getOperand(i);
-				if (operand instanceof ZQuery && !inOp) {
-					ret += "(" + operand.toString() + ")";
-				} else {
-					ret += operand.toString();
-				}
-				if (i < nb - 1) {
-					if (",".equals(op) || (inOp && i > 0)) {
-						ret += ", ";
-					} else if (!inOp) {
-						ret += " " + op + " ";
-					}
+	/**
+	 * Traverse this expression with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		if (v.visit(this)) {
+			for (int i = 0; i < nbOperands(); i++) {
+				ZExp e = getOperand(i);
+				if (e != null) {
+					ZVisitor.accept(e, v);
 				}
 			}
-			if (inOp) {
-				ret += ")";
-			}
-			break;
 		}
-
-		if (needPar(op)) {
-			ret += ")";
-		}
-		return ret;
+		v.endVisit(this);
 	}
 
-	private boolean needPar(String op) {
-		String tmp = op.toUpperCase();
-		return !("ANY".equals(tmp) || "ALL".equals(tmp) || "UNION".equals(tmp) || ZUtils.isAggregate(tmp));
+	/**
+	 * Write the SQL text of this expression (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
 	}
 
-	private String formatFunction() {
-		String ret = op + "(";
-		int nb = nbOperands();
-		for (int i = 0; i < nb; i++) {
-			ret += getOperand(i).toString() + (i < nb - 1 ? "," : "");
-		}
-		ret += ")";
-		return ret;
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
-}
\ No newline at end of file
+}
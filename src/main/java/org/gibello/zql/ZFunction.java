@@ -0,0 +1,122 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.sql.SQLException;
+
+/**
+ * ZFunction: the descriptor of a custom SQL function (see ZFunctionRegistry).<br>
+ * The parser resolves each function call to its descriptor once, and attaches it to the ZExpression of the call (see
+ * ZExpression.getFunction()). Descriptors are immutable.
+ */
+public final class ZFunction {
+
+	/**
+	 * The implementation of a function, used by ZEval.
+	 */
+	public static interface Implementation {
+		/**
+		 * @param args
+		 *            The values of the parameters (numbers are Double objects, like column values)
+		 * @return The value of the function
+		 */
+		Object call(Object[] args) throws SQLException;
+	}
+
+	private final String name;
+	private final int arity;
+	private final boolean aggregate;
+	private final Implementation implementation;
+
+	/**
+	 * Create a function that takes a given number of parameters.
+	 * 
+	 * @param name
+	 *            The function name (case-insensitive)
+	 * @param nparm
+	 *            The number of parameters: ZUtils.VARIABLE_PLIST for any number of parameters, 0 for no check, 1 if
+	 *            negative.
+	 */
+	public ZFunction(String name, int nparm) {
+		this(name, nparm, false, null);
+	}
+
+	/**
+	 * Create a function.
+	 * 
+	 * @param name
+	 *            The function name (case-insensitive)
+	 * @param nparm
+	 *            The number of parameters: ZUtils.VARIABLE_PLIST for any number of parameters, 0 for no check, 1 if
+	 *            negative.
+	 * @param aggregate
+	 *            true if the function is an aggregate (like SUM)
+	 * @param implementation
+	 *            The implementation of the function, or null if it can't be evaluated.
+	 */
+	public ZFunction(String name, int nparm, boolean aggregate, Implementation implementation) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("ZFunction: empty function name");
+		}
+		this.name = ZUtils.intern(name);
+		this.arity = (nparm < 0 ? 1 : nparm);
+		this.aggregate = aggregate;
+		this.implementation = implementation;
+	}
+
+	/**
+	 * @return The function name, as registered.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The number of parameters (ZUtils.VARIABLE_PLIST for any number, 0 if not checked).
+	 */
+	public int getArity() {
+		return arity;
+	}
+
+	/**
+	 * @param n
+	 *            A number of parameters
+	 * @return true if the function accepts n parameters.
+	 */
+	public boolean accepts(int n) {
+		return arity == ZUtils.VARIABLE_PLIST || arity == 0 || arity == n;
+	}
+
+	/**
+	 * @return true if the function is an aggregate.
+	 */
+	public boolean isAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * @return The implementation of the function, or null if there's none.
+	 */
+	public Implementation getImplementation() {
+		return implementation;
+	}
+
+	public String toString() {
+		return name + "/" + (arity == ZUtils.VARIABLE_PLIST ? "*" : String.valueOf(arity));
+	}
+}
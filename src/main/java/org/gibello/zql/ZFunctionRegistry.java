@@ -0,0 +1,211 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+/**
+ * ZFunctionRegistry: a set of custom SQL functions, looked up by name regardless of case.<br>
+ * A registry can be scoped to a parser (see ZqlParser.setFunctionRegistry()); the default registry is shared by the
+ * parsers that don't have their own, and by the static methods of ZUtils. A registry may have a parent, whose
+ * functions it inherits (its own functions take precedence).<br>
+ * Lookups never lock nor allocate: the functions are kept in an open-addressing table that is copied on each
+ * registration, and published through a volatile field. Registrations are serialized.
+ */
+public class ZFunctionRegistry {
+
+	private static final ZFunctionRegistry DEFAULT = new ZFunctionRegistry(null);
+
+	private final ZFunctionRegistry parent;
+	// Power-of-two sized, at most half full
+	private volatile ZFunction[] table = new ZFunction[16];
+	private int size = 0;
+
+	/**
+	 * Create an empty registry, that inherits the functions of the default registry.
+	 */
+	public ZFunctionRegistry() {
+		this(DEFAULT);
+	}
+
+	/**
+	 * Create an empty registry.
+	 * 
+	 * @param parent
+	 *            The registry whose functions are inherited, or null.
+	 */
+	public ZFunctionRegistry(ZFunctionRegistry parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * @return The default registry.
+	 */
+	public static ZFunctionRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return The parent registry, or null if there's none.
+	 */
+	public ZFunctionRegistry getParent() {
+		return parent;
+	}
+
+	/**
+	 * Register a function, replacing any function of the same name (regardless of case) in this registry.
+	 * 
+	 * @param f
+	 *            The function descriptor
+	 */
+	public synchronized void register(ZFunction f) {
+		ZFunction[] t = table;
+		int i = indexOf(t, f.getName());
+		if (i >= 0) {
+			t = t.clone();
+			t[i] = f;
+		} else {
+			size++;
+			if (size * 2 > t.length) {
+				ZFunction[] old = t;
+				t = new ZFunction[old.length * 2];
+				for (ZFunction g : old) {
+					if (g != null) {
+						t[slot(t, g.getName())] = g;
+					}
+				}
+			} else {
+				t = t.clone();
+			}
+			t[slot(t, f.getName())] = f;
+		}
+		table = t;
+	}
+
+	/**
+	 * Register a function that has no implementation.
+	 * 
+	 * @param name
+	 *            The function name
+	 * @param nparm
+	 *            The number of parameters (see ZFunction)
+	 * @return The function descriptor
+	 */
+	public ZFunction register(String name, int nparm) {
+		ZFunction f = new ZFunction(name, nparm);
+		register(f);
+		return f;
+	}
+
+	/**
+	 * Find a function by name, in this registry then in its parents.
+	 * 
+	 * @param name
+	 *            A function name, in any case
+	 * @return The function descriptor, or null if the function is unknown.
+	 */
+	public ZFunction lookup(CharSequence name) {
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		for (ZFunctionRegistry r = this; r != null; r = r.parent) {
+			ZFunction[] t = r.table;
+			int i = indexOf(t, name);
+			if (i >= 0) {
+				return t[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Resolve the function of a decoded expression (see ZBinaryCodec and ZExpression serialization): the function of
+	 * this name if it is known, otherwise a descriptor without implementation, so that the call is still written
+	 * and recognized as a function.
+	 * 
+	 * @param name
+	 *            The function name
+	 * @param nparm
+	 *            The number of parameters of the encoded function
+	 * @param aggregate
+	 *            true if the encoded function is an aggregate
+	 * @return The function descriptor.
+	 */
+	ZFunction resolve(String name, int nparm, boolean aggregate) {
+		ZFunction f = lookup(name);
+		return f != null ? f : new ZFunction(name, nparm, aggregate, null);
+	}
+
+	/**
+	 * @return The number of functions registered in this registry (not in its parents).
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private static int indexOf(ZFunction[] t, CharSequence name) {
+		int mask = t.length - 1;
+		for (int i = hash(name) & mask;; i = (i + 1) & mask) {
+			ZFunction f = t[i];
+			if (f == null) {
+				return -1;
+			}
+			if (matches(f.getName(), name)) {
+				return i;
+			}
+		}
+	}
+
+	// The first free slot for a name that is not in the table
+	private static int slot(ZFunction[] t, CharSequence name) {
+		int mask = t.length - 1;
+		int i = hash(name) & mask;
+		while (t[i] != null) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int hash(CharSequence s) {
+		int h = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			h = 31 * h + fold(s.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean matches(String a, CharSequence b) {
+		int n = a.length();
+		if (n != b.length()) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = a.charAt(i);
+			char d = b.charAt(i);
+			if (c != d && fold(c) != fold(d)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char fold(char c) {
+		if (c < 128) {
+			return (c >= 'a' && c <= 'z') ? (char) (c - 32) : c;
+		}
+		return Character.toUpperCase(Character.toLowerCase(c));
+	}
+}
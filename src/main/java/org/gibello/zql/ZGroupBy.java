@@ -17,6 +17,7 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -36,7 +37,7 @@ public class ZGroupBy implements java.io.Serializable {
 	 *            A vector of SQL Expressions (ZExp objects).
 	 */
 	public ZGroupBy(List<ZExp> exps) {
-		groupby = exps;
+		groupby = ZUtils.trim(exps);
 	}
 
 	/**
@@ -67,16 +68,17 @@ public class ZGroupBy implements java.io.Serializable {
 		return having;
 	}
 
-	public String toString() {
-		String ret = "group by ";
+	/**
+	 * Write the SQL text of this clause (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
 
-		ret += groupby.get(0).toString();
-		for (int i = 1; i < groupby.size(); i++) {
-			ret += ", " + groupby.get(i).toString();
-		}
-		if (having != null) {
-			ret += " having " + having.toString();
-		}
-		return ret;
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
 }
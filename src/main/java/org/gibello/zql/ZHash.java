@@ -0,0 +1,124 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+/**
+ * ZHash: stable 128-bit hash of character sequences (MurmurHash3 x64/128 of the UTF-16LE encoding).<br>
+ * Unlike String.hashCode(), the result is wide enough to be used as a key identifying an SQL text.
+ */
+public final class ZHash {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private ZHash() {
+	}
+
+	/**
+	 * @return The low 64 bits of the 128-bit hash.
+	 */
+	public static long hash64(CharSequence s) {
+		long[] h = new long[2];
+		hash128(s, h);
+		return h[0];
+	}
+
+	/**
+	 * Compute the 128-bit hash of a character sequence.
+	 *
+	 * @param s
+	 *            The characters to hash
+	 * @param out
+	 *            An array of (at least) 2 longs that receives the hash: out[0] = low bits, out[1] = high bits.
+	 */
+	public static void hash128(CharSequence s, long[] out) {
+		int len = s.length();
+		long h1 = 0;
+		long h2 = 0;
+
+		int nblocks = len >>> 3;
+		for (int b = 0; b < nblocks; b++) {
+			int i = b << 3;
+			long k1 = s.charAt(i) | ((long) s.charAt(i + 1) << 16) | ((long) s.charAt(i + 2) << 32)
+					| ((long) s.charAt(i + 3) << 48);
+			long k2 = s.charAt(i + 4) | ((long) s.charAt(i + 5) << 16) | ((long) s.charAt(i + 6) << 32)
+					| ((long) s.charAt(i + 7) << 48);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		int tail = nblocks << 3;
+		int rem = len - tail;
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = rem - 1; i >= 4; i--) {
+			k2 = (k2 << 16) | s.charAt(tail + i);
+		}
+		for (int i = Math.min(rem, 4) - 1; i >= 0; i--) {
+			k1 = (k1 << 16) | s.charAt(tail + i);
+		}
+		if (rem > 4) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		}
+		if (rem > 0) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+
+		long bytes = 2L * len;
+		h1 ^= bytes;
+		h2 ^= bytes;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		out[0] = h1;
+		out[1] = h2;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
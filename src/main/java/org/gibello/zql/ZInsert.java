@@ -17,6 +17,7 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -77,6 +78,13 @@ public class ZInsert implements ZStatement {
 		valueSpec = e;
 	}
 
+	/**
+	 * @return The VALUES part or the sub-query, as set by addValueSpec().
+	 */
+	ZExp getValueSpec() {
+		return valueSpec;
+	}
+
 	/**
 	 * Get the VALUES part of the INSERT statement
 	 * 
@@ -103,27 +111,30 @@ public class ZInsert implements ZStatement {
 		return (ZQuery) valueSpec;
 	}
 
-	public String toString() {
-		String ret = "insert into " + table;
-		if (columns != null && !columns.isEmpty()) {
-
-			ret += "(" + columns.get(0);
-			for (int i = 1; i < columns.size(); i++) {
-				ret += "," + columns.get(i);
-			}
-			ret += ")";
+	/**
+	 * Traverse this statement with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		if (v.visit(this) && valueSpec != null) {
+			ZVisitor.accept(valueSpec, v);
 		}
+		v.endVisit(this);
+	}
 
-		String vlist = valueSpec.toString();
-		ret += " ";
-		if (!getValues().isEmpty()) {
-			ret += "values ";
-		}
-		if (vlist.startsWith("(")) {
-			ret += vlist;
-		} else {
-			ret += " (" + vlist + ")";
-		}
-		return ret;
+	/**
+	 * Write the SQL text of this statement (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
 }
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZInterner: hash-consing of expressions. The expressions returned by an interner are frozen (see
+ * ZExpression.freeze()), and equal expressions or constants are the same instance: identical sub-trees of many
+ * statements share one copy, and can be compared by identity.<br>
+ * Interning a tree freezes the expressions that are kept as canonical instances, so a tree should not be modified
+ * once interned: use the returned tree instead. Sub-queries are not interned, but the expressions they contain are.<br>
+ * An interner is thread-safe. It keeps its instances until clear() is called.
+ */
+public class ZInterner {
+
+	private final ConcurrentHashMap<ZExp, ZExp> table = new ConcurrentHashMap<ZExp, ZExp>();
+
+	private final ZTransformer interning = new ZTransformer() {
+		public ZExp transform(ZExpression e) {
+			// The operands are already canonical (and frozen). Each "?" parameter is a distinct placeholder.
+			e.freeze();
+			return e.getOpcode() == ZOperator.PARAMETER ? e : canonical(e);
+		}
+
+		public ZExp transform(ZConstant c) {
+			return c.isShared() ? c : canonical(c);
+		}
+	};
+
+	/**
+	 * Intern an expression tree.
+	 * 
+	 * @param e
+	 *            The expression (may be null)
+	 * @return The canonical, frozen instance of the expression.
+	 */
+	public ZExp intern(ZExp e) {
+		return interning.rewrite(e);
+	}
+
+	/**
+	 * Intern the expressions of a statement.
+	 * 
+	 * @param st
+	 *            The statement (may be null)
+	 * @return The statement, with canonical expressions (st itself if all its expressions were canonical).
+	 */
+	public ZStatement intern(ZStatement st) {
+		return interning.rewrite(st);
+	}
+
+	/**
+	 * Intern the expressions of a query.
+	 * 
+	 * @param q
+	 *            The query (may be null)
+	 * @return The query, with canonical expressions (q itself if all its expressions were canonical).
+	 */
+	public ZQuery intern(ZQuery q) {
+		return interning.rewrite(q);
+	}
+
+	private ZExp canonical(ZExp e) {
+		ZExp c = table.putIfAbsent(e, e);
+		return c == null ? e : c;
+	}
+
+	/**
+	 * @return The number of canonical expressions and constants.
+	 */
+	public int size() {
+		return table.size();
+	}
+
+	/**
+	 * Forget all canonical instances (the trees already interned remain frozen).
+	 */
+	public void clear() {
+		table.clear();
+	}
+}
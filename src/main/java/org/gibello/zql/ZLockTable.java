@@ -17,6 +17,7 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -55,4 +56,28 @@ public class ZLockTable implements ZStatement {
 	public void setNowait(final boolean nowait) {
 		this.nowait = nowait;
 	}
+
+	/**
+	 * Traverse this statement with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		v.visit(this);
+	}
+
+	/**
+	 * Write the SQL text of this statement (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
+	}
 }
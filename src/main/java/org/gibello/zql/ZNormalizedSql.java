@@ -0,0 +1,88 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ZNormalizedSql: the result of ZNormalizer.normalize(): a normalized SQL text, its fingerprint, and the literal
+ * values that have been replaced by placeholders.
+ */
+public class ZNormalizedSql {
+
+	private final String sql;
+	private final List<ZConstant> parameters;
+	private final long low;
+	private final long high;
+
+	ZNormalizedSql(String sql, List<ZConstant> parameters, long low, long high) {
+		this.sql = sql;
+		this.parameters = Collections.unmodifiableList(parameters);
+		this.low = low;
+		this.high = high;
+	}
+
+	/**
+	 * @return The normalized SQL text.
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * @return The literal values replaced by placeholders, in placeholder order (ZConstant objects of type NUMBER or
+	 *         STRING).
+	 */
+	public List<ZConstant> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return A 64-bit fingerprint of the normalized SQL text.
+	 */
+	public long getFingerprint() {
+		return low;
+	}
+
+	/**
+	 * @return The high 64 bits of the 128-bit fingerprint (the low bits are returned by getFingerprint()).
+	 */
+	public long getFingerprintHigh() {
+		return high;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ZNormalizedSql)) {
+			return false;
+		}
+		ZNormalizedSql n = (ZNormalizedSql) o;
+		return low == n.low && high == n.high && sql.equals(n.sql);
+	}
+
+	public int hashCode() {
+		return (int) (low ^ (low >>> 32));
+	}
+
+	public String toString() {
+		return sql;
+	}
+}
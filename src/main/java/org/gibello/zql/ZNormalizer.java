@@ -0,0 +1,274 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ZNormalizer: computes a normalized form and a fingerprint of SQL texts, so that statements that differ only by
+ * their literal values, keyword case, white spaces or comments share the same cache key.<br>
+ * Normalization works on the token stream of the grammar's token manager: no syntax tree is built, and the SQL text
+ * does not even need to be a complete statement.<br>
+ * A ZNormalizer is not thread-safe (like ZqlParser): use one instance per thread.
+ */
+public class ZNormalizer implements ZqlJJParserConstants {
+
+	/**
+	 * Replace numeric and character literals by "?" placeholders (their values are returned as parameters).
+	 */
+	public static final int REPLACE_LITERALS = 1;
+
+	/**
+	 * Sort the values of IN lists made of literals only.
+	 */
+	public static final int SORT_IN_LISTS = 2;
+
+	private static final int OPEN = kind("\"(\"");
+	private static final int CLOSE = kind("\")\"");
+	private static final int COMMA = kind("\",\"");
+	private static final int DOT = kind("\".\"");
+	private static final int DOT_STAR = kind("\".*\"");
+	private static final int SEMICOLON = kind("\";\"");
+	private static final int QUESTION = kind("\"?\"");
+	private static final int PLUS = kind("\"+\"");
+	private static final int MINUS = kind("\"-\"");
+
+	private static final String[] IMAGES = new String[tokenImage.length];
+	static {
+		for (int i = 0; i < tokenImage.length; i++) {
+			String s = tokenImage[i];
+			if (s.length() > 1 && s.charAt(0) == '"') {
+				IMAGES[i] = s.substring(1, s.length() - 1);
+			}
+		}
+	}
+
+	private static final Comparator<Literal> LITERAL_ORDER = new Comparator<Literal>() {
+		public int compare(Literal a, Literal b) {
+			boolean na = a.value.getType() == ZConstant.Type.NUMBER;
+			boolean nb = b.value.getType() == ZConstant.Type.NUMBER;
+			if (na && nb) {
+				int c = Double.compare(Double.parseDouble(a.value.getValue()), Double.parseDouble(b.value.getValue()));
+				return c != 0 ? c : a.value.getValue().compareTo(b.value.getValue());
+			}
+			if (na != nb) {
+				return na ? -1 : 1;
+			}
+			return a.value.getValue().compareTo(b.value.getValue());
+		}
+	};
+
+	private static final class Literal {
+		final ZConstant value;
+		final String text;
+
+		Literal(ZConstant value, String text) {
+			this.value = value;
+			this.text = text;
+		}
+	}
+
+	private final int options;
+	private final ZCharSequenceStream stream = new ZCharSequenceStream("");
+	private final ZqlJJParserTokenManager tokens = new ZqlJJParserTokenManager(stream);
+	private final ArrayDeque<Token> pending = new ArrayDeque<Token>();
+	private final StringBuilder out = new StringBuilder(256);
+	private final long[] hash = new long[2];
+
+	private List<ZConstant> params;
+	private int last;
+
+	/**
+	 * Create a normalizer that replaces literals by placeholders.
+	 */
+	public ZNormalizer() {
+		this(REPLACE_LITERALS);
+	}
+
+	/**
+	 * Create a normalizer.
+	 *
+	 * @param options
+	 *            A combination of REPLACE_LITERALS and SORT_IN_LISTS.
+	 */
+	public ZNormalizer(int options) {
+		this.options = options;
+	}
+
+	/**
+	 * Normalize an SQL text: keywords are upper-cased, comments are removed, white spaces are reduced to single
+	 * spaces between tokens, and (depending on the options) literals are replaced by placeholders and IN lists are
+	 * sorted. Identifiers are left unchanged.
+	 *
+	 * @param sql
+	 *            An SQL text (one or more statements, or an expression).
+	 * @return The normalized text, its fingerprint and the extracted literals.
+	 * @throws ParseException
+	 *             If the text contains a lexical error.
+	 */
+	public ZNormalizedSql normalize(CharSequence sql) throws ParseException {
+		stream.reset(sql);
+		tokens.ReInit(stream);
+		pending.clear();
+		out.setLength(0);
+		params = new ArrayList<ZConstant>();
+		last = -1;
+
+		try {
+			Token t;
+			while ((t = next()).kind != EOF) {
+				if (t.kind == K_IN && peek().kind == OPEN) {
+					emit(t);
+					inList();
+				} else if ((t.kind == PLUS || t.kind == MINUS) && !isOperand(last) && peek().kind == S_NUMBER) {
+					Token n = next();
+					literal(new Literal(new ZConstant(t.image + n.image, ZConstant.Type.NUMBER), t.image + n.image));
+				} else if (t.kind == S_NUMBER || t.kind == S_CHAR_LITERAL) {
+					literal(toLiteral(t));
+				} else {
+					emit(t);
+				}
+			}
+		} catch (TokenMgrError e) {
+			throw new ParseException(e.getMessage());
+		} finally {
+			stream.reset("");
+		}
+
+		String s = out.toString();
+		ZHash.hash128(s, hash);
+		return new ZNormalizedSql(s, params, hash[0], hash[1]);
+	}
+
+	/**
+	 * Normalize an IN (...) list, with the current token on "(".
+	 */
+	private void inList() {
+		List<Token> read = new ArrayList<Token>();
+		List<Literal> values = new ArrayList<Literal>();
+
+		read.add(next()); // "("
+		for (;;) {
+			Token t = next();
+			read.add(t);
+			Literal l;
+			if ((t.kind == PLUS || t.kind == MINUS) && peek().kind == S_NUMBER) {
+				Token n = next();
+				read.add(n);
+				l = new Literal(new ZConstant(t.image + n.image, ZConstant.Type.NUMBER), t.image + n.image);
+			} else if (t.kind == S_NUMBER || t.kind == S_CHAR_LITERAL) {
+				l = toLiteral(t);
+			} else {
+				break;
+			}
+			values.add(l);
+
+			t = next();
+			read.add(t);
+			if (t.kind == CLOSE) {
+				if ((options & SORT_IN_LISTS) != 0) {
+					Collections.sort(values, LITERAL_ORDER);
+				}
+				emit(read.get(0));
+				for (int i = 0; i < values.size(); i++) {
+					if (i > 0) {
+						emitText(",", COMMA);
+					}
+					literal(values.get(i));
+				}
+				emit(t);
+				return;
+			} else if (t.kind != COMMA) {
+				break;
+			}
+		}
+		// Not a list of literals: normalize the tokens one by one
+		for (int i = read.size() - 1; i > 0; i--) {
+			pending.addFirst(read.get(i));
+		}
+		emit(read.get(0));
+	}
+
+	private Literal toLiteral(Token t) {
+		if (t.kind == S_NUMBER) {
+			return new Literal(new ZConstant(t.image, ZConstant.Type.NUMBER), t.image);
+		}
+		String s = t.image;
+		return new Literal(new ZConstant(s.substring(1, s.length() - 1), ZConstant.Type.STRING), s);
+	}
+
+	private void literal(Literal l) {
+		if ((options & REPLACE_LITERALS) != 0) {
+			params.add(l.value);
+			emitText("?", QUESTION);
+		} else {
+			emitText(l.text, S_NUMBER);
+		}
+	}
+
+	private void emit(Token t) {
+		String img = IMAGES[t.kind];
+		emitText(img != null ? img : t.image, t.kind);
+	}
+
+	private void emitText(String s, int kind) {
+		if (out.length() > 0 && last != OPEN && last != DOT && kind != COMMA && kind != CLOSE && kind != DOT
+				&& kind != DOT_STAR && kind != SEMICOLON && !(kind == OPEN && isFunction(last))) {
+			out.append(' ');
+		}
+		out.append(s);
+		last = kind;
+	}
+
+	private static boolean isFunction(int kind) {
+		return kind == S_IDENTIFIER || kind == S_QUOTED_IDENTIFIER || kind == K_COUNT || kind == K_SUM
+				|| kind == K_AVG || kind == K_MAX || kind == K_MIN;
+	}
+
+	private static boolean isOperand(int kind) {
+		return kind == S_NUMBER || kind == S_CHAR_LITERAL || kind == S_IDENTIFIER || kind == S_QUOTED_IDENTIFIER
+				|| kind == S_BIND || kind == CLOSE || kind == QUESTION || kind == K_NULL;
+	}
+
+	private Token next() {
+		Token t = pending.pollFirst();
+		return t != null ? t : tokens.getNextToken();
+	}
+
+	private Token peek() {
+		Token t = pending.peekFirst();
+		if (t == null) {
+			t = tokens.getNextToken();
+			pending.addFirst(t);
+		}
+		return t;
+	}
+
+	private static int kind(String image) {
+		for (int i = 0; i < tokenImage.length; i++) {
+			if (tokenImage[i].equals(image)) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("ZNormalizer: no token " + image);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ZOperator: the operators of SQL expressions (see ZExpression.getOpcode()).<br>
+ * Operators are recognized regardless of their case; the different spellings of an operator (like "!=" and "<>") have
+ * the same opcode. Custom functions have the FUNCTION opcode.
+ */
+public enum ZOperator {
+	AND("AND"), OR("OR"), NOT("NOT"),
+
+	EQ("="), NE("!=", "<>", "#"), LT("<"), LE("<="), GT(">"), GE(">="),
+
+	PLUS("+"), MINUS("-"), TIMES("*"), DIVIDE("/"), POWER("**"), CONCAT("||"),
+
+	LIKE("LIKE"), NOT_LIKE("NOT LIKE"), IN("IN"), NOT_IN("NOT IN"), BETWEEN("BETWEEN"), NOT_BETWEEN("NOT BETWEEN"),
+	IS_NULL("IS NULL"), IS_NOT_NULL("IS NOT NULL"), EXISTS("EXISTS"), ANY("ANY"), ALL("ALL"), PRIOR("PRIOR"),
+
+	UNION("UNION"), INTERSECT("INTERSECT"), SET_MINUS("MINUS"),
+
+	/**
+	 * A list of values: (a, b, c)
+	 */
+	LIST(","),
+
+	/**
+	 * A prepared statement parameter: ?
+	 */
+	PARAMETER("?"),
+
+	SUM("SUM"), AVG("AVG"), MAX("MAX"), MIN("MIN"), COUNT("COUNT"),
+
+	/**
+	 * Any other operator (custom functions)
+	 */
+	FUNCTION();
+
+	private static final Map<String, ZOperator> SYMBOLS = new HashMap<String, ZOperator>();
+	static {
+		for (ZOperator o : values()) {
+			for (String s : o.symbols) {
+				SYMBOLS.put(s, o);
+			}
+		}
+	}
+
+	private final String[] symbols;
+
+	private ZOperator(String... symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * @return The operator symbol, in upper case (null for FUNCTION).
+	 */
+	public String getSymbol() {
+		return symbols.length > 0 ? symbols[0] : null;
+	}
+
+	/**
+	 * @return true for the SUM, AVG, MAX, MIN and COUNT aggregate functions.
+	 */
+	public boolean isAggregate() {
+		return this == SUM || this == AVG || this == MAX || this == MIN || this == COUNT;
+	}
+
+	/**
+	 * Get the opcode of an operator.
+	 *
+	 * @param op
+	 *            An operator, in any case (like "and", "<>" or "NOT IN")
+	 * @return The opcode, FUNCTION if the operator is not a standard SQL operator.
+	 */
+	public static ZOperator of(String op) {
+		if (op == null) {
+			return FUNCTION;
+		}
+		ZOperator o = SYMBOLS.get(op);
+		if (o == null) {
+			o = SYMBOLS.get(op.toUpperCase(Locale.ROOT));
+		}
+		return o == null ? FUNCTION : o;
+	}
+
+	/**
+	 * Get the shared instance of an operator string.
+	 *
+	 * @param op
+	 *            An operator
+	 * @return A string equal to op: the symbol of its opcode for standard operators, an interned string otherwise.
+	 */
+	static String canonical(String op, ZOperator o) {
+		if (op == null) {
+			return null;
+		}
+		for (String s : o.symbols) {
+			if (s.equals(op)) {
+				return s;
+			}
+		}
+		return op.intern();
+	}
+}
@@ -17,6 +17,8 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
+
 /**
  * An SQL query ORDER BY clause.
  */
@@ -58,7 +60,17 @@ public class ZOrderBy implements java.io.Serializable {
 		return exp;
 	}
 
+	/**
+	 * Write the SQL text of this item (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
 	public String toString() {
-		return exp.toString() + " " + (asc ? "ASC" : "DESC");
+		return ZSqlWriter.format(this);
 	}
 }
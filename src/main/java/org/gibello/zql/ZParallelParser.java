@@ -0,0 +1,339 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ZParallelParser: parses large SQL scripts on several cores.<br>
+ * Statement boundaries are first found by a ZStatementSplitter (a fast lexical scan); the statements are then parsed
+ * in parallel on a ForkJoinPool, each worker using a parser from the ZqlParsers pool. Statements are returned in
+ * source order, and parsing stops at the first EXIT or QUIT statement, as with ZqlParser.readStatements().
+ */
+public class ZParallelParser {
+
+	private static final int DEFAULT_BATCH = 64;
+	private static final int FILE_WINDOW = 256 * 1024 * 1024;
+
+	private static ForkJoinPool defaultPool = null;
+
+	private final ForkJoinPool pool;
+	private final int batchSize;
+
+	/**
+	 * Create a parallel parser that uses a shared pool with one thread per core.
+	 */
+	public ZParallelParser() {
+		this(getDefaultPool(), DEFAULT_BATCH);
+	}
+
+	/**
+	 * Create a parallel parser.
+	 *
+	 * @param pool
+	 *            The pool on which statements are parsed
+	 * @param batchSize
+	 *            The number of consecutive statements parsed by one task
+	 */
+	public ZParallelParser(ForkJoinPool pool, int batchSize) {
+		if (pool == null || batchSize <= 0) {
+			throw new IllegalArgumentException("ZParallelParser: null pool or bad batch size");
+		}
+		this.pool = pool;
+		this.batchSize = batchSize;
+	}
+
+	private static synchronized ForkJoinPool getDefaultPool() {
+		if (defaultPool == null) {
+			defaultPool = new ForkJoinPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Parse all the statements of an SQL script.
+	 *
+	 * @param script
+	 *            SQL statements
+	 * @return The statements, in source order.
+	 */
+	public List<ZStatement> parse(CharSequence script) throws ParseException {
+		Ranges r = new Ranges();
+		ZStatementSplitter splitter = new ZStatementSplitter(script);
+		split(splitter, 0, script.length(), true, r);
+
+		ZStatement[] res = new ZStatement[r.count];
+		int n = run(new CharTask(script, r, res, 0, r.count), r, 0);
+		return new ArrayList<ZStatement>(Arrays.asList(res).subList(0, n));
+	}
+
+	/**
+	 * Parse all the statements of an SQL script file. The file is memory-mapped.
+	 *
+	 * @param f
+	 *            The script file
+	 * @param cs
+	 *            The file encoding: must be ASCII-compatible (UTF-8, ISO-8859-x...)
+	 * @return The statements, in source order.
+	 */
+	public List<ZStatement> parse(File f, Charset cs) throws IOException, ParseException {
+		List<ZStatement> ret = new ArrayList<ZStatement>();
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			long pos = 0;
+			int window = FILE_WINDOW;
+			ZStatementSplitter splitter = new ZStatementSplitter((CharSequence) "");
+
+			while (pos < size) {
+				int len = (int) Math.min(window, size - pos);
+				boolean eof = pos + len >= size;
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				splitter.reset(buf);
+
+				Ranges r = new Ranges();
+				int next = split(splitter, 0, len, eof, r);
+				if (r.count == 0 && next < len) {
+					// A single statement does not fit in the window
+					if (window == Integer.MAX_VALUE) {
+						throw new IOException("ZParallelParser: statement at offset " + pos + " is too large");
+					}
+					window = (int) Math.min(Integer.MAX_VALUE, window * 2L);
+					continue;
+				}
+
+				ZStatement[] res = new ZStatement[r.count];
+				int n = run(new ByteTask(buf, cs, r, res, 0, r.count), r, pos);
+				ret.addAll(Arrays.asList(res).subList(0, n));
+				if (n < r.count) {
+					break; // EXIT or QUIT
+				}
+				pos += next;
+			}
+		} finally {
+			file.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Find the statement boundaries between two indexes.
+	 *
+	 * @return The index where the next statement starts (to if all the input has been split).
+	 */
+	private static int split(ZStatementSplitter splitter, int from, int to, boolean eof, Ranges r) {
+		int pos = from;
+		while (pos < to) {
+			int start = splitter.skipBlank(pos, to, eof);
+			if (start == ZStatementSplitter.MORE_INPUT) {
+				return pos;
+			}
+			if (start >= to) {
+				return to;
+			}
+			int end = splitter.findEnd(start, to, eof);
+			if (end == ZStatementSplitter.MORE_INPUT) {
+				return pos;
+			}
+			r.add(start, end);
+			pos = end;
+		}
+		return pos;
+	}
+
+	/**
+	 * Run a parsing task, and rethrow the first parse error (in source order).
+	 *
+	 * @return The number of statements before the first EXIT or QUIT.
+	 */
+	private int run(ParseTask task, Ranges r, long base) throws ParseException {
+		pool.invoke(task);
+		int stop = task.stop.get();
+		if (task.error != null && task.errorIndex == stop) {
+			ParseException e = new ParseException("Statement at offset " + (base + r.starts[stop]) + ": "
+					+ task.error.getMessage());
+			e.initCause(task.error);
+			throw e;
+		}
+		return stop;
+	}
+
+	/**
+	 * Start/end indexes of statements.
+	 */
+	private static final class Ranges {
+		int[] starts = new int[1024];
+		int[] ends = new int[1024];
+		int count = 0;
+
+		void add(int start, int end) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+	}
+
+	/**
+	 * Parses the statements of a range of indexes, splitting the range in halves until it is small enough.
+	 */
+	private abstract class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Ranges ranges;
+		final ZStatement[] results;
+		final int lo;
+		final int hi;
+
+		// Index of the first failed or EXIT statement, shared by all subtasks
+		final AtomicInteger stop;
+		volatile ParseException error = null;
+		volatile int errorIndex = -1;
+		final ParseTask root;
+
+		ParseTask(Ranges ranges, ZStatement[] results, int lo, int hi, ParseTask root) {
+			this.ranges = ranges;
+			this.results = results;
+			this.lo = lo;
+			this.hi = hi;
+			this.root = (root == null ? this : root);
+			this.stop = (root == null ? new AtomicInteger(ranges.count) : root.stop);
+		}
+
+		abstract ParseTask subTask(int lo, int hi);
+
+		abstract void init(ZqlParser p, int i) throws CharacterCodingException;
+
+		protected void compute() {
+			if (hi - lo > batchSize) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(subTask(lo, mid), subTask(mid, hi));
+				return;
+			}
+			ZqlParser p = ZqlParsers.acquire();
+			try {
+				for (int i = lo; i < hi && i < stop.get(); i++) {
+					try {
+						init(p, i);
+						results[i] = p.readStatement();
+						if (results[i] == null) {
+							stopAt(i, null);
+						}
+					} catch (ParseException e) {
+						stopAt(i, e);
+					} catch (CharacterCodingException e) {
+						ParseException pe = new ParseException("Bad character encoding: " + e.getMessage());
+						pe.initCause(e);
+						stopAt(i, pe);
+					}
+				}
+			} finally {
+				ZqlParsers.release(p);
+			}
+		}
+
+		private void stopAt(int i, ParseException e) {
+			synchronized (root) {
+				int s = stop.get();
+				if (i < s) {
+					stop.set(i);
+					root.error = e;
+					root.errorIndex = (e == null ? -1 : i);
+				}
+			}
+		}
+	}
+
+	private final class CharTask extends ParseTask {
+		private static final long serialVersionUID = 1L;
+
+		private final CharSequence script;
+
+		CharTask(CharSequence script, Ranges ranges, ZStatement[] results, int lo, int hi) {
+			this(script, ranges, results, lo, hi, null);
+		}
+
+		private CharTask(CharSequence script, Ranges ranges, ZStatement[] results, int lo, int hi, ParseTask root) {
+			super(ranges, results, lo, hi, root);
+			this.script = script;
+		}
+
+		ParseTask subTask(int l, int h) {
+			return new CharTask(script, ranges, results, l, h, root);
+		}
+
+		void init(ZqlParser p, int i) {
+			p.initParser(script, ranges.starts[i], ranges.ends[i]);
+		}
+	}
+
+	private final class ByteTask extends ParseTask {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer buf;
+		private final Charset cs;
+		private CharsetDecoder decoder = null;
+
+		ByteTask(ByteBuffer buf, Charset cs, Ranges ranges, ZStatement[] results, int lo, int hi) {
+			this(buf, cs, ranges, results, lo, hi, null);
+		}
+
+		private ByteTask(ByteBuffer buf, Charset cs, Ranges ranges, ZStatement[] results, int lo, int hi,
+				ParseTask root) {
+			super(ranges, results, lo, hi, root);
+			this.buf = buf;
+			this.cs = cs;
+		}
+
+		ParseTask subTask(int l, int h) {
+			return new ByteTask(buf, cs, ranges, results, l, h, root);
+		}
+
+		void init(ZqlParser p, int i) throws CharacterCodingException {
+			if (decoder == null) {
+				decoder = cs.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT);
+			}
+			ByteBuffer in = buf.duplicate();
+			in.limit(ranges.ends[i]);
+			in.position(ranges.starts[i]);
+			CharBuffer chars = decoder.decode(in);
+			p.initParser(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZPreparedTemplate: a statement (or expression) parsed once, and executed many times with different parameter
+ * values.<br>
+ * The placeholders of the statement are numbered from 1, in the order of the SQL text: each "?" is a new parameter,
+ * and all the occurrences of a ":name" placeholder are the same parameter. Their values are given by a ZBindings
+ * object, that evaluators (like ZEval) use to resolve the placeholders of the tree: the tree itself is never copied
+ * nor modified.<br>
+ * A template is immutable, and can be shared between threads (each thread using its own bindings).
+ */
+public class ZPreparedTemplate {
+
+	private final ZStatement statement;
+	private final ZExp expression;
+	// Placeholder node -> parameter index (placeholders are compared by identity)
+	private final Map<ZExp, Integer> index = new IdentityHashMap<ZExp, Integer>();
+	private final Map<String, Integer> byName = new HashMap<String, Integer>();
+	private final List<String> names;
+
+	/**
+	 * Create a template from a parsed statement. The statement must not be modified afterwards.
+	 *
+	 * @param st
+	 *            A statement, with "?" or ":name" placeholders.
+	 */
+	public ZPreparedTemplate(ZStatement st) {
+		statement = st;
+		expression = null;
+		names = collect(st);
+	}
+
+	/**
+	 * Create a template from a parsed expression (like a WHERE clause). The expression must not be modified
+	 * afterwards.
+	 *
+	 * @param e
+	 *            An expression, with "?" or ":name" placeholders.
+	 */
+	public ZPreparedTemplate(ZExp e) {
+		statement = null;
+		expression = e;
+		names = collect(e);
+	}
+
+	/**
+	 * Parse a statement template.
+	 *
+	 * @param sql
+	 *            The SQL text of one statement.
+	 * @return The template.
+	 */
+	public static ZPreparedTemplate parse(CharSequence sql) throws ParseException {
+		return new ZPreparedTemplate(ZqlParsers.parse(sql));
+	}
+
+	/**
+	 * Parse an expression template.
+	 *
+	 * @param sql
+	 *            The SQL text of an expression.
+	 * @return The template.
+	 */
+	public static ZPreparedTemplate parseExpression(CharSequence sql) throws ParseException {
+		return new ZPreparedTemplate(ZqlParsers.parseExpression(sql));
+	}
+
+	private List<String> collect(Object root) {
+		final List<String> l = new ArrayList<String>();
+		ZVisitor v = new ZVisitor() {
+			public boolean visit(ZExpression e) {
+				if (e.getOpcode() == ZOperator.PARAMETER && !index.containsKey(e)) {
+					l.add(null);
+					index.put(e, l.size());
+				}
+				return true;
+			}
+
+			public void visit(ZConstant c) {
+				if (c.getType() == ZConstant.Type.BIND && !index.containsKey(c)) {
+					String name = c.getValue().substring(1);
+					Integer i = byName.get(name);
+					if (i == null) {
+						l.add(name);
+						i = l.size();
+						byName.put(name, i);
+					}
+					index.put(c, i);
+				}
+			}
+		};
+		if (root instanceof ZStatement) {
+			v.walk((ZStatement) root);
+		} else {
+			v.walk((ZExp) root);
+		}
+		return Collections.unmodifiableList(l);
+	}
+
+	/**
+	 * @return The statement (null if this is an expression template).
+	 */
+	public ZStatement getStatement() {
+		return statement;
+	}
+
+	/**
+	 * @return The expression (null if this is a statement template).
+	 */
+	public ZExp getExpression() {
+		return expression;
+	}
+
+	/**
+	 * @return The number of parameters.
+	 */
+	public int getParameterCount() {
+		return names.size();
+	}
+
+	/**
+	 * @return The names of the parameters, in parameter order (null for "?" parameters).
+	 */
+	public List<String> getParameterNames() {
+		return names;
+	}
+
+	/**
+	 * Get the parameter of a placeholder.
+	 *
+	 * @param placeholder
+	 *            A node of the tree: a "?" expression, or a :name constant
+	 * @return The parameter index (starting at 1), or 0 if the node is not a placeholder of this template.
+	 */
+	public int indexOf(ZExp placeholder) {
+		Integer i = index.get(placeholder);
+		return i == null ? 0 : i;
+	}
+
+	/**
+	 * Get the parameter of a named placeholder.
+	 *
+	 * @param name
+	 *            The placeholder name (without the leading ':')
+	 * @return The parameter index (starting at 1), or 0 if there's no such parameter.
+	 */
+	public int indexOf(String name) {
+		Integer i = byName.get(name);
+		return i == null ? 0 : i;
+	}
+
+	/**
+	 * @return New bindings for this template, with no bound value.
+	 */
+	public ZBindings newBindings() {
+		return new ZBindings(this);
+	}
+
+	/**
+	 * Bind all the parameters.
+	 *
+	 * @param values
+	 *            The parameter values, in parameter order (null for SQL NULL).
+	 * @return The bindings.
+	 */
+	public ZBindings bind(Object... values) {
+		if (values.length != names.size()) {
+			throw new IllegalArgumentException("ZPreparedTemplate: " + names.size() + " parameters expected, "
+					+ values.length + " given");
+		}
+		ZBindings b = new ZBindings(this);
+		for (int i = 0; i < values.length; i++) {
+			b.setObject(i + 1, values[i]);
+		}
+		return b;
+	}
+
+	public String toString() {
+		return String.valueOf(statement != null ? statement : expression);
+	}
+}
@@ -17,6 +17,7 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -47,7 +48,7 @@ public class ZQuery implements ZStatement, ZExp {
 	 *            A vector of ZSelectItem objects
 	 */
 	public void addSelect(List<ZSelectItem> s) {
-		this.select = s;
+		this.select = ZUtils.trim(s);
 	}
 
 	/**
@@ -57,7 +58,7 @@ public class ZQuery implements ZStatement, ZExp {
 	 *            a Vector of ZFromItem objects
 	 */
 	public void addFrom(List<ZFromItem> f) {
-		from = f;
+		from = ZUtils.trim(f);
 	}
 
 	/**
@@ -97,7 +98,7 @@ public class ZQuery implements ZStatement, ZExp {
 	 *            A vector of ZOrderBy objects
 	 */
 	public void addOrderBy(List<ZOrderBy> v) {
-		orderby = v;
+		orderby = ZUtils.trim(v);
 	}
 
 	/**
@@ -177,43 +178,32 @@ public class ZQuery implements ZStatement, ZExp {
 		this.forupdate = forupdate;
 	}
 
-	public String toString() {
-		String ret = "select ";
-		if (distinct) {
-			ret += "distinct ";
-		}
-
-		int i;
-		ret += select.get(0).toString();
-		for (i = 1; i < select.size(); i++) {
-			ret += ", " + select.get(i).toString();
-		}
-
-		ret += " from " + from.get(0).toString();
-		for (i = 1; i < from.size(); i++) {
-			ret += ", " + from.get(i).toString();
-		}
-
-		if (where != null) {
-			ret += " where " + where.toString();
-		}
-		if (groupby != null) {
-			ret += " " + groupby.toString();
-		}
-		if (setclause != null) {
-			ret += " " + setclause.toString();
-		}
-		if (orderby != null) {
-			ret += " order by ";
-			ret += orderby.get(0).toString();
-			for (i = 1; i < orderby.size(); i++) {
-				ret += ", " + orderby.get(i).toString();
+	/**
+	 * Traverse this query with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		if (v.visit(this)) {
+			for (Object n : ZVisitor.children(this)) {
+				ZVisitor.accept(n, v);
 			}
 		}
-		if (forupdate) {
-			ret += " for update";
-		}
+		v.endVisit(this);
+	}
 
-		return ret;
+	/**
+	 * Write the SQL text of this query (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
 }
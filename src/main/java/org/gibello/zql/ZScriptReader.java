@@ -0,0 +1,299 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * ZScriptReader: reads the SQL statements of a (possibly huge) script file one at a time.<br>
+ * The file is memory-mapped window by window, and only the statement being parsed is decoded and held in memory: heap
+ * usage is bounded by the largest statement, whatever the file size.<br>
+ * Each statement comes with its byte offsets in the file, so that an interrupted run can be resumed with
+ * ZScriptReader(file, offset).
+ */
+public class ZScriptReader implements Closeable, Iterable<ZStatement> {
+
+	/**
+	 * Receives the statements read by read(Handler).
+	 */
+	public static interface Handler {
+		/**
+		 * @param st
+		 *            An SQL statement
+		 * @param start
+		 *            The offset of the statement's first byte in the file
+		 * @param end
+		 *            The offset of the byte that follows the statement
+		 * @return true to continue reading, false to stop
+		 */
+		boolean statement(ZStatement st, long start, long end);
+	}
+
+	private static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final CharsetDecoder decoder;
+	private final ZqlParser parser = new ZqlParser();
+	private final ZStatementSplitter splitter = new ZStatementSplitter((CharSequence) "");
+
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+	private int windowSize;
+	private CharBuffer chars = CharBuffer.allocate(1024);
+
+	private long position;
+	private long statementStart = -1;
+	private long statementEnd = -1;
+
+	/**
+	 * Read an UTF-8 SQL script.
+	 */
+	public ZScriptReader(File f) throws IOException {
+		this(f, 0, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Read an UTF-8 SQL script, starting at a given byte offset (typically, a value returned by getPosition()).
+	 */
+	public ZScriptReader(File f, long offset) throws IOException {
+		this(f, offset, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Read an SQL script, starting at a given byte offset.
+	 *
+	 * @param f
+	 *            The script file
+	 * @param offset
+	 *            The byte offset where reading starts
+	 * @param cs
+	 *            The script encoding: must be ASCII-compatible (UTF-8, ISO-8859-x...).
+	 */
+	public ZScriptReader(File f, long offset, Charset cs) throws IOException {
+		this(f, offset, cs, DEFAULT_WINDOW);
+	}
+
+	ZScriptReader(File f, long offset, Charset cs, int windowSize) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		size = channel.size();
+		if (offset < 0 || offset > size) {
+			file.close();
+			throw new IOException("ZScriptReader: offset " + offset + " out of file bounds");
+		}
+		position = offset;
+		this.windowSize = windowSize;
+		decoder = cs.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	/**
+	 * Parse the next SQL statement of the script.<br>
+	 * If the statement can't be parsed, a ParseException is thrown, getStatementStart() and getStatementEnd() tell
+	 * where the statement is, and the next call reads the following statement.
+	 *
+	 * @return An SQL statement, or null if there's no more statement (end of file, or EXIT/QUIT).
+	 */
+	public ZStatement readStatement() throws IOException, ParseException {
+		for (;;) {
+			if (position >= size) {
+				return null;
+			}
+			mapWindow(position);
+
+			boolean eof = windowStart + window.limit() >= size;
+			int from = (int) (position - windowStart);
+			int to = window.limit();
+
+			int start = splitter.skipBlank(from, to, eof);
+			if (start == ZStatementSplitter.MORE_INPUT) {
+				growWindow();
+				continue;
+			}
+			if (start >= to) {
+				position = windowStart + to;
+				continue;
+			}
+			int end = splitter.findEnd(start, to, eof);
+			if (end == ZStatementSplitter.MORE_INPUT) {
+				growWindow();
+				continue;
+			}
+
+			statementStart = windowStart + start;
+			statementEnd = windowStart + end;
+			position = statementEnd;
+
+			decode(start, end);
+			parser.initParser(chars.array(), 0, chars.position());
+			ZStatement st = parser.readStatement();
+			if (st == null) {
+				position = size;
+			}
+			return st;
+		}
+	}
+
+	/**
+	 * Parse all the remaining statements, and give them to a handler.
+	 *
+	 * @param h
+	 *            The statement handler
+	 * @return The offset where reading stopped (that may be used to resume reading).
+	 */
+	public long read(Handler h) throws IOException, ParseException {
+		ZStatement st;
+		while ((st = readStatement()) != null) {
+			if (!h.statement(st, statementStart, statementEnd)) {
+				break;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Iterate over the remaining statements.<br>
+	 * IOException and ParseException are wrapped into an IllegalStateException.
+	 */
+	public Iterator<ZStatement> iterator() {
+		return new Iterator<ZStatement>() {
+			private ZStatement next = null;
+			private boolean done = false;
+
+			public boolean hasNext() {
+				if (next == null && !done) {
+					try {
+						next = readStatement();
+					} catch (IOException e) {
+						throw new IllegalStateException("ZScriptReader: " + e.getMessage(), e);
+					} catch (ParseException e) {
+						throw new IllegalStateException("ZScriptReader: parse error at offset " + statementStart
+								+ ": " + e.getMessage(), e);
+					}
+					done = (next == null);
+				}
+				return next != null;
+			}
+
+			public ZStatement next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ZStatement st = next;
+				next = null;
+				return st;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return The byte offset where the next statement will be read (to resume reading after the last statement).
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return The byte offset of the last statement read (-1 if none).
+	 */
+	public long getStatementStart() {
+		return statementStart;
+	}
+
+	/**
+	 * @return The byte offset that follows the last statement read (-1 if none).
+	 */
+	public long getStatementEnd() {
+		return statementEnd;
+	}
+
+	/**
+	 * @return The size of the script file, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+
+	private void mapWindow(long pos) throws IOException {
+		if (window != null && pos >= windowStart && pos - windowStart < window.limit()) {
+			return;
+		}
+		long len = Math.min((long) windowSize, size - pos);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+		windowStart = pos;
+		splitter.reset(window);
+	}
+
+	// The statement at position does not fit in the current window: remap the window at position, or make it larger
+	private void growWindow() throws IOException {
+		window = null;
+		if (windowStart < position) {
+			return;
+		}
+		if (windowSize == Integer.MAX_VALUE) {
+			throw new IOException("ZScriptReader: statement at offset " + position + " is too large");
+		}
+		windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+	}
+
+	private void decode(int start, int end) throws CharacterCodingException {
+		ByteBuffer in = window.duplicate();
+		in.limit(end);
+		in.position(start);
+
+		int max = (int) Math.ceil((end - start) * (double) decoder.maxCharsPerByte());
+		if (chars.capacity() < max) {
+			chars = CharBuffer.allocate(max);
+		}
+		chars.clear();
+		decoder.reset();
+		CoderResult r = decoder.decode(in, chars, true);
+		if (!r.isUnderflow()) {
+			r.throwException();
+		}
+		r = decoder.flush(chars);
+		if (!r.isUnderflow()) {
+			r.throwException();
+		}
+	}
+}
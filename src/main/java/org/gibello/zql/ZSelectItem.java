@@ -68,6 +68,13 @@ public class ZSelectItem extends ZAliasedName {
 		setStrform(expression.toString());
 	}
 
+	/**
+	 * Initialize the expression, without changing the item name (the name has been restored by the caller).
+	 */
+	void initExpression(ZExp e) {
+		expression = e;
+	}
+
 	/**
 	 * @return true if this item is an SQL expression, false if not. (Example: SELECT a+b, c FROM num; -> a+b is an
 	 *         expression, not c)
@@ -0,0 +1,244 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZSizeEstimator: a diagnostic that estimates the memory used by parsed statements, in bytes, for a 64-bit JVM with
+ * compressed references and compact strings. The result is a model of the object layout, not a measure.<br>
+ * Only the memory that belongs to a statement is counted: interned names (columns, tables, aliases, operators) and
+ * shared constants are not. The estimate is used by ZStatementCache.RETAINED_SIZE, to bound a cache by its memory
+ * footprint.<br>
+ * The main() method is an accounting check of the estimate: it measures the heap retained per cached statement, and
+ * compares it with the mean estimate.
+ */
+final class ZSizeEstimator {
+
+	private static final int HEADER = 12;
+	private static final int REF = 4;
+
+	private ZSizeEstimator() {
+	}
+
+	/**
+	 * Estimate the memory used by a statement.
+	 *
+	 * @param st
+	 *            A statement
+	 * @return The estimated size, in bytes.
+	 */
+	static long estimate(ZStatement st) {
+		Counter c = new Counter();
+		c.walk(st);
+		return c.size;
+	}
+
+	/**
+	 * Estimate the memory used by an expression.
+	 *
+	 * @param exp
+	 *            An expression
+	 * @return The estimated size, in bytes.
+	 */
+	static long estimate(ZExp exp) {
+		Counter c = new Counter();
+		c.walk(exp);
+		return c.size;
+	}
+
+	/**
+	 * Estimate the memory used by a query.
+	 *
+	 * @param q
+	 *            A query
+	 * @return The estimated size, in bytes.
+	 */
+	static long estimate(ZQuery q) {
+		return estimate((ZStatement) q);
+	}
+
+	/**
+	 * Accounting check: parses N distinct statements (4 shapes: SELECT with joins, IN list and sub-query, INSERT,
+	 * UPDATE and DELETE) into a ZStatementCache, and prints the heap retained per cached statement (measured after
+	 * garbage collections, before and after the series) and the mean estimate. The SQL texts are built before the
+	 * first measure: they are not counted. The measure includes the cache entry (about 64 bytes), the estimate does
+	 * not. Run it with a heap large enough for N statements (the default N is 200000).
+	 */
+	public static void main(String[] args) throws ParseException {
+		int n = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+		List<String> sql = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++) {
+			sql.add(statement(i));
+		}
+		ZStatementCache cache = new ZStatementCache(n, Long.MAX_VALUE);
+		ZqlParser p = new ZqlParser();
+		long before = usedHeap();
+		long estimated = 0;
+		for (String s : sql) {
+			ZStatement st = p.parse(s);
+			cache.put(s, st);
+			estimated += estimate(st);
+		}
+		p = null;
+		long after = usedHeap();
+		if (cache.size() != n) {
+			throw new IllegalStateException("ZSizeEstimator: " + cache.size() + " statements cached, " + n
+					+ " expected");
+		}
+		System.out.println(n + " statements");
+		System.out.println("measured:  " + (after - before) / n + " bytes per cached statement");
+		System.out.println("estimated: " + estimated / n + " bytes per statement");
+	}
+
+	private static String statement(int i) {
+		switch (i & 3) {
+		case 0:
+			return "SELECT c.id, c.name, o.total FROM customers c, orders o WHERE c.id = o.customer_id AND o.total > "
+					+ i + " AND c.region IN ('north', 'south', 'east') ORDER BY o.total DESC;";
+		case 1:
+			return "SELECT name, price * 1.2 AS gross FROM products WHERE id IN (SELECT product_id FROM stock"
+					+ " WHERE quantity < " + i + ") AND name LIKE 'a%';";
+		case 2:
+			return "INSERT INTO events (id, kind, payload) VALUES (" + i + ", 'click', 'button');";
+		default:
+			return "UPDATE accounts SET balance = balance - " + i + ", updated = 1 WHERE id = " + (i >> 2)
+					+ " AND balance >= " + i + ";";
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime r = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, r.totalMemory() - r.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Adds up the sizes of the nodes of a tree.
+	 */
+	private static final class Counter extends ZVisitor {
+		long size = 0;
+
+		public boolean visit(ZExpression e) {
+			// A frozen expression holds its operands through an unmodifiable wrapper
+			size += object(4) + list(e.getOperands()) + (e.isFrozen() ? object(2) : 0);
+			return true;
+		}
+
+		public void visit(ZConstant c) {
+			if (c.isShared()) {
+				return;
+			}
+			size += object(2);
+			if (c.getType() != ZConstant.Type.COLUMNNAME) {
+				size += string(c.getValue());
+			}
+		}
+
+		public boolean visit(ZQuery q) {
+			size += object(6) + list(q.getSelect()) + list(q.getFrom()) + list(q.getOrderBy());
+			if (q.getGroupBy() != null) {
+				size += object(2) + list(q.getGroupBy().getGroupBy());
+			}
+			if (q.getOrderBy() != null) {
+				size += q.getOrderBy().size() * object(2);
+			}
+			return true;
+		}
+
+		public boolean visit(ZSelectItem item) {
+			size += object(8);
+			if (item.isExpression()) {
+				size += string(item.getStrform());
+			}
+			return true;
+		}
+
+		public void visit(ZFromItem item) {
+			size += object(6);
+		}
+
+		public boolean visit(ZInsert ins) {
+			size += object(3) + list(ins.getColumns());
+			return true;
+		}
+
+		public boolean visit(ZUpdate upd) {
+			size += object(5);
+			Map<String, ZExp> set = upd.getSet();
+			if (set != null) {
+				// HashMap, table and entries
+				size += object(6) + array(Integer.highestOneBit(Math.max(1, set.size() * 4 / 3)) * 2) + set.size()
+						* object(4);
+				if (upd.getColumnUpdateName(1) != null) {
+					size += object(2) + array(set.size());
+				}
+			}
+			return true;
+		}
+
+		public boolean visit(ZDelete del) {
+			size += object(2);
+			return true;
+		}
+
+		public void visit(ZLockTable lck) {
+			size += object(3) + list(lck.getTables());
+		}
+
+		public void visit(ZTransactStmt t) {
+			size += object(3);
+		}
+	}
+
+	private static long object(int fields) {
+		return align(HEADER + fields * REF);
+	}
+
+	private static long array(int length) {
+		return align(HEADER + 4 + length * REF);
+	}
+
+	private static long list(List<?> l) {
+		return l == null ? 0 : object(3) + array(l.size());
+	}
+
+	private static long string(String s) {
+		if (s == null) {
+			return 0;
+		}
+		int bytes = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xFF) {
+				bytes = 2 * s.length();
+				break;
+			}
+		}
+		return object(3) + align(HEADER + 4 + bytes);
+	}
+
+	private static long align(long n) {
+		return (n + 7) & ~7L;
+	}
+}
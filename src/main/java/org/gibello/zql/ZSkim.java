@@ -0,0 +1,94 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ZSkim: the summary of an SQL statement returned by ZSkimmer.skim(): the kind of statement, the tables it refers
+ * to, and whether it is a SELECT ... FOR UPDATE query.
+ */
+public class ZSkim {
+
+	/**
+	 * The kinds of statements.
+	 */
+	public static enum Kind {
+		QUERY(ZQuery.class), INSERT(ZInsert.class), UPDATE(ZUpdate.class), DELETE(ZDelete.class),
+		LOCK_TABLE(ZLockTable.class), TRANSACTION(ZTransactStmt.class);
+
+		private final Class<? extends ZStatement> statementClass;
+
+		private Kind(Class<? extends ZStatement> c) {
+			statementClass = c;
+		}
+
+		/**
+		 * @return The class of the statements of this kind (as returned by ZqlParser.readStatement()).
+		 */
+		public Class<? extends ZStatement> getStatementClass() {
+			return statementClass;
+		}
+	}
+
+	private final Kind kind;
+	private final List<String> tables;
+	private final boolean forUpdate;
+	private final boolean parsed;
+
+	ZSkim(Kind kind, List<String> tables, boolean forUpdate, boolean parsed) {
+		this.kind = kind;
+		this.tables = Collections.unmodifiableList(tables);
+		this.forUpdate = forUpdate;
+		this.parsed = parsed;
+	}
+
+	/**
+	 * @return The kind of statement.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return The tables the statement refers to ([schema.]table, as written in the statement), in order of first
+	 *         appearance and without duplicates.
+	 */
+	public List<String> getTables() {
+		return tables;
+	}
+
+	/**
+	 * @return true if the statement is a SELECT ... FOR UPDATE query.
+	 */
+	public boolean isForUpdate() {
+		return forUpdate;
+	}
+
+	/**
+	 * @return true if the statement has been fully parsed (because it contains sub-queries).
+	 */
+	public boolean isFullyParsed() {
+		return parsed;
+	}
+
+	public String toString() {
+		return kind + " " + tables + (forUpdate ? " FOR UPDATE" : "");
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ZSkimmer: extracts the kind of an SQL statement, the tables it refers to and its FOR UPDATE clause, without
+ * building a syntax tree.<br>
+ * Statements are skimmed on the token stream of the grammar's token manager. The tables of a statement that contains
+ * sub-queries (or set operators like UNION) can't be found reliably that way: such a statement is fully parsed
+ * instead.<br>
+ * Skimming does not validate statements: an invalid statement may be skimmed without error.<br>
+ * A ZSkimmer is not thread-safe (like ZqlParser): use one instance per thread.
+ */
+public class ZSkimmer implements ZqlJJParserConstants {
+
+	private static final int OPEN = kind("\"(\"");
+	private static final int CLOSE = kind("\")\"");
+	private static final int COMMA = kind("\",\"");
+	private static final int DOT = kind("\".\"");
+	private static final int SEMICOLON = kind("\";\"");
+
+	private final ZCharSequenceStream stream = new ZCharSequenceStream("");
+	private final ZqlJJParserTokenManager tokens = new ZqlJJParserTokenManager(stream);
+	private ZqlParser parser = null; // Created by the first full parse
+
+	private Token token;
+	private Token pending; // Pushed back by pushBack()
+	private boolean forUpdate;
+
+	/**
+	 * Skim the first SQL statement of a text.
+	 *
+	 * @param sql
+	 *            The SQL text of a statement.
+	 * @return The statement summary, or null if there's no statement (EXIT or QUIT).
+	 * @throws ParseException
+	 *             If the statement is not recognized, or if it is too malformed to be skimmed.
+	 */
+	public ZSkim skim(CharSequence sql) throws ParseException {
+		stream.reset(sql);
+		tokens.ReInit(stream);
+		token = null;
+		pending = null;
+		ZSkim s;
+		try {
+			s = scan();
+		} catch (TokenMgrError e) {
+			throw new ParseException(e.getMessage());
+		} finally {
+			stream.reset("");
+		}
+		return s != null ? s : parse(sql);
+	}
+
+	/**
+	 * Skim the statement on the token stream.
+	 *
+	 * @return The summary, or null if the statement must be fully parsed.
+	 */
+	private ZSkim scan() throws ParseException {
+		List<String> tables = new ArrayList<String>(4);
+		switch (next()) {
+		case K_COMMIT:
+		case K_ROLLBACK:
+			return new ZSkim(ZSkim.Kind.TRANSACTION, tables, false, false);
+		case K_SET:
+			return next() == K_TRANSACTION ? new ZSkim(ZSkim.Kind.TRANSACTION, tables, false, false) : null;
+		case K_LOCK:
+			expect(K_TABLE);
+			tableList(tables, false);
+			return new ZSkim(ZSkim.Kind.LOCK_TABLE, tables, false, false);
+		case K_DELETE:
+			if (next() != K_FROM) {
+				pushBack();
+			}
+			tables.add(table());
+			return noSubQuery() ? new ZSkim(ZSkim.Kind.DELETE, tables, false, false) : null;
+		case K_UPDATE:
+			tables.add(table());
+			return noSubQuery() ? new ZSkim(ZSkim.Kind.UPDATE, tables, false, false) : null;
+		case K_INSERT:
+			expect(K_INTO);
+			tables.add(table());
+			return query(tables) ? new ZSkim(ZSkim.Kind.INSERT, tables, false, false) : null;
+		case K_SELECT:
+			pushBack();
+			return query(tables) ? new ZSkim(ZSkim.Kind.QUERY, tables, forUpdate, false) : null;
+		default:
+			return null; // EXIT, QUIT, or a syntax error (reported by the parser)
+		}
+	}
+
+	/**
+	 * Skim a query, or the rest of an INSERT statement (that may contain a query).
+	 *
+	 * @return false if the statement must be fully parsed.
+	 */
+	private boolean query(List<String> tables) throws ParseException {
+		forUpdate = false;
+		boolean select = false;
+		int depth = 0;
+		for (;;) {
+			int k = next();
+			if (k == EOF || k == SEMICOLON) {
+				return true;
+			} else if (k == K_SELECT) {
+				if (select || depth > 0) {
+					return false; // Sub-query
+				}
+				select = true;
+			} else if (k == K_UNION || k == K_INTERSECT || k == K_MINUS) {
+				return false;
+			} else if (k == OPEN) {
+				depth++;
+			} else if (k == CLOSE) {
+				depth--;
+			} else if (k == K_FROM && depth == 0 && select) {
+				tableList(tables, true);
+			} else if (k == K_FOR && depth == 0) {
+				if (next() == K_UPDATE) {
+					forUpdate = true;
+				} else {
+					pushBack();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Skim the rest of an UPDATE or DELETE statement: it refers to other tables only through sub-queries.
+	 *
+	 * @return false if the statement must be fully parsed.
+	 */
+	private boolean noSubQuery() {
+		for (;;) {
+			int k = next();
+			if (k == EOF || k == SEMICOLON) {
+				return true;
+			} else if (k == K_SELECT) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Read a list of table references: TableReference [alias] (, TableReference [alias])*
+	 */
+	private void tableList(List<String> tables, boolean aliases) throws ParseException {
+		for (;;) {
+			String t = table();
+			if (!tables.contains(t)) {
+				tables.add(t);
+			}
+			int k = next();
+			if (aliases && k == S_IDENTIFIER) {
+				k = next();
+			}
+			if (k != COMMA) {
+				pushBack();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read a table reference: OracleObjectName [. OracleObjectName]
+	 */
+	private String table() throws ParseException {
+		String name = name();
+		if (next() == DOT) {
+			name = name + "." + name();
+		} else {
+			pushBack();
+		}
+		return ZUtils.intern(name);
+	}
+
+	private String name() throws ParseException {
+		int k = next();
+		if (k != S_IDENTIFIER && k != S_QUOTED_IDENTIFIER) {
+			throw error("a table name");
+		}
+		return token.image;
+	}
+
+	private void expect(int kind) throws ParseException {
+		if (next() != kind) {
+			throw error(tokenImage[kind]);
+		}
+	}
+
+	private ParseException error(String expected) {
+		return new ParseException("Encountered \"" + token.image + "\" at line " + token.beginLine + ", column "
+				+ token.beginColumn + ".\nWas expecting: " + expected);
+	}
+
+	/**
+	 * Read the next token (or the token given back by pushBack()).
+	 *
+	 * @return Its kind.
+	 */
+	private int next() {
+		if (pending != null) {
+			token = pending;
+			pending = null;
+		} else {
+			token = tokens.getNextToken();
+		}
+		return token.kind;
+	}
+
+	/**
+	 * Give back the current token: it will be returned again by next().
+	 */
+	private void pushBack() {
+		pending = token;
+	}
+
+	/**
+	 * Fully parse a statement, and summarize its syntax tree.
+	 */
+	private ZSkim parse(CharSequence sql) throws ParseException {
+		if (parser == null) {
+			parser = new ZqlParser();
+		}
+		parser.initParser(sql);
+		ZStatement st = parser.readStatement();
+		if (st == null) {
+			return null;
+		}
+		final List<String> tables = new ArrayList<String>(4);
+		ZVisitor collector = new ZVisitor() {
+			private void add(String t) {
+				if (t != null && !tables.contains(t)) {
+					tables.add(t);
+				}
+			}
+
+			public void visit(ZFromItem item) {
+				add(item.getSchema() != null ? item.getSchema() + "." + item.getTable() : item.getTable());
+			}
+
+			public boolean visit(ZInsert ins) {
+				add(ins.getTable());
+				return true;
+			}
+
+			public boolean visit(ZUpdate upd) {
+				add(upd.getTable());
+				return true;
+			}
+
+			public boolean visit(ZDelete del) {
+				add(del.getTable());
+				return true;
+			}
+
+			public void visit(ZLockTable lck) {
+				for (String t : lck.getTables()) {
+					add(t);
+				}
+			}
+		};
+		collector.walk(st);
+
+		ZSkim.Kind kind;
+		boolean forUpdate = false;
+		if (st instanceof ZQuery) {
+			kind = ZSkim.Kind.QUERY;
+			forUpdate = ((ZQuery) st).isForUpdate();
+		} else if (st instanceof ZInsert) {
+			kind = ZSkim.Kind.INSERT;
+		} else if (st instanceof ZUpdate) {
+			kind = ZSkim.Kind.UPDATE;
+		} else if (st instanceof ZDelete) {
+			kind = ZSkim.Kind.DELETE;
+		} else if (st instanceof ZLockTable) {
+			kind = ZSkim.Kind.LOCK_TABLE;
+		} else {
+			kind = ZSkim.Kind.TRANSACTION;
+		}
+		return new ZSkim(kind, tables, forUpdate, true);
+	}
+
+	private static int kind(String image) {
+		for (int i = 0; i < tokenImage.length; i++) {
+			if (tokenImage[i].equals(image)) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("ZSkimmer: no token " + image);
+	}
+}
@@ -0,0 +1,623 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ZSqlWriter: writes the SQL text of statements and expressions to an Appendable (a StringBuilder, a Writer...) or to
+ * a ByteBuffer (in UTF-8), in a single pass and without intermediate strings.<br>
+ * In compact mode (the default), the text is the one returned by the toString() methods of the statements; in pretty
+ * mode, each clause starts on a new line, and the clauses of sub-queries are indented.<br>
+ * A ZSqlWriter is not thread-safe.
+ */
+public class ZSqlWriter {
+
+	private static final String INDENT = "  ";
+
+	private final Appendable out;
+	private final boolean pretty;
+	private int depth = 0;
+
+	/**
+	 * Create a compact SQL writer.
+	 *
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public ZSqlWriter(Appendable out) {
+		this(out, false);
+	}
+
+	/**
+	 * Create an SQL writer.
+	 *
+	 * @param out
+	 *            Where the SQL text is written
+	 * @param pretty
+	 *            true to start each clause on a new line, false to write the compact form returned by toString().
+	 */
+	public ZSqlWriter(Appendable out, boolean pretty) {
+		if (out == null) {
+			throw new IllegalArgumentException("ZSqlWriter: null output");
+		}
+		this.out = out;
+		this.pretty = pretty;
+	}
+
+	/**
+	 * Create an SQL writer that encodes the SQL text in UTF-8 into a byte buffer.
+	 *
+	 * @param buf
+	 *            The buffer: a java.nio.BufferOverflowException is thrown if it is too small.
+	 * @param pretty
+	 *            true to start each clause on a new line, false to write the compact form returned by toString().
+	 */
+	public ZSqlWriter(ByteBuffer buf, boolean pretty) {
+		this(new Utf8Output(buf), pretty);
+	}
+
+	/**
+	 * @return true if the writer is in pretty mode.
+	 */
+	public boolean isPretty() {
+		return pretty;
+	}
+
+	/**
+	 * Write an SQL statement.
+	 *
+	 * @param st
+	 *            The statement
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZStatement st) throws IOException {
+		statement(st);
+		return this;
+	}
+
+	/**
+	 * Write an SQL expression.
+	 *
+	 * @param e
+	 *            The expression
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZExp e) throws IOException {
+		exp(e);
+		return this;
+	}
+
+	/**
+	 * Write an SQL query.
+	 *
+	 * @param q
+	 *            The query
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZQuery q) throws IOException {
+		query(q);
+		return this;
+	}
+
+	/**
+	 * Write a FROM or SELECT item.
+	 *
+	 * @param n
+	 *            The item
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZAliasedName n) throws IOException {
+		name(n);
+		return this;
+	}
+
+	/**
+	 * Write a GROUP BY clause.
+	 *
+	 * @param g
+	 *            The clause
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZGroupBy g) throws IOException {
+		groupBy(g);
+		return this;
+	}
+
+	/**
+	 * Write an ORDER BY item.
+	 *
+	 * @param o
+	 *            The item
+	 * @return This writer.
+	 */
+	public ZSqlWriter write(ZOrderBy o) throws IOException {
+		orderBy(o);
+		return this;
+	}
+
+	/**
+	 * Compact SQL text of a syntax tree node (used by the toString() methods).
+	 */
+	static String format(Object node) {
+		StringBuilder sb = new StringBuilder(64);
+		ZSqlWriter w = new ZSqlWriter(sb);
+		try {
+			if (node instanceof ZQuery) {
+				w.query((ZQuery) node);
+			} else if (node instanceof ZExp) {
+				w.exp((ZExp) node);
+			} else if (node instanceof ZStatement) {
+				w.statement((ZStatement) node);
+			} else if (node instanceof ZAliasedName) {
+				w.name((ZAliasedName) node);
+			} else if (node instanceof ZGroupBy) {
+				w.groupBy((ZGroupBy) node);
+			} else {
+				w.orderBy((ZOrderBy) node);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Never thrown by a StringBuilder
+		}
+		return sb.toString();
+	}
+
+	// ---------------------------------------------------------------- Statements
+
+	private void statement(ZStatement st) throws IOException {
+		if (st instanceof ZQuery) {
+			query((ZQuery) st);
+		} else if (st instanceof ZInsert) {
+			insert((ZInsert) st);
+		} else if (st instanceof ZUpdate) {
+			update((ZUpdate) st);
+		} else if (st instanceof ZDelete) {
+			delete((ZDelete) st);
+		} else if (st instanceof ZLockTable) {
+			lock((ZLockTable) st);
+		} else if (st instanceof ZTransactStmt) {
+			transact((ZTransactStmt) st);
+		} else {
+			out.append(String.valueOf(st));
+		}
+	}
+
+	private void query(ZQuery q) throws IOException {
+		out.append("select ");
+		if (q.isDistinct()) {
+			out.append("distinct ");
+		}
+		List<ZSelectItem> select = q.getSelect();
+		for (int i = 0; i < select.size(); i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			name(select.get(i));
+		}
+
+		clause("from ");
+		List<ZFromItem> from = q.getFrom();
+		for (int i = 0; i < from.size(); i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			name(from.get(i));
+		}
+
+		if (q.getWhere() != null) {
+			clause("where ");
+			exp(q.getWhere());
+		}
+		if (q.getGroupBy() != null) {
+			clause("");
+			groupBy(q.getGroupBy());
+		}
+		if (q.getSet() != null) {
+			clause("");
+			exp(q.getSet());
+		}
+		List<ZOrderBy> orderby = q.getOrderBy();
+		if (orderby != null) {
+			clause("order by ");
+			for (int i = 0; i < orderby.size(); i++) {
+				if (i > 0) {
+					out.append(", ");
+				}
+				orderBy(orderby.get(i));
+			}
+		}
+		if (q.isForUpdate()) {
+			clause("for update");
+		}
+	}
+
+	private void insert(ZInsert ins) throws IOException {
+		out.append("insert into ").append(ins.getTable());
+		List<String> columns = ins.getColumns();
+		if (columns != null && !columns.isEmpty()) {
+			out.append('(');
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) {
+					out.append(',');
+				}
+				out.append(columns.get(i));
+			}
+			out.append(')');
+		}
+
+		if (pretty) {
+			newLine();
+		} else {
+			out.append(' ');
+		}
+		if (!ins.getValues().isEmpty()) {
+			out.append("values ");
+		}
+		ZExp values = ins.getValueSpec();
+		if (values instanceof ZExpression && ",".equals(((ZExpression) values).getOperator())) {
+			// A list of values, already in parentheses
+			exp(values);
+		} else if (values instanceof ZQuery) {
+			out.append(pretty ? "(" : " (");
+			subQuery((ZQuery) values);
+			out.append(')');
+		} else {
+			String s = String.valueOf(values);
+			if (s.startsWith("(")) {
+				out.append(s);
+			} else {
+				out.append(" (").append(s).append(')');
+			}
+		}
+	}
+
+	private void update(ZUpdate u) throws IOException {
+		out.append("update ").append(u.getTable());
+		if (u.getAlias() != null) {
+			out.append(' ').append(u.getAlias());
+		}
+		clause("set ");
+
+		Iterator<String> it;
+		if (u.getColumnUpdateName(1) != null) {
+			it = columns(u).iterator();
+		} else {
+			it = u.getSet().keySet().iterator();
+		}
+		boolean first = true;
+		while (it.hasNext()) {
+			String key = it.next();
+			if (!first) {
+				out.append(", ");
+			}
+			out.append(key).append('=');
+			exp(u.getSet().get(key));
+			first = false;
+		}
+
+		if (u.getWhere() != null) {
+			clause("where ");
+			exp(u.getWhere());
+		}
+	}
+
+	private static List<String> columns(ZUpdate u) {
+		List<String> l = new java.util.ArrayList<String>();
+		String c;
+		for (int i = 1; (c = u.getColumnUpdateName(i)) != null; i++) {
+			l.add(c);
+		}
+		return l;
+	}
+
+	private void delete(ZDelete d) throws IOException {
+		out.append("delete ");
+		if (d.getWhere() != null) {
+			out.append("from ");
+		}
+		out.append(d.getTable());
+		if (d.getWhere() != null) {
+			clause("where ");
+			exp(d.getWhere());
+		}
+	}
+
+	private void lock(ZLockTable l) throws IOException {
+		out.append("lock table ");
+		List<String> tables = l.getTables();
+		for (int i = 0; tables != null && i < tables.size(); i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			out.append(tables.get(i));
+		}
+		out.append(" in ").append(l.getLockMode()).append(" mode");
+		if (l.isNowait()) {
+			out.append(" nowait");
+		}
+	}
+
+	private void transact(ZTransactStmt t) throws IOException {
+		out.append(t.getStatement());
+		if ("SET TRANSACTION".equals(t.getStatement())) {
+			out.append(t.isReadOnly() ? " READ ONLY" : " READ WRITE");
+		}
+		if (t.getComment() != null) {
+			out.append(" COMMENT ").append(t.getComment());
+		}
+	}
+
+	// ---------------------------------------------------------------- Clauses
+
+	private void name(ZAliasedName n) throws IOException {
+		out.append(n.getStrform());
+		if (n.getAlias() != null) {
+			out.append(' ').append(n.getAlias());
+		}
+	}
+
+	private void groupBy(ZGroupBy g) throws IOException {
+		out.append("group by ");
+		List<ZExp> l = g.getGroupBy();
+		for (int i = 0; i < l.size(); i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			exp(l.get(i));
+		}
+		if (g.getHaving() != null) {
+			clause("having ");
+			exp(g.getHaving());
+		}
+	}
+
+	private void orderBy(ZOrderBy o) throws IOException {
+		exp(o.getExpression());
+		out.append(o.getAscOrder() ? " ASC" : " DESC");
+	}
+
+	/**
+	 * Start a clause: on a new line in pretty mode, after a space otherwise.
+	 */
+	private void clause(String keyword) throws IOException {
+		if (pretty) {
+			newLine();
+		} else {
+			out.append(' ');
+		}
+		out.append(keyword);
+	}
+
+	private void newLine() throws IOException {
+		out.append('\n');
+		for (int i = 0; i < depth; i++) {
+			out.append(INDENT);
+		}
+	}
+
+	private void subQuery(ZQuery q) throws IOException {
+		depth++;
+		try {
+			query(q);
+		} finally {
+			depth--;
+		}
+	}
+
+	// ---------------------------------------------------------------- Expressions
+
+	private void exp(ZExp e) throws IOException {
+		if (e instanceof ZExpression) {
+			expression((ZExpression) e);
+		} else if (e instanceof ZConstant) {
+			ZConstant c = (ZConstant) e;
+			if (c.getType() == ZConstant.Type.STRING) {
+				out.append('\'').append(c.getValue()).append('\'');
+			} else {
+				out.append(c.getValue());
+			}
+		} else if (e instanceof ZQuery) {
+			subQuery((ZQuery) e);
+		} else {
+			out.append(String.valueOf(e));
+		}
+	}
+
+	private void expression(ZExpression x) throws IOException {
+		String op = x.getOperator();
+		if ("?".equals(op)) {
+			out.append(op); // For prepared columns ("?")
+			return;
+		}
+		if (customFunction(x) != null) {
+			function(x);
+			return;
+		}
+
+		boolean par = needPar(x);
+		if (par) {
+			out.append('(');
+		}
+
+		int nb = x.nbOperands();
+		if (nb == 1) {
+			ZExp operand = x.getOperand(0);
+			if (operand instanceof ZConstant && isAggregate(x)) {
+				// Operator may be an aggregate function (MAX, SUM...)
+				out.append(op).append('(');
+				exp(operand);
+				out.append(')');
+			} else if (operand instanceof ZQuery) {
+				out.append(op).append(" (");
+				exp(operand);
+				out.append(')');
+			} else if ("IS NULL".equals(op) || "IS NOT NULL".equals(op)) {
+				exp(operand);
+				out.append(' ').append(op);
+			} else if (",".equals(op)) {
+				// "," = list of values, here just one single value
+				exp(operand);
+			} else {
+				out.append(op).append(' ');
+				exp(operand);
+			}
+		} else if (nb == 3 && isBetween(x)) {
+			exp(x.getOperand(0));
+			out.append(' ').append(op).append(' ');
+			exp(x.getOperand(1));
+			out.append(" AND ");
+			exp(x.getOperand(2));
+		} else {
+			boolean inOp = "IN".equals(op) || "NOT IN".equals(op);
+			boolean list = ",".equals(op);
+			for (int i = 0; i < nb; i++) {
+				if (inOp && i == 1) {
+					out.append(' ').append(op).append(" (");
+				}
+				ZExp operand = x.getOperand(i);
+				if (operand instanceof ZQuery && !inOp) {
+					out.append('(');
+					exp(operand);
+					out.append(')');
+				} else {
+					exp(operand);
+				}
+				if (i < nb - 1) {
+					if (list || (inOp && i > 0)) {
+						out.append(", ");
+					} else if (!inOp) {
+						out.append(' ').append(op).append(' ');
+					}
+				}
+			}
+			if (inOp) {
+				out.append(')');
+			}
+		}
+
+		if (par) {
+			out.append(')');
+		}
+	}
+
+	private void function(ZExpression x) throws IOException {
+		out.append(x.getOperator()).append('(');
+		int nb = x.nbOperands();
+		for (int i = 0; i < nb; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			exp(x.getOperand(i));
+		}
+		out.append(')');
+	}
+
+	/**
+	 * The custom function called by an expression: resolved by the parser, or found in the default registry.
+	 */
+	private static ZFunction customFunction(ZExpression x) {
+		ZFunction f = x.getFunction();
+		if (f == null && x.getOpcode() == ZOperator.FUNCTION) {
+			f = ZFunctionRegistry.getDefault().lookup(x.getOperator());
+		}
+		return f;
+	}
+
+	private static boolean needPar(ZExpression x) {
+		ZOperator o = x.getOpcode();
+		return !(o == ZOperator.ANY || o == ZOperator.ALL || o == ZOperator.UNION || isAggregate(x));
+	}
+
+	private static boolean isAggregate(ZExpression x) {
+		// Custom functions are written by function()
+		return x.getOpcode().isAggregate();
+	}
+
+	private static boolean isBetween(ZExpression x) {
+		ZOperator o = x.getOpcode();
+		return o == ZOperator.BETWEEN || o == ZOperator.NOT_BETWEEN
+				|| (o == ZOperator.FUNCTION && endsWithBetween(x.getOperator()));
+	}
+
+	private static boolean endsWithBetween(String op) {
+		int n = op.length() - 7;
+		return n >= 0 && op.regionMatches(true, n, "BETWEEN", 0, 7);
+	}
+
+	/**
+	 * UTF-8 encoding of characters into a byte buffer.
+	 */
+	private static final class Utf8Output implements Appendable {
+		private final ByteBuffer buf;
+		private char high = 0;
+
+		Utf8Output(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public Appendable append(CharSequence s) {
+			return append(s, 0, s.length());
+		}
+
+		public Appendable append(CharSequence s, int start, int end) {
+			for (int i = start; i < end; i++) {
+				append(s.charAt(i));
+			}
+			return this;
+		}
+
+		public Appendable append(char c) {
+			if (c < 0x80 && high == 0) {
+				buf.put((byte) c);
+			} else if (Character.isHighSurrogate(c)) {
+				if (high != 0) {
+					buf.put((byte) '?');
+				}
+				high = c;
+			} else if (Character.isLowSurrogate(c) && high != 0) {
+				int cp = Character.toCodePoint(high, c);
+				high = 0;
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				if (high != 0) {
+					buf.put((byte) '?'); // Unpaired surrogate
+					high = 0;
+				}
+				if (c < 0x80) {
+					buf.put((byte) c);
+				} else if (c < 0x800) {
+					buf.put((byte) (0xC0 | (c >> 6)));
+					buf.put((byte) (0x80 | (c & 0x3F)));
+				} else if (Character.isSurrogate(c)) {
+					buf.put((byte) '?');
+				} else {
+					buf.put((byte) (0xE0 | (c >> 12)));
+					buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					buf.put((byte) (0x80 | (c & 0x3F)));
+				}
+			}
+			return this;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ZStatementCache: a bounded LRU cache of parsed SQL statements, keyed by SQL text.<br>
+ * The cache is bounded both by a number of entries and by a total weight (by default, the length of the SQL text).
+ * Statements returned by the cache are shared between all callers: their expressions are frozen when they are
+ * cached (see ZExpression.freeze()), and the statements themselves must be considered as read-only.<br>
+ * A persistent ZStatementStore can be attached to the cache: statements missing from memory are then looked up in
+ * the store, and new statements are written to it, so that they survive a restart.<br>
+ * All methods are thread-safe.
+ */
+public class ZStatementCache {
+
+	/**
+	 * Computes the weight of a cache entry.
+	 */
+	public static interface Weigher {
+		/**
+		 * @param sql
+		 *            The SQL text of the entry
+		 * @param st
+		 *            The parsed statement
+		 * @return The entry weight (a positive number)
+		 */
+		int weigh(String sql, ZStatement st);
+	}
+
+	/**
+	 * The default weigher: the length of the SQL text.
+	 */
+	public static final Weigher SQL_LENGTH = new Weigher() {
+		public int weigh(String sql, ZStatement st) {
+			return sql.length();
+		}
+	};
+
+	/**
+	 * A weigher that estimates the memory used by the parsed statement, in bytes (see ZSizeEstimator).
+	 */
+	public static final Weigher RETAINED_SIZE = new Weigher() {
+		public int weigh(String sql, ZStatement st) {
+			return (int) Math.min(Integer.MAX_VALUE, ZSizeEstimator.estimate(st));
+		}
+	};
+
+	// Freezes all the expressions of a statement, sub-queries included
+	private static final ZVisitor FREEZE = new ZVisitor() {
+		public boolean visit(ZExpression e) {
+			e.freeze();
+			return true;
+		}
+	};
+
+	private static final class Entry {
+		final ZStatement statement;
+		final int weight;
+
+		Entry(ZStatement statement, int weight) {
+			this.statement = statement;
+			this.weight = weight;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private final int maxEntries;
+	private final long maxWeight;
+	private final Weigher weigher;
+	private volatile ZStatementStore store = null;
+
+	private long weight = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Create a cache bounded by a number of entries and a total SQL text length.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of statements in the cache
+	 * @param maxWeight
+	 *            The maximum total length of the cached SQL texts
+	 */
+	public ZStatementCache(int maxEntries, long maxWeight) {
+		this(maxEntries, maxWeight, SQL_LENGTH);
+	}
+
+	/**
+	 * Create a cache bounded by a number of entries and a total weight.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of statements in the cache
+	 * @param maxWeight
+	 *            The maximum total weight of the cache entries
+	 * @param weigher
+	 *            The function that computes the weight of an entry
+	 */
+	public ZStatementCache(int maxEntries, long maxWeight, Weigher weigher) {
+		if (maxEntries <= 0 || maxWeight <= 0) {
+			throw new IllegalArgumentException("ZStatementCache: bounds must be positive");
+		}
+		if (weigher == null) {
+			throw new IllegalArgumentException("ZStatementCache: null weigher");
+		}
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Use a persistent store as the second level of the cache.
+	 *
+	 * @param store
+	 *            The store, or null to use memory only. The store is not closed by the cache.
+	 */
+	public void setStore(ZStatementStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return The persistent store used as the second level of the cache, or null if there's none.
+	 */
+	public ZStatementStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Get a cached statement. If it is not in memory, it is looked up in the persistent store (if any), and its custom
+	 * functions are resolved in the default registry.
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @return The statement parsed from this text, or null if not in cache.
+	 */
+	public ZStatement get(String sql) {
+		return get(sql, null);
+	}
+
+	/**
+	 * Get a cached statement. If it is not in memory, it is looked up in the persistent store (if any).
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @param functions
+	 *            The registry in which the custom functions of a stored statement are resolved (null for the default
+	 *            registry)
+	 * @return The statement parsed from this text, or null if not in cache.
+	 */
+	public ZStatement get(String sql, ZFunctionRegistry functions) {
+		ZStatementStore s = store;
+		synchronized (this) {
+			Entry e = map.get(sql);
+			if (e != null) {
+				hits++;
+				return e.statement;
+			}
+			if (s == null) {
+				misses++;
+				return null;
+			}
+		}
+
+		ZStatement st = null;
+		try {
+			st = s.get(sql, functions);
+		} catch (IOException e) {
+			// A closed or damaged store acts as an empty one
+		}
+		synchronized (this) {
+			if (st == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		insert(sql, st);
+		return st;
+	}
+
+	/**
+	 * Insert a statement in the cache (and in the persistent store, if any): its expressions are frozen. Least
+	 * recently used entries are evicted as needed to respect the cache bounds; an entry heavier than the maximum
+	 * weight is not cached in memory.
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @param st
+	 *            The statement parsed from this text
+	 */
+	public void put(String sql, ZStatement st) {
+		if (sql == null || st == null) {
+			return;
+		}
+		insert(sql, st);
+		ZStatementStore s = store;
+		if (s != null) {
+			try {
+				s.put(sql, st);
+			} catch (IOException e) {
+				// The store is only an optimization: parsing must not fail because of it
+			}
+		}
+	}
+
+	private void insert(String sql, ZStatement st) {
+		FREEZE.walk(st);
+		int w = weigher.weigh(sql, st);
+		if (w < 0 || w > maxWeight) {
+			return;
+		}
+		synchronized (this) {
+			Entry old = map.put(sql, new Entry(st, w));
+			if (old != null) {
+				weight -= old.weight;
+			}
+			weight += w;
+
+			Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+			while ((map.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				it.remove();
+				weight -= eldest.weight;
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries from the cache (counters are not reset). The persistent store is not cleared.
+	 */
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	/**
+	 * @return The number of statements in the cache.
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return The total weight of the cache entries.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return The number of successful lookups.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of failed lookups.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of entries evicted to respect the cache bounds.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return "ZStatementCache[size=" + map.size() + ", weight=" + weight + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ZStatementSplitter: finds SQL statement boundaries (the ";" that ends each statement) without parsing.<br>
+ * The scan follows the lexical rules of the grammar: a ";" inside a character literal ('...'), a quoted identifier
+ * ("...") or a comment (-- or /* ... *&#47;) does not end a statement.<br>
+ * The input is either a CharSequence or a ByteBuffer holding an ASCII-compatible encoding (like UTF-8): in such
+ * encodings, the bytes of multi-byte characters never look like ASCII delimiters.
+ */
+public class ZStatementSplitter {
+
+	/**
+	 * Returned by the scan methods when more input is needed to find the answer.
+	 */
+	public static final int MORE_INPUT = -1;
+
+	private CharSequence seq;
+	private ByteBuffer bytes;
+
+	/**
+	 * Create a splitter on a character sequence.
+	 */
+	public ZStatementSplitter(CharSequence in) {
+		reset(in);
+	}
+
+	/**
+	 * Create a splitter on a byte buffer (absolute indexes are used, the buffer position is ignored).
+	 */
+	public ZStatementSplitter(ByteBuffer in) {
+		reset(in);
+	}
+
+	public final void reset(CharSequence in) {
+		seq = in;
+		bytes = null;
+	}
+
+	public final void reset(ByteBuffer in) {
+		seq = null;
+		bytes = in;
+	}
+
+	private int at(int i) {
+		return bytes != null ? (bytes.get(i) & 0xff) : seq.charAt(i);
+	}
+
+	/**
+	 * Skip white spaces and comments.
+	 *
+	 * @param from
+	 *            The start index
+	 * @param to
+	 *            The end index (exclusive)
+	 * @param eof
+	 *            true if there's no input after the end index
+	 * @return The index of the first character that is neither a white space nor part of a comment (to if there's
+	 *         none), or MORE_INPUT if a comment is still open at the end index and eof is false.
+	 */
+	public int skipBlank(int from, int to, boolean eof) {
+		int i = from;
+		while (i < to) {
+			int c = at(i);
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				i++;
+			} else if (c == '-' && i + 1 < to && at(i + 1) == '-') {
+				i = skipLineComment(i + 2, to);
+				if (i >= to && !eof) {
+					return MORE_INPUT;
+				}
+			} else if (c == '/' && i + 1 < to && at(i + 1) == '*') {
+				i = skipBlockComment(i + 2, to);
+				if (i < 0) {
+					return eof ? to : MORE_INPUT;
+				}
+			} else if ((c == '-' || c == '/') && i + 1 >= to && !eof) {
+				return MORE_INPUT;
+			} else {
+				return i;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Find the end of the statement that starts at a given index.
+	 *
+	 * @param from
+	 *            The start index of the statement
+	 * @param to
+	 *            The end index (exclusive)
+	 * @param eof
+	 *            true if there's no input after the end index
+	 * @return The index that follows the ";" that ends the statement; if there's no such ";", to if eof is true, and
+	 *         MORE_INPUT otherwise.
+	 */
+	public int findEnd(int from, int to, boolean eof) {
+		int i = from;
+		while (i < to) {
+			int c = at(i);
+			switch (c) {
+			case ';':
+				return i + 1;
+			case '\'':
+				i = skipQuoted(i + 1, to, '\'');
+				break;
+			case '"':
+				i = skipQuoted(i + 1, to, '"');
+				break;
+			case '-':
+				if (i + 1 < to && at(i + 1) == '-') {
+					i = skipLineComment(i + 2, to);
+				} else {
+					i++;
+				}
+				break;
+			case '/':
+				if (i + 1 < to && at(i + 1) == '*') {
+					i = skipBlockComment(i + 2, to);
+					if (i < 0) {
+						i = to;
+					}
+				} else {
+					i++;
+				}
+				break;
+			default:
+				i++;
+				break;
+			}
+		}
+		return eof ? to : MORE_INPUT;
+	}
+
+	// Returns the index after the closing quote, or to if unterminated
+	private int skipQuoted(int from, int to, int quote) {
+		for (int i = from; i < to; i++) {
+			if (at(i) == quote) {
+				return i + 1;
+			}
+		}
+		return to;
+	}
+
+	// Returns the index of the end of line, or to
+	private int skipLineComment(int from, int to) {
+		for (int i = from; i < to; i++) {
+			int c = at(i);
+			if (c == '\r' || c == '\n') {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	// Returns the index after the closing "*/", or -1 if unterminated
+	private int skipBlockComment(int from, int to) {
+		for (int i = from; i + 1 < to; i++) {
+			if (at(i) == '*' && at(i + 1) == '/') {
+				return i + 2;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ZStatementStore: a persistent cache of parsed SQL statements, stored in a memory-mapped file.<br>
+ * Statements are keyed by the 128-bit hash of their SQL text (see ZHash), and stored in the ZBinaryCodec format.
+ * Opening a store only scans the record headers to rebuild the index: statements are decoded on demand, by get().
+ * Each call to get() returns a new statement object.<br>
+ * The file is stamped with a grammar version: when it was written by a different version of the grammar or of the
+ * binary format, its content is dropped when it is opened.<br>
+ * A store can be used alone, or as the second level of a ZStatementCache (see ZStatementCache.setStore()).<br>
+ * All methods are thread-safe, but a file must not be opened by several stores (or processes) at the same time.
+ */
+public class ZStatementStore implements Closeable {
+
+	/**
+	 * Version of the trees built by the grammar: must be incremented when the grammar changes the trees it builds
+	 * without changing its tokens (token changes are detected automatically).
+	 */
+	private static final int GRAMMAR_VERSION = 2;
+
+	/**
+	 * The stamp of the grammar and binary format versions, written in the file header.
+	 */
+	public static final long GRAMMAR_STAMP = grammarStamp();
+
+	private static final int MAGIC = 0x5A514C53; // "ZQLS"
+	private static final int FORMAT = 1;
+
+	// Header: magic (4), format (4), grammar stamp (8), end of data (8), record count (4), unused (4)
+	private static final int HEADER = 32;
+	private static final int END_POS = 16;
+	private static final int COUNT_POS = 24;
+
+	// Record: hash low bits (8), hash high bits (8), payload length (4), payload
+	private static final int RECORD_HEADER = 20;
+
+	private static final int MIN_MAP = 1 << 20;
+
+	private static final class Key {
+		final long low;
+		final long high;
+
+		Key(long low, long high) {
+			this.low = low;
+			this.high = high;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return low == k.low && high == k.high;
+		}
+
+		public int hashCode() {
+			return (int) (low ^ (low >>> 32));
+		}
+	}
+
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer map;
+
+	// Key -> record offset
+	private final Map<Key, Integer> index = new HashMap<Key, Integer>();
+	private int end;
+
+	private final ZBinaryCodec codec = new ZBinaryCodec();
+	private final long[] hash = new long[2];
+	private byte[] scratch = new byte[1024];
+
+	/**
+	 * Open (or create) a statement store.
+	 *
+	 * @param f
+	 *            The store file
+	 */
+	public ZStatementStore(File f) throws IOException {
+		path = f;
+		file = new RandomAccessFile(f, "rw");
+		try {
+			channel = file.getChannel();
+			open();
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private void open() throws IOException {
+		long size = channel.size();
+		if (size >= HEADER && size <= Integer.MAX_VALUE) {
+			file.seek(0);
+			if (file.readInt() == MAGIC && file.readInt() == FORMAT && file.readLong() == GRAMMAR_STAMP) {
+				long limit = file.readLong();
+				if (limit >= HEADER && limit <= size) {
+					map(Math.max((int) size, MIN_MAP));
+					scan((int) limit);
+					return;
+				}
+			}
+		}
+		// New, corrupted or stale file
+		file.setLength(0);
+		map(MIN_MAP);
+		map.putInt(0, MAGIC);
+		map.putInt(4, FORMAT);
+		map.putLong(8, GRAMMAR_STAMP);
+		setEnd(HEADER);
+	}
+
+	/**
+	 * Rebuild the index from the record headers. A truncated record (if the process stopped while writing it) ends
+	 * the scan.
+	 */
+	private void scan(int limit) {
+		int pos = HEADER;
+		while (pos + RECORD_HEADER <= limit) {
+			int len = map.getInt(pos + 16);
+			if (len < 0 || len > limit - pos - RECORD_HEADER) {
+				break;
+			}
+			index.put(new Key(map.getLong(pos), map.getLong(pos + 8)), Integer.valueOf(pos));
+			pos += RECORD_HEADER + len;
+		}
+		end = pos;
+		if (pos != limit) {
+			setEnd(pos);
+		}
+	}
+
+	private void map(int size) throws IOException {
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void setEnd(int pos) {
+		end = pos;
+		map.putLong(END_POS, pos);
+		map.putInt(COUNT_POS, index.size());
+	}
+
+	private void checkOpen() throws IOException {
+		if (map == null) {
+			throw new IOException("ZStatementStore: " + path + " is closed");
+		}
+	}
+
+	/**
+	 * Get a stored statement. Its custom functions are resolved in the default registry.
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @return A new statement object, parsed from this text, or null if there's none in the store.
+	 */
+	public ZStatement get(String sql) throws IOException {
+		return get(sql, null);
+	}
+
+	/**
+	 * Get a stored statement.
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @param functions
+	 *            The registry in which custom functions are resolved (null for the default registry)
+	 * @return A new statement object, parsed from this text, or null if there's none in the store.
+	 */
+	public synchronized ZStatement get(String sql, ZFunctionRegistry functions) throws IOException {
+		checkOpen();
+		ZHash.hash128(sql, hash);
+		Integer off = index.get(new Key(hash[0], hash[1]));
+		if (off == null) {
+			return null;
+		}
+		int pos = off.intValue();
+		int len = map.getInt(pos + 16);
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		map.position(pos + RECORD_HEADER);
+		map.get(scratch, 0, len);
+		codec.setFunctionRegistry(functions);
+		return codec.decodeStatement(scratch, 0, len);
+	}
+
+	/**
+	 * Store a statement. Nothing is done if a statement is already stored for the same SQL text.
+	 *
+	 * @param sql
+	 *            The SQL text
+	 * @param st
+	 *            The statement parsed from this text
+	 * @return true if the statement has been stored, false if it was already in the store or if the store is full
+	 *         (the file size is limited to 2GB).
+	 */
+	public synchronized boolean put(String sql, ZStatement st) throws IOException {
+		checkOpen();
+		ZHash.hash128(sql, hash);
+		Key k = new Key(hash[0], hash[1]);
+		if (index.containsKey(k)) {
+			return false;
+		}
+		byte[] b = codec.encodeStatement(st);
+		long newEnd = (long) end + RECORD_HEADER + b.length;
+		if (newEnd > Integer.MAX_VALUE) {
+			return false;
+		}
+		if (newEnd > map.capacity()) {
+			map((int) Math.min(Integer.MAX_VALUE, Math.max(newEnd, 2L * map.capacity())));
+		}
+		int pos = end;
+		map.putLong(pos, k.low);
+		map.putLong(pos + 8, k.high);
+		map.putInt(pos + 16, b.length);
+		map.position(pos + RECORD_HEADER);
+		map.put(b);
+		// The header is updated after the record, so that an interrupted write is ignored at the next opening
+		index.put(k, Integer.valueOf(pos));
+		setEnd((int) newEnd);
+		return true;
+	}
+
+	/**
+	 * Remove all statements from the store.
+	 */
+	public synchronized void clear() throws IOException {
+		checkOpen();
+		index.clear();
+		setEnd(HEADER);
+	}
+
+	/**
+	 * @return The number of statements in the store.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Write the changes to the storage device.
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		map.force();
+	}
+
+	/**
+	 * Write the changes to the storage device, and close the store.
+	 */
+	public synchronized void close() throws IOException {
+		if (map == null) {
+			return;
+		}
+		try {
+			map.force();
+		} finally {
+			map = null;
+			index.clear();
+			file.close();
+		}
+	}
+
+	public synchronized String toString() {
+		return "ZStatementStore[" + path + ", size=" + index.size() + ", bytes=" + end + "]";
+	}
+
+	/**
+	 * The grammar stamp hashes the token images of the grammar, the tree version and the binary format version.
+	 */
+	private static long grammarStamp() {
+		StringBuilder sb = new StringBuilder();
+		for (String s : ZqlJJParserConstants.tokenImage) {
+			sb.append(s).append('\n');
+		}
+		sb.append(GRAMMAR_VERSION).append('/').append(ZBinaryCodec.VERSION);
+		return ZHash.hash64(sb);
+	}
+}
@@ -17,6 +17,8 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
+
 /**
  * ZTransactStmt: an SQL statement that concerns database transactions (example: COMMIT, ROLLBACK, SET TRANSACTION)
  */
@@ -50,4 +52,28 @@ public class ZTransactStmt implements ZStatement {
 	public void setReadOnly(final boolean readOnly) {
 		this.readOnly = readOnly;
 	}
+
+	/**
+	 * Traverse this statement with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		v.visit(this);
+	}
+
+	/**
+	 * Write the SQL text of this statement (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
+	}
 }
@@ -0,0 +1,336 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZTransformer: rewrites SQL syntax trees, bottom-up. Subclasses override the transform() methods of the nodes they
+ * want to replace: each method receives a node whose children have already been transformed, and returns the node
+ * itself or its replacement.<br>
+ * Trees are never modified: a node is copied only if one of its children has been replaced, so an unchanged tree is
+ * returned as is, and the unchanged parts of a tree are shared between the original and the rewritten tree.<br>
+ * Trees are traversed with an explicit stack, so their depth is not limited by the size of the thread stack.
+ */
+public abstract class ZTransformer {
+
+	/**
+	 * Transform an expression.
+	 *
+	 * @param e
+	 *            The expression, with its operands already transformed
+	 * @return The expression itself, or its replacement.
+	 */
+	public ZExp transform(ZExpression e) {
+		return e;
+	}
+
+	/**
+	 * Transform a constant (or column name).
+	 *
+	 * @return The constant itself, or its replacement.
+	 */
+	public ZExp transform(ZConstant c) {
+		return c;
+	}
+
+	/**
+	 * Transform a query.
+	 *
+	 * @param q
+	 *            The query, with its expressions already transformed
+	 * @return The query itself, or its replacement (a query, if it is a statement).
+	 */
+	public ZExp transform(ZQuery q) {
+		return q;
+	}
+
+	/**
+	 * Rewrite an expression tree.
+	 *
+	 * @param e
+	 *            The expression (may be null)
+	 * @return The rewritten expression (e itself if nothing has changed).
+	 */
+	public final ZExp rewrite(ZExp e) {
+		return (ZExp) run(e);
+	}
+
+	/**
+	 * Rewrite the expressions of a statement.
+	 *
+	 * @param st
+	 *            The statement (may be null)
+	 * @return The rewritten statement (st itself if nothing has changed).
+	 */
+	public final ZStatement rewrite(ZStatement st) {
+		Object r = run(st);
+		if (r != null && !(r instanceof ZStatement)) {
+			throw new IllegalStateException("ZTransformer: a statement has been replaced by an expression");
+		}
+		return (ZStatement) r;
+	}
+
+	/**
+	 * Rewrite the expressions of a query.
+	 *
+	 * @param q
+	 *            The query (may be null)
+	 * @return The rewritten query (q itself if nothing has changed).
+	 */
+	public final ZQuery rewrite(ZQuery q) {
+		Object r = run(q);
+		if (r != null && !(r instanceof ZQuery)) {
+			throw new IllegalStateException("ZTransformer: a query has been replaced by an expression");
+		}
+		return (ZQuery) r;
+	}
+
+	/**
+	 * A node being rewritten: its children are transformed one after the other.
+	 */
+	private static final class Frame {
+		final Object node;
+		final List<ZExp> children;
+		ZExp[] rewritten = null; // Allocated when a child changes
+		int next = 0;
+
+		Frame(Object node, List<ZExp> children) {
+			this.node = node;
+			this.children = children;
+		}
+
+		void done(ZExp r) {
+			ZExp old = children.get(next);
+			if (rewritten == null && r != old) {
+				rewritten = children.toArray(new ZExp[children.size()]);
+			}
+			if (rewritten != null) {
+				rewritten[next] = r;
+			}
+			next++;
+		}
+	}
+
+	private Object run(Object root) {
+		if (root == null) {
+			return null;
+		}
+		if (!hasChildren(root)) {
+			return leaf(root);
+		}
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		stack.push(new Frame(root, children(root)));
+		for (;;) {
+			Frame f = stack.peek();
+			if (f.next < f.children.size()) {
+				ZExp child = f.children.get(f.next);
+				if (hasChildren(child)) {
+					stack.push(new Frame(child, children(child)));
+				} else {
+					f.done((ZExp) leaf(child));
+				}
+				continue;
+			}
+
+			stack.pop();
+			Object n = (f.rewritten == null ? f.node : rebuild(f.node, f.rewritten));
+			if (n instanceof ZExpression) {
+				n = transform((ZExpression) n);
+			} else if (n instanceof ZQuery) {
+				n = transform((ZQuery) n);
+			}
+			if (stack.isEmpty()) {
+				return n;
+			}
+			stack.peek().done((ZExp) n);
+		}
+	}
+
+	private Object leaf(Object n) {
+		if (n instanceof ZConstant) {
+			return transform((ZConstant) n);
+		} else if (n instanceof ZExpression) {
+			return transform((ZExpression) n);
+		}
+		return n; // null, or a statement without expressions
+	}
+
+	private static boolean hasChildren(Object n) {
+		if (n instanceof ZExpression) {
+			return ((ZExpression) n).nbOperands() > 0;
+		}
+		return n instanceof ZQuery || n instanceof ZInsert || n instanceof ZUpdate || n instanceof ZDelete;
+	}
+
+	/**
+	 * The expressions directly contained in a node, in a fixed order (see rebuild()).
+	 */
+	private static List<ZExp> children(Object n) {
+		if (n instanceof ZExpression) {
+			return ((ZExpression) n).getOperands();
+		}
+		List<ZExp> l = new ArrayList<ZExp>();
+		if (n instanceof ZQuery) {
+			ZQuery q = (ZQuery) n;
+			if (q.getSelect() != null) {
+				for (ZSelectItem it : q.getSelect()) {
+					if (it.isExpression()) {
+						l.add(it.getExpression());
+					}
+				}
+			}
+			l.add(q.getWhere());
+			ZGroupBy g = q.getGroupBy();
+			if (g != null) {
+				if (g.getGroupBy() != null) {
+					l.addAll(g.getGroupBy());
+				}
+				l.add(g.getHaving());
+			}
+			l.add(q.getSet());
+			if (q.getOrderBy() != null) {
+				for (ZOrderBy o : q.getOrderBy()) {
+					l.add(o.getExpression());
+				}
+			}
+		} else if (n instanceof ZInsert) {
+			l.add(((ZInsert) n).getValueSpec());
+		} else if (n instanceof ZUpdate) {
+			ZUpdate upd = (ZUpdate) n;
+			for (Object o : ZVisitor.children(upd)) {
+				l.add((ZExp) o);
+			}
+		} else {
+			l.add(((ZDelete) n).getWhere());
+		}
+		return l;
+	}
+
+	/**
+	 * Copy a node, with new children (in the order of children()).
+	 */
+	private static Object rebuild(Object n, ZExp[] c) {
+		if (n instanceof ZExpression) {
+			ZExpression e = new ZExpression(((ZExpression) n).getOperator());
+			e.setFunction(((ZExpression) n).getFunction());
+			e.setOperands(new ArrayList<ZExp>(Arrays.asList(c)));
+			return e;
+		}
+		if (n instanceof ZQuery) {
+			return rebuildQuery((ZQuery) n, c);
+		}
+		if (n instanceof ZInsert) {
+			ZInsert ins = (ZInsert) n;
+			ZInsert r = new ZInsert(ins.getTable());
+			r.addColumns(ins.getColumns());
+			r.addValueSpec(c[0]);
+			return r;
+		}
+		if (n instanceof ZUpdate) {
+			ZUpdate upd = (ZUpdate) n;
+			ZUpdate r = new ZUpdate(upd.getTable());
+			r.setAlias(upd.getAlias());
+			int i = 0;
+			int nb = upd.getColumnUpdateCount();
+			if (nb > 0 && upd.getColumnUpdateName(1) != null) {
+				for (; i < nb; i++) {
+					r.addColumnUpdate(upd.getColumnUpdateName(i + 1), c[i]);
+				}
+			} else if (upd.getSet() != null) {
+				Map<String, ZExp> set = new HashMap<String, ZExp>();
+				for (String col : upd.getSet().keySet()) {
+					set.put(col, c[i++]);
+				}
+				r.addSet(set);
+			}
+			r.addWhere(c[i]);
+			return r;
+		}
+		ZDelete r = new ZDelete(((ZDelete) n).getTable());
+		r.addWhere(c[0]);
+		return r;
+	}
+
+	private static ZQuery rebuildQuery(ZQuery q, ZExp[] c) {
+		int i = 0;
+		ZQuery r = new ZQuery();
+		r.setDistinct(q.isDistinct());
+		r.setForUpdate(q.isForUpdate());
+
+		if (q.getSelect() != null) {
+			List<ZSelectItem> select = new ArrayList<ZSelectItem>(q.getSelect().size());
+			for (ZSelectItem it : q.getSelect()) {
+				if (it.isExpression()) {
+					ZExp e = c[i++];
+					if (e != it.getExpression()) {
+						ZSelectItem copy = new ZSelectItem(e.toString());
+						copy.setExpression(e);
+						copy.setAlias(it.getAlias());
+						it = copy;
+					}
+				}
+				select.add(it);
+			}
+			r.addSelect(select);
+		}
+		r.addFrom(q.getFrom());
+		r.addWhere(c[i++]);
+
+		ZGroupBy g = q.getGroupBy();
+		if (g != null) {
+			if (g.getGroupBy() != null) {
+				List<ZExp> exps = new ArrayList<ZExp>(g.getGroupBy().size());
+				for (int j = 0; j < g.getGroupBy().size(); j++) {
+					exps.add(c[i++]);
+				}
+				g = new ZGroupBy(exps);
+			} else {
+				g = new ZGroupBy(null);
+			}
+			g.setHaving(c[i++]);
+			r.addGroupBy(g);
+		}
+
+		ZExp set = c[i++];
+		if (set != null && !(set instanceof ZExpression)) {
+			throw new IllegalStateException("ZTransformer: the set clause of a query must be an expression");
+		}
+		r.addSet((ZExpression) set);
+
+		if (q.getOrderBy() != null) {
+			List<ZOrderBy> orderby = new ArrayList<ZOrderBy>(q.getOrderBy().size());
+			for (ZOrderBy o : q.getOrderBy()) {
+				ZExp e = c[i++];
+				if (e != o.getExpression()) {
+					ZOrderBy copy = new ZOrderBy(e);
+					copy.setAscOrder(o.getAscOrder());
+					o = copy;
+				}
+				orderby.add(o);
+			}
+			r.addOrderBy(orderby);
+		}
+		return r;
+	}
+}
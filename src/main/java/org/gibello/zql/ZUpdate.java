@@ -17,9 +17,9 @@
 
 package org.gibello.zql;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -170,32 +170,32 @@ public class ZUpdate implements ZStatement {
 		return where;
 	}
 
-	public String toString() {
-		String ret = "update " + table;
-		if (alias != null) {
-			ret += " " + alias;
-		}
-		ret += " set ";
-
-		Iterator<String> e;
-		if (columns != null) {
-			e = columns.iterator();
-		} else {
-			e = set.keySet().iterator();
-		}
-		boolean first = true;
-		while (e.hasNext()) {
-			String key = e.next();
-			if (!first) {
-				ret += ", ";
+	/**
+	 * Traverse this statement with a visitor (recursively: see ZVisitor).
+	 * 
+	 * @param v
+	 *            The visitor
+	 */
+	public void accept(ZVisitor v) {
+		if (v.visit(this)) {
+			for (Object n : ZVisitor.children(this)) {
+				ZVisitor.accept(n, v);
 			}
-			ret += key + "=" + set.get(key).toString();
-			first = false;
 		}
+		v.endVisit(this);
+	}
 
-		if (where != null) {
-			ret += " where " + where.toString();
-		}
-		return ret;
+	/**
+	 * Write the SQL text of this statement (the text returned by toString()).
+	 * 
+	 * @param out
+	 *            Where the SQL text is written
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		new ZSqlWriter(out).write(this);
+	}
+
+	public String toString() {
+		return ZSqlWriter.format(this);
 	}
 }
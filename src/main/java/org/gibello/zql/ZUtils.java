@@ -17,40 +17,40 @@
 
 package org.gibello.zql;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * ZUtils: static helpers of the parser and evaluator. All methods are thread-safe (custom functions are registered
+ * in the default ZFunctionRegistry).
+ */
 public class ZUtils {
 	private ZUtils() {
 	}
 
-	private static Map<String, Integer> fcts = null;
-
 	public static final int VARIABLE_PLIST = 10000;
 
+	/**
+	 * Register a custom function in the default registry (see ZFunctionRegistry).
+	 */
 	public static void addCustomFunction(String fct, int nparm) {
-		if (fcts == null) {
-			fcts = new HashMap<String, Integer>();
-		}
-
-		fcts.put(fct.toUpperCase(), nparm < 0 ? 1 : Integer.valueOf(nparm));
+		ZFunctionRegistry.getDefault().register(fct, nparm);
 	}
 
+	/**
+	 * @return The number of parameters of a function of the default registry, -1 if the function is unknown.
+	 */
 	public static int isCustomFunction(String fct) {
-		final int ret;
-
-		if (fct == null || fct.isEmpty() || fcts == null || !fcts.containsKey(fct.toUpperCase())) {
-			ret =-1;
-		} else {
-			ret = fcts.get(fct.toUpperCase());
-		}
-		return ret;
+		ZFunction f = ZFunctionRegistry.getDefault().lookup(fct);
+		return f == null ? -1 : f.getArity();
 	}
 
+	/**
+	 * @return true for the SUM, AVG, MAX, MIN and COUNT aggregates, and for the functions of the default registry.
+	 */
 	public static boolean isAggregate(String op) {
-		String tmp = op.toUpperCase().trim();
-		return "SUM".equals(tmp) || "AVG".equals(tmp) || "MAX".equals(tmp) || "MIN".equals(tmp) || "COUNT".equals(tmp)
-				|| (fcts != null && fcts.get(tmp) != null);
+		String tmp = op.trim();
+		return ZOperator.of(tmp).isAggregate() || ZFunctionRegistry.getDefault().lookup(tmp) != null;
 	}
 
 	public static String getAggregateCall(String c) {
@@ -66,7 +66,53 @@ public class ZUtils {
 		}
 	}
 
+	/**
+	 * Trim an ArrayList to its size (lists of parsed statements are not modified afterwards).
+	 */
+	static <T> List<T> trim(List<T> l) {
+		if (l instanceof ArrayList) {
+			((ArrayList<T>) l).trimToSize();
+		}
+		return l;
+	}
+
+	/**
+	 * Intern an SQL name, so that the names used by many statements are shared.
+	 */
+	static String intern(String name) {
+		return name == null ? null : name.intern();
+	}
+
+	/**
+	 * @return true if the value is a number like -12 or 3.14 (matches -?\d+(\.\d+)? without a regular expression).
+	 */
 	public static boolean isDouble(final Object c) {
-		return c != null && c.toString().matches("-?\\d+(\\.\\d+)?");
+		if (c == null) {
+			return false;
+		}
+		String s = (c instanceof String ? (String) c : c.toString());
+		int n = s.length();
+		int i = (n > 0 && s.charAt(0) == '-') ? 1 : 0;
+		int start = i;
+		while (i < n && isDigit(s.charAt(i))) {
+			i++;
+		}
+		if (i == start) {
+			return false;
+		}
+		if (i == n) {
+			return true;
+		}
+		if (s.charAt(i) != '.' || ++i == n) {
+			return false;
+		}
+		while (i < n && isDigit(s.charAt(i))) {
+			i++;
+		}
+		return i == n;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
 	}
 }
@@ -0,0 +1,353 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ZVisitor: a visitor of SQL syntax trees. Subclasses override the visit() methods of the nodes they are interested
+ * in: the default methods do nothing, and let the traversal go through the children of each node.<br>
+ * A tree can be traversed in two ways, that call the visitor methods in the same order (depth-first, children from
+ * left to right):
+ * <ul>
+ * <li>With the accept() method of the tree root (or ZVisitor.accept(), for a root typed as ZExp or ZStatement), that
+ * uses recursion (the depth of the tree is limited by the size of the thread stack);</li>
+ * <li>With the walk() methods of the visitor, that use an explicit stack (the depth of the tree is unlimited).</li>
+ * </ul>
+ * When a visit() method returns false, the children of the node are skipped; endVisit() is called anyway.<br>
+ * The children of a query are its SELECT items, FROM items, WHERE expression, GROUP BY expressions, HAVING
+ * expression, set clause (UNION...) and ORDER BY expressions, in this order.
+ */
+public abstract class ZVisitor {
+
+	// Pushed on the walk stack above a node, to call endVisit() when its children are done
+	private static final Object END = new Object();
+
+	/**
+	 * Visit an expression.
+	 *
+	 * @return true to visit the operands.
+	 */
+	public boolean visit(ZExpression e) {
+		return true;
+	}
+
+	/**
+	 * Called when an expression and its operands have been visited.
+	 */
+	public void endVisit(ZExpression e) {
+	}
+
+	/**
+	 * Visit a constant (or column name).
+	 */
+	public void visit(ZConstant c) {
+	}
+
+	/**
+	 * Visit a query (a statement or a sub-query).
+	 *
+	 * @return true to visit the clauses of the query.
+	 */
+	public boolean visit(ZQuery q) {
+		return true;
+	}
+
+	/**
+	 * Called when a query and its clauses have been visited.
+	 */
+	public void endVisit(ZQuery q) {
+	}
+
+	/**
+	 * Visit a SELECT item.
+	 *
+	 * @return true to visit the expression of the item (if it is an expression: see ZSelectItem.isExpression()).
+	 */
+	public boolean visit(ZSelectItem item) {
+		return true;
+	}
+
+	/**
+	 * Visit a FROM item.
+	 */
+	public void visit(ZFromItem item) {
+	}
+
+	/**
+	 * Visit an INSERT statement.
+	 *
+	 * @return true to visit the VALUES expression or the sub-query.
+	 */
+	public boolean visit(ZInsert ins) {
+		return true;
+	}
+
+	/**
+	 * Called when an INSERT statement and its children have been visited.
+	 */
+	public void endVisit(ZInsert ins) {
+	}
+
+	/**
+	 * Visit an UPDATE statement.
+	 *
+	 * @return true to visit the SET expressions and the WHERE expression.
+	 */
+	public boolean visit(ZUpdate upd) {
+		return true;
+	}
+
+	/**
+	 * Called when an UPDATE statement and its children have been visited.
+	 */
+	public void endVisit(ZUpdate upd) {
+	}
+
+	/**
+	 * Visit a DELETE statement.
+	 *
+	 * @return true to visit the WHERE expression.
+	 */
+	public boolean visit(ZDelete del) {
+		return true;
+	}
+
+	/**
+	 * Called when a DELETE statement and its WHERE expression have been visited.
+	 */
+	public void endVisit(ZDelete del) {
+	}
+
+	/**
+	 * Visit a LOCK TABLE statement.
+	 */
+	public void visit(ZLockTable lck) {
+	}
+
+	/**
+	 * Visit a transaction statement (COMMIT, ROLLBACK, SET TRANSACTION).
+	 */
+	public void visit(ZTransactStmt t) {
+	}
+
+	/**
+	 * Traverse an expression tree with an explicit stack.
+	 *
+	 * @param e
+	 *            The root expression (may be null)
+	 */
+	public final void walk(ZExp e) {
+		run(e);
+	}
+
+	/**
+	 * Traverse a statement with an explicit stack.
+	 *
+	 * @param st
+	 *            The statement (may be null)
+	 */
+	public final void walk(ZStatement st) {
+		run(st);
+	}
+
+	/**
+	 * Traverse a query with an explicit stack.
+	 *
+	 * @param q
+	 *            The query (may be null)
+	 */
+	public final void walk(ZQuery q) {
+		run(q);
+	}
+
+	private void run(Object root) {
+		if (root == null) {
+			return;
+		}
+		ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Object n = stack.pop();
+			if (n == END) {
+				end(stack.pop());
+			} else if (n instanceof ZExpression) {
+				ZExpression x = (ZExpression) n;
+				stack.push(x);
+				stack.push(END);
+				if (visit(x)) {
+					List<ZExp> operands = x.getOperands();
+					for (int i = x.nbOperands() - 1; i >= 0; i--) {
+						push(stack, operands.get(i));
+					}
+				}
+			} else if (n instanceof ZConstant) {
+				visit((ZConstant) n);
+			} else if (n instanceof ZQuery) {
+				ZQuery q = (ZQuery) n;
+				stack.push(q);
+				stack.push(END);
+				if (visit(q)) {
+					pushReverse(stack, children(q));
+				}
+			} else if (n instanceof ZSelectItem) {
+				ZSelectItem it = (ZSelectItem) n;
+				if (visit(it) && it.isExpression()) {
+					stack.push(it.getExpression());
+				}
+			} else if (n instanceof ZFromItem) {
+				visit((ZFromItem) n);
+			} else if (n instanceof ZInsert) {
+				ZInsert ins = (ZInsert) n;
+				stack.push(ins);
+				stack.push(END);
+				if (visit(ins)) {
+					push(stack, ins.getValueSpec());
+				}
+			} else if (n instanceof ZUpdate) {
+				ZUpdate upd = (ZUpdate) n;
+				stack.push(upd);
+				stack.push(END);
+				if (visit(upd)) {
+					pushReverse(stack, children(upd));
+				}
+			} else if (n instanceof ZDelete) {
+				ZDelete del = (ZDelete) n;
+				stack.push(del);
+				stack.push(END);
+				if (visit(del)) {
+					push(stack, del.getWhere());
+				}
+			} else if (n instanceof ZLockTable) {
+				visit((ZLockTable) n);
+			} else if (n instanceof ZTransactStmt) {
+				visit((ZTransactStmt) n);
+			}
+		}
+	}
+
+	private void end(Object n) {
+		if (n instanceof ZExpression) {
+			endVisit((ZExpression) n);
+		} else if (n instanceof ZQuery) {
+			endVisit((ZQuery) n);
+		} else if (n instanceof ZInsert) {
+			endVisit((ZInsert) n);
+		} else if (n instanceof ZUpdate) {
+			endVisit((ZUpdate) n);
+		} else {
+			endVisit((ZDelete) n);
+		}
+	}
+
+	private static void push(ArrayDeque<Object> stack, Object n) {
+		if (n != null) {
+			stack.push(n);
+		}
+	}
+
+	private static void pushReverse(ArrayDeque<Object> stack, List<Object> l) {
+		for (int i = l.size() - 1; i >= 0; i--) {
+			push(stack, l.get(i));
+		}
+	}
+
+	/**
+	 * Traverse a node with a visitor, recursively: the accept() methods of the node classes call it for their
+	 * children. ZExp and ZStatement don't declare accept(), so that other implementations of these interfaces keep
+	 * working: nodes of other classes are skipped.
+	 * 
+	 * @param n
+	 *            The node: an expression, a statement, a SELECT or FROM item (may be null)
+	 * @param v
+	 *            The visitor
+	 */
+	public static void accept(Object n, ZVisitor v) {
+		if (n instanceof ZExpression) {
+			((ZExpression) n).accept(v);
+		} else if (n instanceof ZConstant) {
+			((ZConstant) n).accept(v);
+		} else if (n instanceof ZQuery) {
+			((ZQuery) n).accept(v);
+		} else if (n instanceof ZSelectItem) {
+			ZSelectItem it = (ZSelectItem) n;
+			if (v.visit(it) && it.isExpression()) {
+				accept(it.getExpression(), v);
+			}
+		} else if (n instanceof ZFromItem) {
+			v.visit((ZFromItem) n);
+		} else if (n instanceof ZInsert) {
+			((ZInsert) n).accept(v);
+		} else if (n instanceof ZUpdate) {
+			((ZUpdate) n).accept(v);
+		} else if (n instanceof ZDelete) {
+			((ZDelete) n).accept(v);
+		} else if (n instanceof ZLockTable) {
+			((ZLockTable) n).accept(v);
+		} else if (n instanceof ZTransactStmt) {
+			((ZTransactStmt) n).accept(v);
+		}
+	}
+
+	/**
+	 * The children of a query, in visit order (SELECT and FROM items, and expressions).
+	 */
+	static List<Object> children(ZQuery q) {
+		List<Object> l = new ArrayList<Object>();
+		if (q.getSelect() != null) {
+			l.addAll(q.getSelect());
+		}
+		if (q.getFrom() != null) {
+			l.addAll(q.getFrom());
+		}
+		l.add(q.getWhere());
+		ZGroupBy g = q.getGroupBy();
+		if (g != null) {
+			if (g.getGroupBy() != null) {
+				l.addAll(g.getGroupBy());
+			}
+			l.add(g.getHaving());
+		}
+		l.add(q.getSet());
+		if (q.getOrderBy() != null) {
+			for (ZOrderBy o : q.getOrderBy()) {
+				l.add(o.getExpression());
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * The children of an UPDATE statement, in visit order (SET expressions, and WHERE expression).
+	 */
+	static List<Object> children(ZUpdate upd) {
+		List<Object> l = new ArrayList<Object>();
+		int n = upd.getColumnUpdateCount();
+		if (n > 0 && upd.getColumnUpdateName(1) != null) {
+			for (int i = 1; i <= n; i++) {
+				l.add(upd.getColumnUpdate(i));
+			}
+		} else if (upd.getSet() != null) {
+			l.addAll(upd.getSet().values());
+		}
+		l.add(upd.getWhere());
+		return l;
+	}
+}
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.List;
 
 /**
@@ -30,6 +31,9 @@ import java.util.List;
 public class ZqlParser {
 
 	private ZqlJJParser parser = null;
+	private ZCharSequenceStream chars = null;
+	private ZStatementCache cache = null;
+	private ZFunctionRegistry functions = ZFunctionRegistry.getDefault();
 
 	/**
 	 * Test program: Parses SQL statements from stdin or from a text file.<br>
@@ -92,15 +96,128 @@ public class ZqlParser {
 	 * Initialize (or re-initialize) the input stream for the parser.
 	 */
 	public final void initParser(InputStream in) {
-		if (parser == null) {
+		if (parser == null || parser.jj_input_stream == null) {
+			parser = new ZqlJJParser(in);
+			parser.functions = functions;
+		} else {
+			parser.ReInit(in);
+		}
+	}
+
+	/**
+	 * Initialize (or re-initialize) the character stream for the parser.
+	 */
+	public final void initParser(Reader in) {
+		if (parser == null || parser.jj_input_stream == null) {
 			parser = new ZqlJJParser(in);
+			parser.functions = functions;
 		} else {
 			parser.ReInit(in);
 		}
 	}
 
+	/**
+	 * Initialize (or re-initialize) the parser to read directly from a CharSequence (no Reader, no byte decoding).
+	 */
+	public final void initParser(CharSequence in) {
+		if (chars == null) {
+			chars = new ZCharSequenceStream(in);
+		} else {
+			chars.reset(in);
+		}
+		useCharStream();
+	}
+
+	/**
+	 * Initialize (or re-initialize) the parser to read directly from a part of a CharSequence (from start inclusive to
+	 * end exclusive).
+	 */
+	public final void initParser(CharSequence in, int start, int end) {
+		if (chars == null) {
+			chars = new ZCharSequenceStream(in);
+		}
+		chars.reset(in, start, end);
+		useCharStream();
+	}
+
+	/**
+	 * Initialize (or re-initialize) the parser to read directly from a part of a char array (the array is not copied).
+	 */
+	public final void initParser(char[] in, int offset, int length) {
+		if (chars == null) {
+			chars = new ZCharSequenceStream(in, offset, length);
+		} else {
+			chars.reset(in, offset, length);
+		}
+		useCharStream();
+	}
+
+	private void useCharStream() {
+		if (parser == null) {
+			parser = new ZqlJJParser(new ZqlJJParserTokenManager(chars));
+			parser.functions = functions;
+		} else {
+			parser.token_source.ReInit(chars);
+			parser.ReInit(parser.token_source);
+		}
+	}
+
+	/**
+	 * Forget the input of this parser, so that a pooled parser does not keep the last parsed text alive (see
+	 * ZqlParsers.release()). The parser must be initialized again before use.
+	 */
+	void detachInput() {
+		if (chars != null) {
+			chars.Done();
+		}
+		if (parser != null && parser.jj_input_stream != null) {
+			parser = null; // Its stream buffers the Reader or InputStream
+		}
+	}
+
+	/**
+	 * Use a statement cache for the parse(String) method.
+	 * 
+	 * @param cache
+	 *            The cache (may be shared by several parsers), or null to disable caching.
+	 */
+	public void setStatementCache(ZStatementCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return The statement cache used by parse(String), or null if there's none.
+	 */
+	public ZStatementCache getStatementCache() {
+		return cache;
+	}
+
+	/**
+	 * Use a function registry: the custom functions of this parser.<br>
+	 * A statement cache should not be shared by parsers that have different registries.
+	 * 
+	 * @param functions
+	 *            The registry, or null to use the default registry.
+	 */
+	public void setFunctionRegistry(ZFunctionRegistry functions) {
+		this.functions = (functions == null ? ZFunctionRegistry.getDefault() : functions);
+		if (parser != null) {
+			parser.functions = this.functions;
+		}
+	}
+
+	/**
+	 * @return The function registry of this parser (the default registry, unless another one has been set).
+	 */
+	public ZFunctionRegistry getFunctionRegistry() {
+		return functions;
+	}
+
+	/**
+	 * Register a custom function in the registry of this parser (by default, the registry shared by all parsers).
+	 */
 	public void addCustomFunction(String fct, int nparm) {
-		ZUtils.addCustomFunction(fct, nparm);
+		functions.register(fct, nparm);
 	}
 
 	/**
@@ -115,6 +232,58 @@ public class ZqlParser {
 		return parser.SQLStatement();
 	}
 
+	/**
+	 * Parse an SQL Statement from a String.<br>
+	 * If a statement cache is set, the statement is first looked up in the cache: cached statements are shared, their
+	 * expressions are frozen, and they must not be modified.
+	 * 
+	 * @param sql
+	 *            The SQL text of one statement.
+	 * @return An SQL statement, or null if there's no statement.
+	 */
+	public ZStatement parse(String sql) throws ParseException {
+		ZStatement st = null;
+		if (cache != null) {
+			st = cache.get(sql, functions);
+			if (st != null) {
+				return st;
+			}
+		}
+		initParser((CharSequence) sql);
+		st = readStatement();
+		if (cache != null) {
+			cache.put(sql, st);
+		}
+		return st;
+	}
+
+	/**
+	 * Parse an SQL Statement directly from a CharSequence.
+	 * 
+	 * @param sql
+	 *            The SQL text of one statement.
+	 * @return An SQL statement, or null if there's no statement.
+	 */
+	public ZStatement parse(CharSequence sql) throws ParseException {
+		if (sql instanceof String) {
+			return parse((String) sql);
+		}
+		initParser(sql);
+		return readStatement();
+	}
+
+	/**
+	 * Parse an SQL Expression (like the WHERE clause of an SQL query) directly from a CharSequence.
+	 * 
+	 * @param sql
+	 *            The SQL expression.
+	 * @return An SQL expression.
+	 */
+	public ZExp parseExpression(CharSequence sql) throws ParseException {
+		initParser(sql);
+		return readExpression();
+	}
+
 	/**
 	 * Parse a set of SQL Statements from the parser's input stream (all the available statements are parsed and
 	 * returned).
@@ -0,0 +1,193 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ZqlParsers: a thread-safe parsing facade.<br>
+ * ZqlParser instances are not thread-safe: this class recycles them through a striped, lock-free pool, so that
+ * concurrent callers neither share a parser nor allocate a new one (with its character buffer and token manager) for
+ * each call. The pool never blocks nor holds a monitor while parsing, so it behaves the same on platform and virtual
+ * threads.
+ */
+public final class ZqlParsers {
+
+	private static final int PROBES = 4;
+	private static final int STRIPES = stripes();
+	private static final AtomicReferenceArray<ZqlParser> pool = new AtomicReferenceArray<ZqlParser>(STRIPES);
+
+	private static volatile ZStatementCache cache = null;
+
+	private ZqlParsers() {
+	}
+
+	private static int stripes() {
+		int n = Runtime.getRuntime().availableProcessors() * 4;
+		int s = 16;
+		while (s < n) {
+			s <<= 1;
+		}
+		return s;
+	}
+
+	/**
+	 * Use a statement cache for the parse(String) method.
+	 *
+	 * @param c
+	 *            The cache, or null to disable caching.
+	 */
+	public static void setStatementCache(ZStatementCache c) {
+		cache = c;
+	}
+
+	/**
+	 * @return The statement cache used by parse(String), or null if there's none.
+	 */
+	public static ZStatementCache getStatementCache() {
+		return cache;
+	}
+
+	/**
+	 * Parse one SQL statement. If a statement cache is set, cached statements are shared and must not be modified.
+	 *
+	 * @param sql
+	 *            The SQL text of one statement.
+	 * @return An SQL statement, or null if there's no statement.
+	 */
+	public static ZStatement parse(CharSequence sql) throws ParseException {
+		if (sql instanceof String) {
+			return parse((String) sql);
+		}
+		ZqlParser p = acquire();
+		try {
+			return p.parse(sql);
+		} finally {
+			release(p);
+		}
+	}
+
+	/**
+	 * Parse one SQL statement. If a statement cache is set, cached statements are shared and must not be modified.
+	 *
+	 * @param sql
+	 *            The SQL text of one statement.
+	 * @return An SQL statement, or null if there's no statement.
+	 */
+	public static ZStatement parse(String sql) throws ParseException {
+		ZStatementCache c = cache;
+		if (c != null) {
+			ZStatement st = c.get(sql);
+			if (st != null) {
+				return st;
+			}
+		}
+		ZqlParser p = acquire();
+		try {
+			p.initParser((CharSequence) sql);
+			ZStatement st = p.readStatement();
+			if (c != null) {
+				c.put(sql, st);
+			}
+			return st;
+		} finally {
+			release(p);
+		}
+	}
+
+	/**
+	 * Parse all the SQL statements of a String.
+	 *
+	 * @param sql
+	 *            SQL statements.
+	 * @return A list of ZStatement objects.
+	 */
+	public static List<ZStatement> parseStatements(CharSequence sql) throws ParseException {
+		ZqlParser p = acquire();
+		try {
+			p.initParser(sql);
+			return p.readStatements();
+		} finally {
+			release(p);
+		}
+	}
+
+	/**
+	 * Parse an SQL Expression (like the WHERE clause of an SQL query).
+	 *
+	 * @param sql
+	 *            The SQL expression.
+	 * @return An SQL expression.
+	 */
+	public static ZExp parseExpression(CharSequence sql) throws ParseException {
+		ZqlParser p = acquire();
+		try {
+			p.initParser(sql);
+			return p.readExpression();
+		} finally {
+			release(p);
+		}
+	}
+
+	/**
+	 * Borrow a parser from the pool (or create a new one if no pooled parser is available).<br>
+	 * The parser must be given back with release() once the caller is done with it, and must not be used afterwards.
+	 *
+	 * @return A parser for the exclusive use of the caller.
+	 */
+	public static ZqlParser acquire() {
+		int i = stripe();
+		for (int n = 0; n < PROBES; n++, i = (i + 1) & (STRIPES - 1)) {
+			ZqlParser p = pool.get(i);
+			if (p != null && pool.compareAndSet(i, p, null)) {
+				return p;
+			}
+		}
+		return new ZqlParser();
+	}
+
+	/**
+	 * Give a parser back to the pool. If the pool is full, the parser is dropped. The statement cache and function
+	 * registry of the parser are reset (no cache, default registry), so that a caller's settings are not seen by the
+	 * next one, and its input is detached, so that the pool does not keep the parsed texts alive.
+	 *
+	 * @param p
+	 *            A parser obtained from acquire().
+	 */
+	public static void release(ZqlParser p) {
+		if (p == null) {
+			return;
+		}
+		p.setStatementCache(null);
+		p.setFunctionRegistry(null);
+		p.detachInput();
+		int i = stripe();
+		for (int n = 0; n < PROBES; n++, i = (i + 1) & (STRIPES - 1)) {
+			if (pool.get(i) == null && pool.compareAndSet(i, null, p)) {
+				return;
+			}
+		}
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+}
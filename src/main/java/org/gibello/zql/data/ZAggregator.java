@@ -0,0 +1,621 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import static org.gibello.zql.ZUtils.isDouble;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.gibello.zql.ZConstant;
+import org.gibello.zql.ZExp;
+import org.gibello.zql.ZExpression;
+import org.gibello.zql.ZGroupBy;
+import org.gibello.zql.ZQuery;
+import org.gibello.zql.ZSelectItem;
+
+/**
+ * ZAggregator: executes the WHERE, GROUP BY and HAVING clauses and the aggregates (SUM, AVG, MAX, MIN, COUNT) of a
+ * query on rows added one by one (see ZEval.aggregate()).<br>
+ * Groups are found in an open-addressing hash table keyed on the values of the GROUP BY expressions. Numeric keys are
+ * stored in primitive arrays (a key column switches to objects when it gets a string or a NULL). The accumulators are
+ * primitive arrays indexed by group: counts in long[], sums, minimums and maximums in double[]. NULL values are
+ * ignored by the aggregates, like in SQL.<br>
+ * HAVING and the SELECT items are evaluated once per group, when the result is built: aggregates and GROUP BY
+ * expressions are then the columns of the group.<br>
+ * An aggregator is not thread-safe.
+ */
+public final class ZAggregator {
+
+	private static final int COUNT_ALL = 0, COUNT = 1, SUM = 2, AVG = 3, MIN = 4, MAX = 5;
+
+	private static final String KEY = "$key", AGG = "$agg";
+
+	private final ZCompiledPredicate where;
+
+	// GROUP BY expressions: columns are read directly (slot >= 0), numeric expressions with evalDouble()
+	private final ZCompiledExpression[] keys;
+	private final int[] keySlots;
+	private final boolean[] keyNumeric;
+
+	// Aggregates: the argument is null for COUNT(*)
+	private final String[] aggNames;
+	private final int[] aggOps;
+	private final ZCompiledExpression[] aggArgs;
+	private final int[] aggSlots;
+	private final boolean[] aggNumeric;
+	private final boolean[] aggDistinct;
+	private HashSet<DistinctValue> distinct = null;
+
+	// Groups: table holds group + 1 (0 for an empty slot)
+	private int groups = 0;
+	private int[] table = new int[16];
+	private int[] hashes = new int[8];
+	// Per key column: the doubles array is null when the column stores objects
+	private final double[][] keyDoubles;
+	private final Object[][] keyObjects;
+	private final long[][] counts;
+	private final double[][] values;
+
+	// Keys of the current row (Double.NaN is a valid double key: rowIsDouble tells which array is used)
+	private final double[] rowDoubles;
+	private final Object[] rowObjects;
+	private final boolean[] rowIsDouble;
+
+	// Output
+	private final ZSchema output;
+	private final ZCompiledExpression[] select;
+	private final int[] selectSlots;
+	private final ZCompiledPredicate having;
+
+	ZAggregator(ZEval eval, ZQuery q, ZSchema schema) throws SQLException {
+		ZCompiler in = new ZCompiler(eval, schema);
+		where = (q.getWhere() == null ? null
+				: new ZCompiler(eval, schema, eval.isAdaptiveOrdering()).predicate(ZOptimizer.optimize(q.getWhere())));
+
+		ZGroupBy g = q.getGroupBy();
+		List<ZExp> groupBy = (g == null || g.getGroupBy() == null ? Collections.<ZExp> emptyList() : g.getGroupBy());
+		int nk = groupBy.size();
+		keys = new ZCompiledExpression[nk];
+		keySlots = new int[nk];
+		keyNumeric = new boolean[nk];
+		keyDoubles = new double[nk][];
+		keyObjects = new Object[nk][];
+		for (int i = 0; i < nk; i++) {
+			keys[i] = in.value(ZOptimizer.optimize(groupBy.get(i)));
+			keySlots[i] = slot(keys[i]);
+			keyNumeric[i] = isNumeric(keys[i]);
+			keyDoubles[i] = new double[hashes.length];
+		}
+		rowDoubles = new double[nk];
+		rowObjects = new Object[nk];
+		rowIsDouble = new boolean[nk];
+
+		// SELECT items and HAVING: aggregates and GROUP BY expressions are replaced by columns of the group
+		List<ZExpression> aggs = new ArrayList<ZExpression>();
+		List<String> names = new ArrayList<String>();
+		List<ZExp> items = new ArrayList<ZExp>();
+		if (q.getSelect() != null) {
+			for (ZSelectItem it : q.getSelect()) {
+				ZExp e = it.getExpression();
+				if (e == null) {
+					throw new SQLException("ZEval.aggregate(): can't aggregate " + it);
+				}
+				items.add(bind(e, groupBy, aggs));
+				names.add(it.getAlias() != null ? it.getAlias() : e.toString());
+			}
+		}
+		ZExp h = (g == null || g.getHaving() == null ? null : bind(g.getHaving(), groupBy, aggs));
+		output = new ZSchema(names);
+
+		int na = aggs.size();
+		aggNames = new String[na];
+		aggOps = new int[na];
+		aggArgs = new ZCompiledExpression[na];
+		aggSlots = new int[na];
+		aggNumeric = new boolean[na];
+		aggDistinct = new boolean[na];
+		counts = new long[na][];
+		values = new double[na][];
+		for (int j = 0; j < na; j++) {
+			aggregate(j, aggs.get(j), in);
+			counts[j] = new long[hashes.length];
+			values[j] = new double[hashes.length];
+		}
+
+		List<String> cols = new ArrayList<String>();
+		for (int i = 0; i < nk; i++) {
+			cols.add(KEY + i);
+		}
+		for (int j = 0; j < na; j++) {
+			cols.add(AGG + j);
+		}
+		ZSchema groupSchema = new ZSchema(cols);
+		ZCompiler out = new ZCompiler(eval, groupSchema);
+		select = new ZCompiledExpression[items.size()];
+		selectSlots = new int[items.size()];
+		for (int i = 0; i < select.length; i++) {
+			select[i] = out.value(ZOptimizer.optimize(items.get(i)));
+			selectSlots[i] = slot(select[i]);
+		}
+		having = (h == null ? null : out.predicate(ZOptimizer.optimize(h)));
+
+		if (nk == 0) {
+			newGroup(0); // Aggregates without GROUP BY: one group, even if there's no row
+		}
+	}
+
+	/**
+	 * Replace the aggregates and GROUP BY expressions of an expression by the columns of the group.
+	 */
+	private static ZExp bind(ZExp e, List<ZExp> groupBy, List<ZExpression> aggs) throws SQLException {
+		int k = groupBy.indexOf(e);
+		if (k >= 0) {
+			return new ZConstant(KEY + k, ZConstant.Type.COLUMNNAME);
+		}
+		if (e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.COLUMNNAME) {
+			throw new SQLException("ZEval.aggregate(): column " + ((ZConstant) e).getValue()
+					+ " is not in the GROUP BY clause");
+		}
+		if (!(e instanceof ZExpression)) {
+			return e;
+		}
+		ZExpression x = (ZExpression) e;
+		if (x.getFunction() == null && x.getOpcode().isAggregate()) {
+			int j = aggs.indexOf(x);
+			if (j < 0) {
+				j = aggs.size();
+				aggs.add(x);
+			}
+			return new ZConstant(AGG + j, ZConstant.Type.COLUMNNAME);
+		}
+		List<ZExp> operands = null;
+		for (int i = 0; i < x.nbOperands(); i++) {
+			ZExp o = x.getOperand(i);
+			ZExp b = bind(o, groupBy, aggs);
+			if (b != o && operands == null) {
+				operands = new ArrayList<ZExp>(x.getOperands());
+			}
+			if (operands != null) {
+				operands.set(i, b);
+			}
+		}
+		if (operands == null) {
+			return x;
+		}
+		ZExpression r = new ZExpression(x.getOperator());
+		r.setFunction(x.getFunction());
+		r.setOperands(operands);
+		return r;
+	}
+
+	/**
+	 * Compile an aggregate call.
+	 */
+	private void aggregate(int j, ZExpression a, ZCompiler in) throws SQLException {
+		aggNames[j] = a.getOperator();
+		switch (a.getOpcode()) {
+		case SUM:
+			aggOps[j] = SUM;
+			break;
+		case AVG:
+			aggOps[j] = AVG;
+			break;
+		case MIN:
+			aggOps[j] = MIN;
+			break;
+		case MAX:
+			aggOps[j] = MAX;
+			break;
+		default:
+			aggOps[j] = COUNT;
+			break;
+		}
+		if (a.nbOperands() != 1) {
+			throw new SQLException("ZEval.aggregate(): " + a + " should have one operand");
+		}
+		ZExp arg = a.getOperand(0);
+		if (arg instanceof ZConstant && ((ZConstant) arg).getType() == ZConstant.Type.COLUMNNAME) {
+			// The parser keeps the ALL or DISTINCT modifier in the column name
+			String v = ((ZConstant) arg).getValue();
+			String lower = v.toLowerCase();
+			if (v.equals("*")) {
+				if (aggOps[j] != COUNT) {
+					throw new SQLException("ZEval.aggregate(): " + a + " is not supported");
+				}
+				aggOps[j] = COUNT_ALL;
+				return;
+			} else if (lower.startsWith("distinct ")) {
+				aggDistinct[j] = true;
+				arg = new ZConstant(v.substring(9).trim(), ZConstant.Type.COLUMNNAME);
+			} else if (lower.startsWith("all ")) {
+				arg = new ZConstant(v.substring(4).trim(), ZConstant.Type.COLUMNNAME);
+			}
+		}
+		aggArgs[j] = in.value(ZOptimizer.optimize(arg));
+		aggSlots[j] = slot(aggArgs[j]);
+		aggNumeric[j] = isNumeric(aggArgs[j]) && aggOps[j] != COUNT;
+	}
+
+	private static int slot(ZCompiledExpression e) {
+		return e instanceof ZCompiler.Column ? ((ZCompiler.Column) e).slot : -1;
+	}
+
+	private static boolean isNumeric(ZCompiledExpression e) {
+		return e instanceof ZCompiler.Arithmetic || e instanceof ZCompiler.Numeric;
+	}
+
+	/**
+	 * Add a row: if it satisfies the WHERE clause, it is added to its group.
+	 * 
+	 * @param row
+	 *            A row of the schema the aggregator was created for
+	 */
+	public void add(ZRow row) throws SQLException {
+		if (where != null && !where.test(row)) {
+			return;
+		}
+		int h = 0;
+		for (int i = 0; i < keys.length; i++) {
+			h = h * 31 + readKey(row, i);
+		}
+		accumulate(row, keys.length == 0 ? 0 : find(h));
+	}
+
+	/**
+	 * Add the selected rows of a batch.
+	 * 
+	 * @param batch
+	 *            A batch of the schema the aggregator was created for
+	 * @param sel
+	 *            The selected rows (see ZBatchPredicate)
+	 * @param n
+	 *            The number of selected rows
+	 */
+	public void add(ZColumnBatch batch, int[] sel, int n) throws SQLException {
+		ZColumnBatch.Cursor cur = new ZColumnBatch.Cursor(batch);
+		for (int i = 0; i < n; i++) {
+			cur.row = sel[i];
+			add(cur);
+		}
+	}
+
+	/**
+	 * Read the value of a key column for the current row.
+	 * 
+	 * @return The hash of the value.
+	 */
+	private int readKey(ZRow row, int i) throws SQLException {
+		if (keyNumeric[i]) {
+			return setKey(i, keys[i].evalDouble(row));
+		}
+		Object v = (keySlots[i] >= 0 ? ZEval.number(row.getAttValue(keySlots[i])) : keys[i].eval(row));
+		if (v instanceof Number) {
+			return setKey(i, ((Number) v).doubleValue());
+		}
+		rowIsDouble[i] = false;
+		rowObjects[i] = v;
+		if (keyDoubles[i] != null) {
+			toObjects(i);
+		}
+		return v == null ? 0 : v.hashCode();
+	}
+
+	private int setKey(int i, double d) {
+		// d + 0.0 turns -0.0 into 0.0
+		d += 0.0;
+		rowIsDouble[i] = true;
+		rowDoubles[i] = d;
+		long bits = Double.doubleToLongBits(d);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	/**
+	 * Switch a key column from doubles to objects.
+	 */
+	private void toObjects(int i) {
+		double[] d = keyDoubles[i];
+		Object[] o = new Object[d.length];
+		for (int g = 0; g < groups; g++) {
+			o[g] = Double.valueOf(d[g]);
+		}
+		keyObjects[i] = o;
+		keyDoubles[i] = null;
+	}
+
+	/**
+	 * Find the group of the current row, or create it.
+	 */
+	private int find(int h) {
+		int mask = table.length - 1;
+		int i = mix(h) & mask;
+		for (;;) {
+			int g = table[i] - 1;
+			if (g < 0) {
+				g = newGroup(h);
+				table[i] = g + 1;
+				if (groups * 2 > table.length) {
+					rehash();
+				}
+				return g;
+			}
+			if (hashes[g] == h && sameKeys(g)) {
+				return g;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private boolean sameKeys(int g) {
+		for (int i = 0; i < keys.length; i++) {
+			double[] d = keyDoubles[i];
+			if (d != null) {
+				if (Double.doubleToLongBits(d[g]) != Double.doubleToLongBits(rowDoubles[i])) {
+					return false;
+				}
+			} else {
+				Object o = keyObjects[i][g];
+				if (rowIsDouble[i]) {
+					if (!(o instanceof Double)
+							|| Double.doubleToLongBits((Double) o) != Double.doubleToLongBits(rowDoubles[i])) {
+						return false;
+					}
+				} else if (o == null ? rowObjects[i] != null : !o.equals(rowObjects[i])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private int newGroup(int h) {
+		int g = groups;
+		if (g == hashes.length) {
+			int n = g * 2;
+			hashes = Arrays.copyOf(hashes, n);
+			for (int i = 0; i < keys.length; i++) {
+				if (keyDoubles[i] != null) {
+					keyDoubles[i] = Arrays.copyOf(keyDoubles[i], n);
+				} else {
+					keyObjects[i] = Arrays.copyOf(keyObjects[i], n);
+				}
+			}
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] = Arrays.copyOf(counts[j], n);
+				values[j] = Arrays.copyOf(values[j], n);
+			}
+		}
+		hashes[g] = h;
+		for (int i = 0; i < keys.length; i++) {
+			if (keyDoubles[i] != null) {
+				keyDoubles[i][g] = rowDoubles[i];
+			} else {
+				keyObjects[i][g] = (rowIsDouble[i] ? Double.valueOf(rowDoubles[i]) : rowObjects[i]);
+			}
+		}
+		for (int j = 0; j < values.length; j++) {
+			values[j][g] = (aggOps[j] == MIN ? Double.POSITIVE_INFINITY
+					: aggOps[j] == MAX ? Double.NEGATIVE_INFINITY : 0);
+		}
+		groups++;
+		return g;
+	}
+
+	private void rehash() {
+		int[] t = new int[table.length * 2];
+		int mask = t.length - 1;
+		for (int g = 0; g < groups; g++) {
+			int i = mix(hashes[g]) & mask;
+			while (t[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			t[i] = g + 1;
+		}
+		table = t;
+	}
+
+	private void accumulate(ZRow row, int g) throws SQLException {
+		for (int j = 0; j < aggOps.length; j++) {
+			int op = aggOps[j];
+			if (op == COUNT_ALL) {
+				counts[j][g]++;
+				continue;
+			}
+			double d = 0;
+			Object v = null;
+			if (aggNumeric[j]) {
+				d = aggArgs[j].evalDouble(row);
+			} else {
+				v = (aggSlots[j] >= 0 ? row.getAttValue(aggSlots[j]) : aggArgs[j].eval(row));
+				if (v == null) {
+					continue; // NULL values are ignored
+				}
+				if (v instanceof Number || isDouble(v)) {
+					d = ZEval.toDouble(v);
+					v = null;
+				} else if (op != COUNT) {
+					throw new SQLException("ZEval.aggregate(): " + aggNames[j] + " of a non-numeric value (" + v
+							+ ")");
+				}
+			}
+			if (aggDistinct[j] && !distinct(j, g, v != null ? v : Double.valueOf(d + 0.0))) {
+				continue;
+			}
+			counts[j][g]++;
+			switch (op) {
+			case SUM:
+			case AVG:
+				values[j][g] += d;
+				break;
+			case MIN:
+				if (d < values[j][g]) {
+					values[j][g] = d;
+				}
+				break;
+			case MAX:
+				if (d > values[j][g]) {
+					values[j][g] = d;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the value has not been seen yet by this aggregate in this group.
+	 */
+	private boolean distinct(int j, int g, Object v) {
+		if (distinct == null) {
+			distinct = new HashSet<DistinctValue>();
+		}
+		return distinct.add(new DistinctValue(j, g, v));
+	}
+
+	private static final class DistinctValue {
+		final int aggregate;
+		final int group;
+		final Object value;
+
+		DistinctValue(int aggregate, int group, Object value) {
+			this.aggregate = aggregate;
+			this.group = group;
+			this.value = value;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof DistinctValue)) {
+				return false;
+			}
+			DistinctValue d = (DistinctValue) o;
+			return aggregate == d.aggregate && group == d.group && value.equals(d.value);
+		}
+
+		public int hashCode() {
+			return (aggregate * 31 + group) * 31 + value.hashCode();
+		}
+	}
+
+	/**
+	 * @return The number of groups (before HAVING).
+	 */
+	public int getGroupCount() {
+		return groups;
+	}
+
+	/**
+	 * @return The names of the result columns: the aliases of the SELECT items, or their SQL text.
+	 */
+	public ZSchema getSchema() {
+		return output;
+	}
+
+	/**
+	 * Build the result: the values of the SELECT items for each group that satisfies the HAVING clause, in the order
+	 * the groups have been created. COUNT is a Long, the other aggregates are Doubles (or null if there was no value).
+	 * 
+	 * @return The result rows.
+	 */
+	public List<Object[]> getResult() throws SQLException {
+		GroupRow row = new GroupRow();
+		List<Object[]> res = new ArrayList<Object[]>();
+		for (int g = 0; g < groups; g++) {
+			row.group = g;
+			if (having != null && !test(row)) {
+				continue;
+			}
+			Object[] r = new Object[select.length];
+			for (int i = 0; i < r.length; i++) {
+				r[i] = (selectSlots[i] >= 0 ? row.getAttValue(selectSlots[i]) : eval(select[i], row));
+			}
+			res.add(r);
+		}
+		return res;
+	}
+
+	/*
+	 * The compiled expressions fail on a NULL column: an expression of an aggregate that has no value (like SUM(x) + 1
+	 * or SUM(x) > 4) is NULL, and HAVING is then false (put IS NULL tests first in an OR).
+	 */
+
+	private boolean test(GroupRow row) throws SQLException {
+		try {
+			return having.test(row);
+		} catch (SQLException e) {
+			if (hasNull(row)) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private Object eval(ZCompiledExpression e, GroupRow row) throws SQLException {
+		try {
+			return e.eval(row);
+		} catch (SQLException ex) {
+			if (hasNull(row)) {
+				return null;
+			}
+			throw ex;
+		}
+	}
+
+	private boolean hasNull(GroupRow row) {
+		for (int i = 0; i < keys.length + aggOps.length; i++) {
+			if (row.getAttValue(i) == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A finalized group: the keys, then the values of the aggregates.
+	 */
+	private final class GroupRow implements ZRow {
+		int group;
+
+		public Object getAttValue(int index) {
+			if (index < keys.length) {
+				return keyDoubles[index] != null ? Double.valueOf(keyDoubles[index][group])
+						: keyObjects[index][group];
+			}
+			int j = index - keys.length;
+			long n = counts[j][group];
+			switch (aggOps[j]) {
+			case COUNT_ALL:
+			case COUNT:
+				return Long.valueOf(n);
+			case AVG:
+				return n == 0 ? null : Double.valueOf(values[j][group] / n);
+			default:
+				return n == 0 ? null : Double.valueOf(values[j][group]);
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+import java.util.BitSet;
+
+/**
+ * ZBatchExpression: a numeric expression compiled by ZEval.compileBatchExpression(), evaluated on batches of rows (see
+ * ZColumnBatch). Arithmetic on numeric columns is computed in loops over primitive arrays; other expressions are
+ * evaluated row by row. A batch expression can be used by several threads.
+ */
+public final class ZBatchExpression {
+
+	private final ZCompiledExpression tree;
+	private final ZVectorizer.Vector vector;
+	private final int[] slots;
+
+	ZBatchExpression(ZCompiledExpression tree) {
+		this.tree = tree;
+		this.vector = ZVectorizer.vector(tree);
+		BitSet s = new BitSet();
+		ZVectorizer.slots(tree, s);
+		this.slots = ZVectorizer.toArray(s);
+	}
+
+	/**
+	 * Evaluate the expression on the selected rows.
+	 * 
+	 * @param batch
+	 *            The rows
+	 * @param sel
+	 *            The selection vector
+	 * @param n
+	 *            The number of selected rows
+	 * @param out
+	 *            The values: out[i] is the value of row sel[i] (NaN if a column used by the expression is null).
+	 */
+	public void eval(ZColumnBatch batch, int[] sel, int n, double[] out) throws SQLException {
+		if (vector != null && vector.isNumeric(batch)) {
+			vector.eval(batch, sel, n, out);
+		} else {
+			ZColumnBatch.Cursor cur = new ZColumnBatch.Cursor(batch);
+			for (int i = 0; i < n; i++) {
+				cur.row = sel[i];
+				out[i] = (hasNull(batch, sel[i]) ? Double.NaN : tree.evalDouble(cur));
+			}
+			return;
+		}
+		for (int s : slots) {
+			if (batch.getNulls(s) != null) {
+				for (int i = 0; i < n; i++) {
+					if (batch.isNull(s, sel[i])) {
+						out[i] = Double.NaN;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The values of the selected rows (see eval(ZColumnBatch, int[], int, double[])).
+	 */
+	public double[] eval(ZColumnBatch batch, int[] sel, int n) throws SQLException {
+		double[] out = new double[n];
+		eval(batch, sel, n, out);
+		return out;
+	}
+
+	private boolean hasNull(ZColumnBatch batch, int row) {
+		for (int s : slots) {
+			if (batch.isNull(s, row)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
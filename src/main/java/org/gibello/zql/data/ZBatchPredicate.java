@@ -0,0 +1,57 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * ZBatchPredicate: a boolean expression compiled by ZEval.compileBatch(), evaluated on batches of rows (see
+ * ZColumnBatch and ZVectorizer). A batch predicate can be used by several threads.
+ */
+public final class ZBatchPredicate {
+
+	private final ZVectorizer.Filter filter;
+
+	ZBatchPredicate(ZVectorizer.Filter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Keep the selected rows for which the predicate is true.
+	 * 
+	 * @param batch
+	 *            The rows
+	 * @param sel
+	 *            The selection vector: it is narrowed in place
+	 * @param n
+	 *            The number of selected rows (the first n elements of sel)
+	 * @return The number of rows that are still selected.
+	 */
+	public int filter(ZColumnBatch batch, int[] sel, int n) throws SQLException {
+		return filter.filter(batch, sel, n, false);
+	}
+
+	/**
+	 * @return The selection vector of the rows of the batch for which the predicate is true.
+	 */
+	public int[] select(ZColumnBatch batch) throws SQLException {
+		int[] sel = batch.selectAll();
+		return Arrays.copyOf(sel, filter(batch, sel, sel.length));
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZClassWriter: a minimal class file writer, for the classes generated by ZCodegen.<br>
+ * Classes are written in the Java 5 format (version 49), which is verified by type inference: no stack map frames are
+ * needed. The caller computes the stack depth changes of the instructions it emits.
+ */
+final class ZClassWriter {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	// Opcodes
+	static final int ICONST_0 = 3, ICONST_1 = 4, DCONST_0 = 14, BIPUSH = 16, SIPUSH = 17, LDC_W = 19, LDC2_W = 20;
+	static final int ALOAD = 25, ALOAD_0 = 42, ALOAD_1 = 43, AALOAD = 50, ASTORE = 58;
+	static final int DADD = 99, DSUB = 103, DMUL = 107, DDIV = 111, DNEG = 119, IXOR = 130;
+	static final int DCMPL = 151, DCMPG = 152;
+	static final int IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158, GOTO = 167;
+	static final int IRETURN = 172, DRETURN = 175, ARETURN = 176, RETURN = 177;
+	static final int GETFIELD = 180, PUTFIELD = 181;
+	static final int INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184;
+
+	private final String name;
+	private final String superName;
+	private final Bytes pool = new Bytes();
+	private final Map<String, Integer> entries = new HashMap<String, Integer>();
+	private int poolCount = 1;
+	private final Bytes fields = new Bytes();
+	private int fieldCount = 0;
+	private final List<Code> methods = new ArrayList<Code>();
+
+	/**
+	 * @param name
+	 *            The internal name of the class (like "a/b/C")
+	 * @param superName
+	 *            The internal name of the super class
+	 */
+	ZClassWriter(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	// -------------------------------------------------------------------------
+	// Constant pool
+
+	int utf8(String s) {
+		Integer i = entries.get("U" + s);
+		if (i == null) {
+			pool.u1(1);
+			pool.utf(s);
+			i = add("U" + s, 1);
+		}
+		return i;
+	}
+
+	int cls(String internalName) {
+		Integer i = entries.get("C" + internalName);
+		if (i == null) {
+			int u = utf8(internalName);
+			pool.u1(7).u2(u);
+			i = add("C" + internalName, 1);
+		}
+		return i;
+	}
+
+	int string(String s) {
+		Integer i = entries.get("S" + s);
+		if (i == null) {
+			int u = utf8(s);
+			pool.u1(8).u2(u);
+			i = add("S" + s, 1);
+		}
+		return i;
+	}
+
+	int dbl(double d) {
+		long bits = Double.doubleToRawLongBits(d);
+		Integer i = entries.get("D" + bits);
+		if (i == null) {
+			pool.u1(6).u4((int) (bits >>> 32)).u4((int) bits);
+			i = add("D" + bits, 2);
+		}
+		return i;
+	}
+
+	int field(String owner, String name, String desc) {
+		return member(9, owner, name, desc);
+	}
+
+	int method(String owner, String name, String desc) {
+		return member(10, owner, name, desc);
+	}
+
+	private int member(int tag, String owner, String name, String desc) {
+		String key = "M" + tag + owner + '.' + name + desc;
+		Integer i = entries.get(key);
+		if (i == null) {
+			int c = cls(owner);
+			int nt = nameAndType(name, desc);
+			pool.u1(tag).u2(c).u2(nt);
+			i = add(key, 1);
+		}
+		return i;
+	}
+
+	private int nameAndType(String name, String desc) {
+		String key = "N" + name + ' ' + desc;
+		Integer i = entries.get(key);
+		if (i == null) {
+			int n = utf8(name);
+			int d = utf8(desc);
+			pool.u1(12).u2(n).u2(d);
+			i = add(key, 1);
+		}
+		return i;
+	}
+
+	private Integer add(String key, int size) {
+		Integer i = Integer.valueOf(poolCount);
+		entries.put(key, i);
+		poolCount += size;
+		if (poolCount > 0xFFFF) {
+			throw new TooLargeException("ZClassWriter: constant pool overflow");
+		}
+		return i;
+	}
+
+	// -------------------------------------------------------------------------
+	// Members
+
+	void addField(int access, String name, String desc) {
+		fields.u2(access).u2(utf8(name)).u2(utf8(desc)).u2(0);
+		fieldCount++;
+	}
+
+	/**
+	 * Add a method: its instructions are emitted with the returned Code.
+	 * 
+	 * @param args
+	 *            The number of local variable slots used by the arguments (including this)
+	 */
+	Code addMethod(int access, String name, String desc, int args) {
+		Code c = new Code(this, access, utf8(name), utf8(desc), args);
+		methods.add(c);
+		return c;
+	}
+
+	byte[] toByteArray() {
+		int thisIndex = cls(name);
+		int superIndex = cls(superName);
+		int codeIndex = utf8("Code");
+		Bytes out = new Bytes();
+		out.u4(0xCAFEBABE).u2(0).u2(49);
+		out.u2(poolCount).bytes(pool);
+		out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(thisIndex).u2(superIndex).u2(0);
+		out.u2(fieldCount).bytes(fields);
+		out.u2(methods.size());
+		for (Code c : methods) {
+			c.write(out, codeIndex);
+		}
+		out.u2(0);
+		return out.toByteArray();
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * A jump target.
+	 */
+	static final class Label {
+		int pos = -1;
+		final List<int[]> refs = new ArrayList<int[]>(2); // {instruction, offset} to patch
+	}
+
+	/**
+	 * The instructions of a method.
+	 */
+	static final class Code {
+		private final ZClassWriter cw;
+		private final int access, name, desc;
+		private final Bytes code = new Bytes();
+		private final List<Label> labels = new ArrayList<Label>();
+		private int stack = 0;
+		private int maxStack = 0;
+		private int maxLocals;
+
+		Code(ZClassWriter cw, int access, int name, int desc, int args) {
+			this.cw = cw;
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+			this.maxLocals = args;
+		}
+
+		ZClassWriter getClassWriter() {
+			return cw;
+		}
+
+		/**
+		 * Allocate local variable slots.
+		 * 
+		 * @return The first slot.
+		 */
+		int newLocal(int size) {
+			int l = maxLocals;
+			maxLocals += size;
+			if (maxLocals > 255) {
+				throw new TooLargeException("ZClassWriter: too many local variables");
+			}
+			return l;
+		}
+
+		private void stack(int delta) {
+			stack += delta;
+			if (stack > maxStack) {
+				maxStack = stack;
+			}
+		}
+
+		/**
+		 * An instruction without operand.
+		 * 
+		 * @param delta
+		 *            The change of the stack depth (in slots)
+		 */
+		void op(int opcode, int delta) {
+			code.u1(opcode);
+			stack(delta);
+		}
+
+		void op1(int opcode, int operand, int delta) {
+			code.u1(opcode).u1(operand);
+			stack(delta);
+		}
+
+		void op2(int opcode, int operand, int delta) {
+			code.u1(opcode).u2(operand);
+			stack(delta);
+		}
+
+		void iconst(int i) {
+			if (i >= -1 && i <= 5) {
+				op(ICONST_0 + i, 1);
+			} else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+				op1(BIPUSH, i, 1);
+			} else {
+				op2(SIPUSH, i, 1);
+			}
+		}
+
+		void ldc(String s) {
+			op2(LDC_W, cw.string(s), 1);
+		}
+
+		void ldc(double d) {
+			op2(LDC2_W, cw.dbl(d), 2);
+		}
+
+		/**
+		 * @param delta
+		 *            The change of the stack depth (in slots)
+		 */
+		void invoke(int opcode, String owner, String name, String desc, int delta) {
+			op2(opcode, cw.method(owner, name, desc), delta);
+		}
+
+		void getfield(String owner, String name, String desc) {
+			op2(GETFIELD, cw.field(owner, name, desc), 0);
+		}
+
+		void putfield(String owner, String name, String desc) {
+			op2(PUTFIELD, cw.field(owner, name, desc), -2);
+		}
+
+		Label newLabel() {
+			Label l = new Label();
+			labels.add(l);
+			return l;
+		}
+
+		/**
+		 * A jump: the stack depth at the target is the depth after the jump.
+		 */
+		void jump(int opcode, Label l, int delta) {
+			l.refs.add(new int[] { code.size(), code.size() + 1 });
+			code.u1(opcode).u2(0);
+			stack(delta);
+		}
+
+		/**
+		 * Place a label at the current position.
+		 * 
+		 * @param depth
+		 *            The stack depth at this position
+		 */
+		void mark(Label l, int depth) {
+			l.pos = code.size();
+			stack = depth;
+		}
+
+		int depth() {
+			return stack;
+		}
+
+		private void write(Bytes out, int codeIndex) {
+			for (Label l : labels) {
+				for (int[] r : l.refs) {
+					int offset = l.pos - r[0];
+					if (l.pos < 0 || offset != (short) offset) {
+						throw new TooLargeException("ZClassWriter: jump out of range");
+					}
+					code.set2(r[1], offset);
+				}
+			}
+			if (code.size() > 0xFFFF) {
+				throw new TooLargeException("ZClassWriter: method too large");
+			}
+			out.u2(access).u2(name).u2(desc).u2(1);
+			out.u2(codeIndex).u4(12 + code.size());
+			out.u2(maxStack).u2(maxLocals).u4(code.size()).bytes(code);
+			out.u2(0).u2(0); // No exception table, no attribute
+		}
+	}
+
+	/**
+	 * A growable byte array (big-endian).
+	 */
+	static final class Bytes {
+		private byte[] b = new byte[256];
+		private int n = 0;
+
+		private void ensure(int k) {
+			if (n + k > b.length) {
+				b = Arrays.copyOf(b, Math.max(b.length * 2, n + k));
+			}
+		}
+
+		Bytes u1(int v) {
+			ensure(1);
+			b[n++] = (byte) v;
+			return this;
+		}
+
+		Bytes u2(int v) {
+			ensure(2);
+			b[n++] = (byte) (v >>> 8);
+			b[n++] = (byte) v;
+			return this;
+		}
+
+		Bytes u4(int v) {
+			return u2(v >>> 16).u2(v);
+		}
+
+		Bytes bytes(Bytes o) {
+			ensure(o.n);
+			System.arraycopy(o.b, 0, b, n, o.n);
+			n += o.n;
+			return this;
+		}
+
+		/**
+		 * Modified UTF-8, with its length.
+		 */
+		Bytes utf(String s) {
+			int start = n;
+			u2(0);
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c >= 1 && c < 0x80) {
+					u1(c);
+				} else if (c < 0x800) {
+					u1(0xC0 | (c >> 6)).u1(0x80 | (c & 0x3F));
+				} else {
+					u1(0xE0 | (c >> 12)).u1(0x80 | ((c >> 6) & 0x3F)).u1(0x80 | (c & 0x3F));
+				}
+			}
+			int len = n - start - 2;
+			if (len > 0xFFFF) {
+				throw new TooLargeException("ZClassWriter: string too long");
+			}
+			set2(start, len);
+			return this;
+		}
+
+		void set2(int pos, int v) {
+			b[pos] = (byte) (v >>> 8);
+			b[pos + 1] = (byte) v;
+		}
+
+		int size() {
+			return n;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(b, n);
+		}
+	}
+
+	/**
+	 * Thrown when a class exceeds a limit of the class file format (code size, constant pool, locals...).
+	 */
+	static final class TooLargeException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		TooLargeException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,676 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import static org.gibello.zql.data.ZClassWriter.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ZCodegen: generates Java classes for compiled expressions (see ZEval.setCodegen()).<br>
+ * The tree of a compiled predicate or arithmetic expression is turned into the bytecode of one test(ZRow) or
+ * evalDouble(ZRow) method, that the JIT can inline as a whole. Arithmetic stays on primitive doubles, and columns are
+ * read from their slots. The nodes that have no bytecode form (LIKE, IN, function calls...) are called from the
+ * generated code: they are interpreted, with the same semantics.<br>
+ * With adaptive(), expressions are interpreted until they have been evaluated a number of times (the threshold), and
+ * only the hot ones are generated. Generated classes are kept in a bounded cache, keyed by the shape of the tree
+ * (operators, column slots and constants), so that compiling the same expression again does not define a new class.
+ * If a class is too large for the class file format, the interpreter is used. If it can't be generated for another
+ * reason (a verify or linkage error, most likely a bug of the generator), the interpreter is used too, but the
+ * failure is counted (see getFailureCount() and getLastFailure()). All methods are thread-safe.
+ */
+public final class ZCodegen {
+
+	/**
+	 * The default number of evaluations after which an expression is generated.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * The default number of generated classes kept in the cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	private static final String PACKAGE = "org/gibello/zql/data/";
+	private static final String PRED = PACKAGE + "ZCompiledPredicate";
+	private static final String EXPR = PACKAGE + "ZCompiledExpression";
+	private static final String ROW = "L" + PACKAGE + "ZRow;";
+	private static final String SUPPORT = PACKAGE + "ZCodegen$Support";
+	private static final String PREDS = "[L" + PRED + ";";
+	private static final String EXPRS = "[L" + EXPR + ";";
+	private static final String OBJECT = "Ljava/lang/Object;";
+
+	private static int classCount = 0;
+
+	private final int threshold;
+	private final LinkedHashMap<String, Class<?>> cache;
+	private int failures = 0;
+	private Throwable lastFailure = null;
+
+	/**
+	 * Create a code generator with the default threshold and cache size.
+	 */
+	public ZCodegen() {
+		this(DEFAULT_THRESHOLD, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Create a code generator.
+	 * 
+	 * @param threshold
+	 *            The number of evaluations after which adaptive() expressions are generated
+	 * @param cacheSize
+	 *            The maximum number of generated classes kept in the cache
+	 */
+	public ZCodegen(int threshold, final int cacheSize) {
+		if (threshold < 0 || cacheSize < 1) {
+			throw new IllegalArgumentException("ZCodegen: invalid threshold or cache size");
+		}
+		this.threshold = threshold;
+		this.cache = new LinkedHashMap<String, Class<?>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * @return The number of evaluations after which adaptive() expressions are generated.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return The number of classes in the cache (failed generations included).
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return The number of classes that could not be defined or instantiated, for another reason than their size.
+	 */
+	public synchronized int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * @return The error of the last failure counted by getFailureCount(), or null.
+	 */
+	public synchronized Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Interpret a predicate until it is hot, then generate it.
+	 * 
+	 * @param p
+	 *            A predicate compiled by ZEval.compile()
+	 * @return A predicate that switches to a generated class after getThreshold() evaluations.
+	 */
+	public ZCompiledPredicate adaptive(ZCompiledPredicate p) {
+		return threshold == 0 ? generate(p) : new AdaptivePredicate(this, p);
+	}
+
+	/**
+	 * Interpret an expression until it is hot, then generate it (only arithmetic expressions are generated).
+	 * 
+	 * @param e
+	 *            An expression compiled by ZEval.compileExpression()
+	 * @return An expression that switches to a generated class after getThreshold() evaluations.
+	 */
+	public ZCompiledExpression adaptive(ZCompiledExpression e) {
+		if (!(e instanceof ZCompiler.Arithmetic)) {
+			return e;
+		}
+		return threshold == 0 ? generate(e) : new AdaptiveExpression(this, e);
+	}
+
+	/**
+	 * Generate a predicate now.
+	 * 
+	 * @param p
+	 *            A predicate compiled by ZEval.compile()
+	 * @return An instance of a generated class, or p if it can't be generated.
+	 */
+	public ZCompiledPredicate generate(ZCompiledPredicate p) {
+		if (p instanceof AdaptivePredicate) {
+			p = ((AdaptivePredicate) p).tree;
+		}
+		Object o;
+		try {
+			Generator g = new Generator(PRED);
+			Code c = g.cw.addMethod(ACC_PUBLIC, "test", "(" + ROW + ")Z", 2);
+			g.code = c;
+			g.pred(p);
+			c.op(IRETURN, -1);
+			o = g.instantiate();
+		} catch (ZClassWriter.TooLargeException x) {
+			o = null;
+		}
+		return o == null ? p : (ZCompiledPredicate) o;
+	}
+
+	/**
+	 * Generate an arithmetic expression now.
+	 * 
+	 * @param e
+	 *            An expression compiled by ZEval.compileExpression()
+	 * @return An instance of a generated class, or e if it can't be generated.
+	 */
+	public ZCompiledExpression generate(ZCompiledExpression e) {
+		if (e instanceof AdaptiveExpression) {
+			e = ((AdaptiveExpression) e).tree;
+		}
+		if (!(e instanceof ZCompiler.Arithmetic)) {
+			return e;
+		}
+		Object o;
+		try {
+			Generator g = new Generator(EXPR);
+			Code c = g.cw.addMethod(ACC_PUBLIC, "evalDouble", "(" + ROW + ")D", 2);
+			g.code = c;
+			g.dbl(e);
+			c.op(DRETURN, -2);
+			c = g.cw.addMethod(ACC_PUBLIC, "eval", "(" + ROW + ")" + OBJECT, 2);
+			c.op(ALOAD_0, 1);
+			c.op(ALOAD_1, 1);
+			c.invoke(INVOKEVIRTUAL, g.cw.getName(), "evalDouble", "(" + ROW + ")D", 0);
+			c.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+			c.op(ARETURN, -1);
+			o = g.instantiate();
+		} catch (ZClassWriter.TooLargeException x) {
+			o = null;
+		}
+		return o == null ? e : (ZCompiledExpression) o;
+	}
+
+	private Class<?> define(String shape, ZClassWriter cw) {
+		synchronized (this) {
+			if (cache.containsKey(shape)) {
+				return cache.get(shape);
+			}
+		}
+		Class<?> c = null;
+		byte[] b = null;
+		try {
+			b = cw.toByteArray();
+		} catch (ZClassWriter.TooLargeException e) {
+			// The interpreter is used, silently
+		}
+		if (b != null) {
+			try {
+				c = new Loader(ZCodegen.class.getClassLoader()).define(cw.getName().replace('/', '.'), b);
+			} catch (RuntimeException e) {
+				fail(e);
+			} catch (LinkageError e) {
+				fail(e);
+			}
+		}
+		synchronized (this) {
+			if (cache.containsKey(shape)) {
+				return cache.get(shape);
+			}
+			cache.put(shape, c);
+			return c;
+		}
+	}
+
+	private synchronized void fail(Throwable t) {
+		failures++;
+		lastFailure = t;
+	}
+
+	private static synchronized String newClassName(String superName) {
+		return PACKAGE + "gen/" + (PRED.equals(superName) ? "Predicate" : "Expression") + (++classCount);
+	}
+
+	/**
+	 * Each generated class has its own loader, so that it can be unloaded when it leaves the cache.
+	 */
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Generates one class. The shape of the class (a string that identifies its code) is built along with the code.
+	 */
+	private final class Generator {
+		final ZClassWriter cw;
+		final String superName;
+		final StringBuilder shape = new StringBuilder();
+		final List<ZCompiledPredicate> preds = new ArrayList<ZCompiledPredicate>();
+		final List<ZCompiledExpression> exprs = new ArrayList<ZCompiledExpression>();
+		Code code;
+
+		Generator(String superName) {
+			this.superName = superName;
+			this.cw = new ZClassWriter(newClassName(superName), superName);
+			shape.append(PRED.equals(superName) ? 'P' : 'E');
+			cw.addField(ACC_PRIVATE | ACC_FINAL, "p", PREDS);
+			cw.addField(ACC_PRIVATE | ACC_FINAL, "e", EXPRS);
+			Code c = cw.addMethod(ACC_PUBLIC, "<init>", "(" + PREDS + EXPRS + ")V", 3);
+			c.op(ALOAD_0, 1);
+			c.invoke(INVOKESPECIAL, superName, "<init>", "()V", -1);
+			c.op(ALOAD_0, 1);
+			c.op(ALOAD_1, 1);
+			c.putfield(cw.getName(), "p", PREDS);
+			c.op(ALOAD_0, 1);
+			c.op1(ALOAD, 2, 1);
+			c.putfield(cw.getName(), "e", EXPRS);
+			c.op(RETURN, 0);
+		}
+
+		Object instantiate() {
+			Class<?> c = define(shape.toString(), cw);
+			if (c == null) {
+				return null;
+			}
+			try {
+				return c.getConstructor(ZCompiledPredicate[].class, ZCompiledExpression[].class).newInstance(
+						preds.toArray(new ZCompiledPredicate[preds.size()]),
+						exprs.toArray(new ZCompiledExpression[exprs.size()]));
+			} catch (Exception e) {
+				fail(e instanceof InvocationTargetException ? e.getCause() : e);
+				return null;
+			} catch (LinkageError e) {
+				fail(e);
+				return null;
+			}
+		}
+
+		// Predicates: push 0 or 1
+
+		void pred(ZCompiledPredicate p) {
+			if (p instanceof ZCompiler.Const) {
+				boolean v = ((ZCompiler.Const) p).value;
+				shape.append(v ? 'T' : 'F');
+				code.iconst(v ? 1 : 0);
+			} else if (p instanceof ZCompiler.And) {
+				junction(((ZCompiler.And) p).p, '&', IFEQ);
+			} else if (p instanceof ZCompiler.Or) {
+				junction(((ZCompiler.Or) p).p, '|', IFNE);
+			} else if (p instanceof ZCompiler.Not) {
+				shape.append('!');
+				pred(((ZCompiler.Not) p).p);
+				code.op(ICONST_1, 1);
+				code.op(IXOR, -1);
+			} else if (p instanceof ZCompiler.Comparison) {
+				comparison((ZCompiler.Comparison) p);
+			} else if (p instanceof ZCompiler.Between) {
+				between((ZCompiler.Between) p);
+			} else {
+				// Interpreted: this.p[i].test(row)
+				shape.append('p');
+				code.op(ALOAD_0, 1);
+				code.getfield(cw.getName(), "p", PREDS);
+				code.iconst(preds.size());
+				code.op(AALOAD, -1);
+				code.op(ALOAD_1, 1);
+				code.invoke(INVOKEVIRTUAL, PRED, "test", "(" + ROW + ")Z", -1);
+				preds.add(p);
+			}
+		}
+
+		/**
+		 * AND (jump on false) or OR (jump on true): short-circuit.
+		 */
+		private void junction(ZCompiledPredicate[] p, char op, int jump) {
+			shape.append(op).append(p.length).append('(');
+			Label exit = code.newLabel();
+			Label end = code.newLabel();
+			int d = code.depth();
+			for (ZCompiledPredicate q : p) {
+				pred(q);
+				code.jump(jump, exit, -1);
+			}
+			shape.append(')');
+			code.iconst(jump == IFEQ ? 1 : 0);
+			code.jump(GOTO, end, 0);
+			code.mark(exit, d);
+			code.iconst(jump == IFEQ ? 0 : 1);
+			code.mark(end, d + 1);
+		}
+
+		/**
+		 * Turn the int on the stack into 0 or 1 (1 if the jump is taken).
+		 */
+		private void bool(int jump) {
+			Label yes = code.newLabel();
+			Label end = code.newLabel();
+			int d = code.depth();
+			code.jump(jump, yes, -1);
+			code.op(ICONST_0, 1);
+			code.jump(GOTO, end, 0);
+			code.mark(yes, d - 1);
+			code.op(ICONST_1, 1);
+			code.mark(end, d);
+		}
+
+		private void comparison(ZCompiler.Comparison c) {
+			// NaN differences are false, except for "!=" (like the interpreter)
+			int cmp, jump;
+			if (c instanceof ZCompiler.Eq) {
+				shape.append('=');
+				cmp = DCMPL;
+				jump = IFEQ;
+			} else if (c instanceof ZCompiler.Ne) {
+				shape.append('~');
+				cmp = DCMPL;
+				jump = IFNE;
+			} else if (c instanceof ZCompiler.Lt) {
+				shape.append('<');
+				cmp = DCMPG;
+				jump = IFLT;
+			} else if (c instanceof ZCompiler.Le) {
+				shape.append('{');
+				cmp = DCMPG;
+				jump = IFLE;
+			} else if (c instanceof ZCompiler.Gt) {
+				shape.append('>');
+				cmp = DCMPL;
+				jump = IFGT;
+			} else {
+				shape.append('}');
+				cmp = DCMPL;
+				jump = IFGE;
+			}
+			compare(c.a, c.b);
+			code.op(DCONST_0, 2);
+			code.op(cmp, -3);
+			bool(jump);
+		}
+
+		/**
+		 * Push the difference of two values (see ZEval.compare()).
+		 */
+		private void compare(ZCompiledExpression a, ZCompiledExpression b) {
+			boolean na = isNumeric(a);
+			boolean nb = isNumeric(b);
+			if (na && nb) {
+				dbl(a);
+				dbl(b);
+				code.op(DSUB, -2);
+			} else if (na) {
+				dbl(a);
+				obj(b);
+				code.invoke(INVOKESTATIC, SUPPORT, "compare", "(D" + OBJECT + ")D", -1);
+			} else if (nb) {
+				obj(a);
+				dbl(b);
+				code.invoke(INVOKESTATIC, SUPPORT, "compare", "(" + OBJECT + "D)D", -1);
+			} else {
+				obj(a);
+				obj(b);
+				code.invoke(INVOKESTATIC, SUPPORT, "compare", "(" + OBJECT + OBJECT + ")D", 0);
+			}
+		}
+
+		/**
+		 * Push the difference of a local variable and a value.
+		 */
+		private void compareLocal(int local, ZCompiledExpression b) {
+			code.op1(ALOAD, local, 1);
+			if (isNumeric(b)) {
+				dbl(b);
+				code.invoke(INVOKESTATIC, SUPPORT, "compare", "(" + OBJECT + "D)D", -1);
+			} else {
+				obj(b);
+				code.invoke(INVOKESTATIC, SUPPORT, "compare", "(" + OBJECT + OBJECT + ")D", 0);
+			}
+		}
+
+		private void between(ZCompiler.Between b) {
+			shape.append('b');
+			int x = code.newLocal(1);
+			obj(b.a);
+			code.op1(ASTORE, x, -1);
+			Label no = code.newLabel();
+			Label end = code.newLabel();
+			int d = code.depth();
+			compareLocal(x, b.low);
+			code.op(DCONST_0, 2);
+			code.op(DCMPL, -3);
+			code.jump(IFLT, no, -1);
+			compareLocal(x, b.high);
+			code.op(DCONST_0, 2);
+			code.op(DCMPG, -3);
+			code.jump(IFGT, no, -1);
+			code.op(ICONST_1, 1);
+			code.jump(GOTO, end, 0);
+			code.mark(no, d);
+			code.op(ICONST_0, 1);
+			code.mark(end, d + 1);
+		}
+
+		// Values
+
+		private boolean isNumeric(ZCompiledExpression e) {
+			return ZCompiler.isNumeric(e);
+		}
+
+		/**
+		 * Push a value as an Object.
+		 */
+		void obj(ZCompiledExpression e) {
+			if (e instanceof ZCompiler.Column) {
+				ZCompiler.Column c = (ZCompiler.Column) e;
+				column(c, 'c');
+				code.invoke(INVOKESTATIC, SUPPORT, "column", "(" + ROW + "ILjava/lang/String;)" + OBJECT, -2);
+			} else if (e instanceof ZCompiler.Arithmetic) {
+				shape.append('B');
+				dbl(e);
+				code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+			} else {
+				// Interpreted: this.e[i].eval(row)
+				shape.append('e');
+				expr(e);
+				code.invoke(INVOKEVIRTUAL, EXPR, "eval", "(" + ROW + ")" + OBJECT, -1);
+			}
+		}
+
+		/**
+		 * Push a value as a double.
+		 */
+		void dbl(ZCompiledExpression e) {
+			if (e instanceof ZCompiler.Numeric) {
+				double v = ((ZCompiler.Numeric) e).value;
+				shape.append('n').append(Long.toHexString(Double.doubleToRawLongBits(v))).append(';');
+				code.ldc(v);
+			} else if (e instanceof ZCompiler.Column) {
+				column((ZCompiler.Column) e, 'C');
+				code.invoke(INVOKESTATIC, SUPPORT, "columnDouble", "(" + ROW + "ILjava/lang/String;)D", -1);
+			} else if (e instanceof ZCompiler.Add) {
+				fold('+', ((ZCompiler.Add) e).v, DADD);
+			} else if (e instanceof ZCompiler.Mul) {
+				fold('*', ((ZCompiler.Mul) e).v, DMUL);
+			} else if (e instanceof ZCompiler.Sub) {
+				fold('-', ((ZCompiler.Sub) e).a, ((ZCompiler.Sub) e).v, DSUB);
+			} else if (e instanceof ZCompiler.Div) {
+				fold('/', ((ZCompiler.Div) e).a, ((ZCompiler.Div) e).v, DDIV);
+			} else if (e instanceof ZCompiler.Pow) {
+				fold('^', ((ZCompiler.Pow) e).a, ((ZCompiler.Pow) e).v, -1);
+			} else if (e instanceof ZCompiler.Neg) {
+				shape.append('_');
+				dbl(((ZCompiler.Neg) e).a);
+				code.op(DNEG, 0);
+			} else {
+				// Interpreted: this.e[i].evalDouble(row)
+				shape.append('d');
+				expr(e);
+				code.invoke(INVOKEVIRTUAL, EXPR, "evalDouble", "(" + ROW + ")D", 0);
+			}
+		}
+
+		private void fold(char op, ZCompiledExpression[] v, int opcode) {
+			fold(op, v[0], Arrays.copyOfRange(v, 1, v.length), opcode);
+		}
+
+		/**
+		 * a op v[0] op v[1]... (Math.pow() if opcode is -1)
+		 */
+		private void fold(char op, ZCompiledExpression a, ZCompiledExpression[] v, int opcode) {
+			shape.append(op).append(v.length).append('(');
+			dbl(a);
+			for (ZCompiledExpression e : v) {
+				dbl(e);
+				if (opcode < 0) {
+					code.invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", -2);
+				} else {
+					code.op(opcode, -2);
+				}
+			}
+			shape.append(')');
+		}
+
+		private void column(ZCompiler.Column c, char kind) {
+			shape.append(kind).append(c.slot).append(':').append(c.name.length()).append(':').append(c.name);
+			code.op(ALOAD_1, 1);
+			code.iconst(c.slot);
+			code.ldc(c.name);
+		}
+
+		/**
+		 * Push this.e[i] and the row.
+		 */
+		private void expr(ZCompiledExpression e) {
+			code.op(ALOAD_0, 1);
+			code.getfield(cw.getName(), "e", EXPRS);
+			code.iconst(exprs.size());
+			code.op(AALOAD, -1);
+			code.op(ALOAD_1, 1);
+			exprs.add(e);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	static final class AdaptivePredicate extends ZCompiledPredicate {
+		final ZCodegen codegen;
+		final ZCompiledPredicate tree;
+		// Racy, but the generated instance is immutable
+		private ZCompiledPredicate target;
+		private int count;
+
+		AdaptivePredicate(ZCodegen codegen, ZCompiledPredicate tree) {
+			this.codegen = codegen;
+			this.tree = tree;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			ZCompiledPredicate t = target;
+			if (t == null) {
+				if (++count < codegen.threshold) {
+					return tree.test(row);
+				}
+				target = t = codegen.generate(tree);
+			}
+			return t.test(row);
+		}
+	}
+
+	static final class AdaptiveExpression extends ZCompiledExpression {
+		final ZCodegen codegen;
+		final ZCompiledExpression tree;
+		private ZCompiledExpression target;
+		private int count;
+
+		AdaptiveExpression(ZCodegen codegen, ZCompiledExpression tree) {
+			this.codegen = codegen;
+			this.tree = tree;
+		}
+
+		private ZCompiledExpression target() {
+			ZCompiledExpression t = target;
+			if (t == null) {
+				if (++count < codegen.threshold) {
+					return tree;
+				}
+				target = t = codegen.generate(tree);
+			}
+			return t;
+		}
+
+		public Object eval(ZRow row) throws SQLException {
+			return target().eval(row);
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			return target().evalDouble(row);
+		}
+	}
+
+	/**
+	 * The methods called by generated classes (they have the semantics of ZEval).
+	 */
+	public static final class Support {
+		private Support() {
+		}
+
+		/**
+		 * @return The value of a column (numbers are Double objects).
+		 */
+		public static Object column(ZRow row, int slot, String name) throws SQLException {
+			Object o = row.getAttValue(slot);
+			if (o == null) {
+				throw new SQLException("ZEval.evalExpValue(): unknown column " + name);
+			}
+			return ZEval.number(o);
+		}
+
+		/**
+		 * @return The numeric value of a column.
+		 */
+		public static double columnDouble(ZRow row, int slot, String name) throws SQLException {
+			Object o = row.getAttValue(slot);
+			if (o instanceof Double) {
+				return ((Double) o).doubleValue();
+			}
+			return ZCompiler.toDouble(column(row, slot, name));
+		}
+
+		public static double compare(Object a, Object b) throws SQLException {
+			return ZEval.compare(a, b);
+		}
+
+		public static double compare(Object a, double b) throws SQLException {
+			return ZCompiler.compare(a, b);
+		}
+
+		public static double compare(double a, Object b) throws SQLException {
+			return ZCompiler.compare(a, b);
+		}
+	}
+}
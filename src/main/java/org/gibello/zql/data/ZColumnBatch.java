@@ -0,0 +1,219 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+/**
+ * ZColumnBatch: a batch of rows stored by column, for vectorized evaluation (see ZEval.compileBatch()).<br>
+ * Each column of the schema is an array of primitive doubles, of primitive longs, or of dictionary codes (strings).
+ * A column may have a null bitmap: bit (row % 64) of word (row / 64) is set if the value of the row is null. Rows are
+ * selected with selection vectors: arrays of row indexes, in increasing order.
+ */
+public class ZColumnBatch {
+
+	/**
+	 * The storage of a column.
+	 */
+	public static enum Type {
+		DOUBLE, LONG, STRING
+	}
+
+	private final ZSchema schema;
+	private final int size;
+	private final Type[] types;
+	private final double[][] doubles;
+	private final long[][] longs;
+	private final int[][] codes;
+	private final String[][] dictionaries;
+	private final long[][] nulls;
+
+	/**
+	 * Create a batch: the columns are set afterwards.
+	 * 
+	 * @param schema
+	 *            The columns
+	 * @param size
+	 *            The number of rows
+	 */
+	public ZColumnBatch(ZSchema schema, int size) {
+		this.schema = schema;
+		this.size = size;
+		int n = schema.size();
+		types = new Type[n];
+		doubles = new double[n][];
+		longs = new long[n][];
+		codes = new int[n][];
+		dictionaries = new String[n][];
+		nulls = new long[n][];
+	}
+
+	/**
+	 * Set a column of doubles.
+	 * 
+	 * @param slot
+	 *            The column slot in the schema
+	 * @param values
+	 *            The values (at least size() of them; the array is not copied)
+	 * @param nullBits
+	 *            The null bitmap, or null if there's no null value
+	 */
+	public void setDoubles(int slot, double[] values, long[] nullBits) {
+		check(slot, values.length, nullBits);
+		clear(slot);
+		types[slot] = Type.DOUBLE;
+		doubles[slot] = values;
+		nulls[slot] = nullBits;
+	}
+
+	/**
+	 * Set a column of longs (see setDoubles()).
+	 */
+	public void setLongs(int slot, long[] values, long[] nullBits) {
+		check(slot, values.length, nullBits);
+		clear(slot);
+		types[slot] = Type.LONG;
+		longs[slot] = values;
+		nulls[slot] = nullBits;
+	}
+
+	/**
+	 * Set a column of dictionary-coded strings (see setDoubles()).
+	 * 
+	 * @param codes
+	 *            The index of the value of each row in the dictionary
+	 * @param dictionary
+	 *            The distinct values of the column
+	 */
+	public void setStrings(int slot, int[] codes, String[] dictionary, long[] nullBits) {
+		check(slot, codes.length, nullBits);
+		clear(slot);
+		types[slot] = Type.STRING;
+		this.codes[slot] = codes;
+		dictionaries[slot] = dictionary;
+		nulls[slot] = nullBits;
+	}
+
+	private void check(int slot, int length, long[] nullBits) {
+		if (length < size || (nullBits != null && nullBits.length * 64L < size)) {
+			throw new IllegalArgumentException("ZColumnBatch: column " + schema.getName(slot) + " has less than "
+					+ size + " rows");
+		}
+	}
+
+	private void clear(int slot) {
+		doubles[slot] = null;
+		longs[slot] = null;
+		codes[slot] = null;
+		dictionaries[slot] = null;
+	}
+
+	/**
+	 * @return The columns of the batch.
+	 */
+	public ZSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return The number of rows.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The storage of a column (null if the column is not set).
+	 */
+	public Type getType(int slot) {
+		return types[slot];
+	}
+
+	public double[] getDoubles(int slot) {
+		return doubles[slot];
+	}
+
+	public long[] getLongs(int slot) {
+		return longs[slot];
+	}
+
+	public int[] getCodes(int slot) {
+		return codes[slot];
+	}
+
+	public String[] getDictionary(int slot) {
+		return dictionaries[slot];
+	}
+
+	/**
+	 * @return The null bitmap of a column, or null if it has no null value.
+	 */
+	public long[] getNulls(int slot) {
+		return nulls[slot];
+	}
+
+	/**
+	 * @return true if the value of a row is null (or if the column is not set).
+	 */
+	public boolean isNull(int slot, int row) {
+		long[] n = nulls[slot];
+		return types[slot] == null || (n != null && (n[row >>> 6] & (1L << row)) != 0);
+	}
+
+	/**
+	 * @return The value of a row, like in a ZTuple (numbers are Double objects), or null.
+	 */
+	public Object getValue(int slot, int row) {
+		if (isNull(slot, row)) {
+			return null;
+		}
+		switch (types[slot]) {
+		case DOUBLE:
+			return Double.valueOf(doubles[slot][row]);
+		case LONG:
+			return Double.valueOf(longs[slot][row]);
+		default:
+			return dictionaries[slot][codes[slot][row]];
+		}
+	}
+
+	/**
+	 * @return A selection vector of all the rows.
+	 */
+	public int[] selectAll() {
+		int[] sel = new int[size];
+		for (int i = 0; i < size; i++) {
+			sel[i] = i;
+		}
+		return sel;
+	}
+
+	/**
+	 * A row of the batch, seen as a ZRow (to evaluate the nodes that are not vectorized).
+	 */
+	static final class Cursor implements ZRow {
+		final ZColumnBatch batch;
+		int row;
+
+		Cursor(ZColumnBatch batch) {
+			this.batch = batch;
+		}
+
+		public Object getAttValue(int index) {
+			return batch.getValue(index, row);
+		}
+	}
+}
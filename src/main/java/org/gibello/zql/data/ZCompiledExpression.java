@@ -0,0 +1,55 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+
+/**
+ * ZCompiledExpression: a numeric or string expression compiled by ZEval.compileExpression() (see
+ * ZCompiledPredicate).
+ */
+public abstract class ZCompiledExpression {
+
+	/**
+	 * Subclasses are the nodes built by ZEval.compile(), and the classes generated by ZCodegen.
+	 */
+	protected ZCompiledExpression() {
+	}
+
+	/**
+	 * Evaluate the expression on a row.
+	 * 
+	 * @param row
+	 *            A row of the schema the expression was compiled for
+	 * @return The value (numbers are Double objects, like in ZEval.evalExpValue()).
+	 */
+	public abstract Object eval(ZRow row) throws SQLException;
+
+	/**
+	 * Evaluate a numeric expression on a row.
+	 * 
+	 * @param row
+	 *            A row of the schema the expression was compiled for
+	 * @return The value.
+	 * @throws SQLException
+	 *             If the value is not a number.
+	 */
+	public double evalDouble(ZRow row) throws SQLException {
+		return ZCompiler.toDouble(eval(row));
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+
+/**
+ * ZCompiledPredicate: a boolean expression compiled by ZEval.compile(). The tree is built once: columns are resolved
+ * to slots, constants are converted, and each operator is a specialized node. A compiled predicate can be evaluated
+ * on many rows, by several threads.
+ */
+public abstract class ZCompiledPredicate {
+
+	/**
+	 * Subclasses are the nodes built by ZEval.compile(), and the classes generated by ZCodegen.
+	 */
+	protected ZCompiledPredicate() {
+	}
+
+	/**
+	 * Evaluate the predicate on a row.
+	 * 
+	 * @param row
+	 *            A row of the schema the predicate was compiled for
+	 * @return true if the predicate is true for this row.
+	 */
+	public abstract boolean test(ZRow row) throws SQLException;
+}
@@ -0,0 +1,860 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+
+import org.gibello.zql.ZBindings;
+import org.gibello.zql.ZConstant;
+import org.gibello.zql.ZExp;
+import org.gibello.zql.ZExpression;
+import org.gibello.zql.ZFunction;
+import org.gibello.zql.ZOperator;
+import org.gibello.zql.ZPreparedTemplate;
+
+/**
+ * ZCompiler: compiles expressions into trees of specialized nodes (see ZEval.compile()).<br>
+ * The nodes have the semantics of the ZEval interpreter. Errors that the interpreter would report for any row (an
+ * unknown operator or column, a wrong number of operands) are reported at compile time.
+ */
+final class ZCompiler {
+
+	private final ZEval eval;
+	private final ZSchema schema;
+	// Compile AND and OR into Adaptive nodes
+	private final boolean adaptive;
+
+	ZCompiler(ZEval eval, ZSchema schema) {
+		this(eval, schema, false);
+	}
+
+	ZCompiler(ZEval eval, ZSchema schema, boolean adaptive) {
+		this.eval = eval;
+		this.schema = schema;
+		this.adaptive = adaptive;
+	}
+
+	// -------------------------------------------------------------------------
+	// Predicates
+
+	ZCompiledPredicate predicate(ZExp exp) throws SQLException {
+		if (exp == null) {
+			throw new SQLException("ZEval.compile(): null argument or operator");
+		}
+		if (!(exp instanceof ZExpression)) {
+			throw new SQLException("ZEval.compile(): only expressions are supported");
+		}
+		if (ZOptimizer.TRUE.equals(exp)) {
+			return Const.TRUE;
+		}
+		if (ZOptimizer.FALSE.equals(exp)) {
+			return Const.FALSE;
+		}
+		ZExpression x = (ZExpression) exp;
+		ZOperator o = x.getOpcode();
+		switch (o) {
+		case AND:
+			return adaptive ? new Adaptive(predicates(x), true) : new And(predicates(x));
+		case OR:
+			return adaptive ? new Adaptive(predicates(x), false) : new Or(predicates(x));
+		case NOT:
+			return not(x.getOperand(0));
+		case EQ:
+			return new Eq(value(x, 0, 2), value(x, 1, 2));
+		case NE:
+			if ("#".equals(x.getOperator())) {
+				throw new SQLException("ZEval.eval(): Operator # not supported");
+			}
+			return new Ne(value(x, 0, 2), value(x, 1, 2));
+		case LT:
+			return new Lt(value(x, 0, 2), value(x, 1, 2));
+		case LE:
+			return new Le(value(x, 0, 2), value(x, 1, 2));
+		case GT:
+			return new Gt(value(x, 0, 2), value(x, 1, 2));
+		case GE:
+			return new Ge(value(x, 0, 2), value(x, 1, 2));
+		case BETWEEN:
+		case NOT_BETWEEN:
+			ZCompiledPredicate b = new Between(value(x, 0, 3), value(x, 1, 3), value(x, 2, 3));
+			return o == ZOperator.BETWEEN ? b : new Not(b);
+		case LIKE:
+		case NOT_LIKE:
+			ZCompiledPredicate l = new Like(value(x, 0, 2), value(x, 1, 2));
+			return o == ZOperator.LIKE ? l : new Not(l);
+		case IN:
+		case NOT_IN:
+			return in(x, o == ZOperator.NOT_IN);
+		case IS_NULL:
+		case IS_NOT_NULL:
+			ZCompiledPredicate n = isNull(x);
+			return o == ZOperator.IS_NULL ? n : new Not(n);
+		default:
+			throw new SQLException("ZEval.eval(): Unknown operator " + x.getOperator());
+		}
+	}
+
+	/**
+	 * NOT: the negation is pushed down through AND, OR and NOT to the IN lists (De Morgan), so that NOT of an unknown
+	 * IN is still unknown (false), like in SQL and in batches.
+	 */
+	private ZCompiledPredicate not(ZExp exp) throws SQLException {
+		if (exp instanceof ZExpression) {
+			ZExpression x = (ZExpression) exp;
+			ZOperator o = x.getOpcode();
+			switch (o) {
+			case AND:
+			case OR:
+				ZCompiledPredicate[] p = new ZCompiledPredicate[x.nbOperands()];
+				for (int i = 0; i < p.length; i++) {
+					p[i] = not(x.getOperand(i));
+				}
+				boolean and = (o == ZOperator.OR);
+				if (adaptive) {
+					return new Adaptive(p, and);
+				}
+				return and ? new And(p) : new Or(p);
+			case NOT:
+				return predicate(x.getOperand(0));
+			case IN:
+			case NOT_IN:
+				return in(x, o == ZOperator.IN);
+			default:
+				break;
+			}
+		}
+		return new Not(predicate(exp));
+	}
+
+	private ZCompiledPredicate in(ZExpression x, boolean not) throws SQLException {
+		ZInList set = new ZInList(x.getOperands());
+		ZCompiledExpression[] list = new ZCompiledExpression[set.getOthers().size()];
+		for (int i = 0; i < list.length; i++) {
+			list[i] = value(set.getOthers().get(i));
+		}
+		return new In(value(x.getOperand(0)), set, list, not);
+	}
+
+	private ZCompiledPredicate[] predicates(ZExpression x) throws SQLException {
+		ZCompiledPredicate[] p = new ZCompiledPredicate[x.nbOperands()];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = predicate(x.getOperand(i));
+		}
+		return p;
+	}
+
+	private ZCompiledPredicate isNull(ZExpression x) throws SQLException {
+		ZExp e = (x.nbOperands() <= 0 ? null : x.getOperand(0));
+		if (e == null) {
+			return Const.TRUE;
+		}
+		if (isParameter(e)) {
+			return new IsNull(parameter(e));
+		}
+		if (e instanceof ZConstant) {
+			return ((ZConstant) e).getType() == ZConstant.Type.NULL ? Const.TRUE : Const.FALSE;
+		}
+		throw new SQLException("ZEval.eval(): can't eval IS (NOT) NULL");
+	}
+
+	static final class Const extends ZCompiledPredicate {
+		static final Const TRUE = new Const(true);
+		static final Const FALSE = new Const(false);
+
+		final boolean value;
+
+		private Const(boolean value) {
+			this.value = value;
+		}
+
+		public boolean test(ZRow row) {
+			return value;
+		}
+	}
+
+	static final class And extends ZCompiledPredicate {
+		final ZCompiledPredicate[] p;
+
+		And(ZCompiledPredicate[] p) {
+			this.p = p;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			for (ZCompiledPredicate q : p) {
+				if (!q.test(row)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	static final class Or extends ZCompiledPredicate {
+		final ZCompiledPredicate[] p;
+
+		Or(ZCompiledPredicate[] p) {
+			this.p = p;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			for (ZCompiledPredicate q : p) {
+				if (q.test(row)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * AND or OR, with operands reordered by their observed cost and selectivity. One row in SAMPLE is timed, and the
+	 * order is updated every PERIOD sampled rows: AND first evaluates the operands that are the most often false for
+	 * their cost, OR the operands that are the most often true.<br>
+	 * The statistics are updated without synchronization: they are approximate if the predicate is used by several
+	 * threads, but the order is always a permutation of the operands.
+	 */
+	static final class Adaptive extends ZCompiledPredicate {
+		static final int SAMPLE = 32; // A power of 2
+		static final int PERIOD = 128;
+
+		final ZCompiledPredicate[] p;
+		final boolean and;
+		private volatile int[] order;
+		// Per operand, decayed at each reordering
+		private final long[] calls, passed, nanos;
+		private int rows = 0;
+		private int samples = 0;
+
+		Adaptive(ZCompiledPredicate[] p, boolean and) {
+			this.p = p;
+			this.and = and;
+			int[] o = new int[p.length];
+			for (int i = 0; i < o.length; i++) {
+				o[i] = i;
+			}
+			order = o;
+			calls = new long[p.length];
+			passed = new long[p.length];
+			nanos = new long[p.length];
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			int[] o = order;
+			if ((++rows & (SAMPLE - 1)) == 0) {
+				return sample(row, o);
+			}
+			for (int i : o) {
+				if (p[i].test(row) != and) {
+					return !and;
+				}
+			}
+			return and;
+		}
+
+		private boolean sample(ZRow row, int[] o) throws SQLException {
+			boolean result = and;
+			for (int i : o) {
+				long t = System.nanoTime();
+				boolean r = p[i].test(row);
+				nanos[i] += System.nanoTime() - t;
+				calls[i]++;
+				if (r) {
+					passed[i]++;
+				}
+				if (r != and) {
+					result = !and;
+					break;
+				}
+			}
+			if (++samples >= PERIOD) {
+				samples = 0;
+				reorder();
+			}
+			return result;
+		}
+
+		/**
+		 * Sort the operands by decreasing rank: the probability that an operand decides the result (false for AND,
+		 * true for OR), divided by its cost.
+		 */
+		private void reorder() {
+			int n = p.length;
+			double[] rank = new double[n];
+			double total = 0;
+			long count = 0;
+			for (int i = 0; i < n; i++) {
+				total += nanos[i];
+				count += calls[i];
+			}
+			double average = (count == 0 ? 1 : Math.max(1, total / count));
+			for (int i = 0; i < n; i++) {
+				// Operands that have not been evaluated yet get an average cost and an even probability
+				double cost = (calls[i] == 0 ? average : Math.max(1, (double) nanos[i] / calls[i]));
+				double pass = (passed[i] + 1.0) / (calls[i] + 2.0);
+				rank[i] = (and ? 1 - pass : pass) / cost;
+				calls[i] >>= 1;
+				passed[i] >>= 1;
+				nanos[i] >>= 1;
+			}
+			int[] o = order.clone();
+			// Insertion sort: stable, so that equal operands keep their order
+			for (int i = 1; i < n; i++) {
+				int x = o[i];
+				int j = i - 1;
+				for (; j >= 0 && rank[o[j]] < rank[x]; j--) {
+					o[j + 1] = o[j];
+				}
+				o[j + 1] = x;
+			}
+			order = o;
+		}
+
+		/**
+		 * @return The current order of the operands (indexes in p).
+		 */
+		int[] getOrder() {
+			return order.clone();
+		}
+	}
+
+	static final class Not extends ZCompiledPredicate {
+		final ZCompiledPredicate p;
+
+		Not(ZCompiledPredicate p) {
+			this.p = p;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			return !p.test(row);
+		}
+	}
+
+	/**
+	 * A comparison of two values (see ZEval.compare()). Numeric operands are evaluated with evalDouble(), so that
+	 * comparing numbers does not allocate.
+	 */
+	abstract static class Comparison extends ZCompiledPredicate {
+		final ZCompiledExpression a, b;
+		// 1 if a is numeric, 2 if b is numeric
+		final int numeric;
+
+		Comparison(ZCompiledExpression a, ZCompiledExpression b) {
+			this.a = a;
+			this.b = b;
+			this.numeric = (isNumeric(a) ? 1 : 0) | (isNumeric(b) ? 2 : 0);
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			switch (numeric) {
+			case 3:
+				return accept(a.evalDouble(row) - b.evalDouble(row));
+			case 1:
+				return accept(compare(a.evalDouble(row), b.eval(row)));
+			case 2:
+				return accept(compare(a.eval(row), b.evalDouble(row)));
+			default:
+				return accept(ZEval.compare(a.eval(row), b.eval(row)));
+			}
+		}
+
+		abstract boolean accept(double c);
+	}
+
+	static final class Eq extends Comparison {
+		Eq(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c == 0;
+		}
+	}
+
+	static final class Ne extends Comparison {
+		Ne(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c != 0;
+		}
+	}
+
+	static final class Lt extends Comparison {
+		Lt(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c < 0;
+		}
+	}
+
+	static final class Le extends Comparison {
+		Le(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c <= 0;
+		}
+	}
+
+	static final class Gt extends Comparison {
+		Gt(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c > 0;
+		}
+	}
+
+	static final class Ge extends Comparison {
+		Ge(ZCompiledExpression a, ZCompiledExpression b) {
+			super(a, b);
+		}
+
+		boolean accept(double c) {
+			return c >= 0;
+		}
+	}
+
+	static final class Between extends ZCompiledPredicate {
+		final ZCompiledExpression a, low, high;
+		final boolean numeric;
+
+		Between(ZCompiledExpression a, ZCompiledExpression low, ZCompiledExpression high) {
+			this.a = a;
+			this.low = low;
+			this.high = high;
+			this.numeric = isNumeric(a) && isNumeric(low) && isNumeric(high);
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			if (numeric) {
+				double x = a.evalDouble(row);
+				return x - low.evalDouble(row) >= 0 && x - high.evalDouble(row) <= 0;
+			}
+			Object x = a.eval(row);
+			return ZEval.compare(x, low.eval(row)) >= 0 && ZEval.compare(x, high.eval(row)) <= 0;
+		}
+	}
+
+	static final class Like extends ZCompiledPredicate {
+		final ZCompiledExpression a, pattern;
+		// The compiled pattern, if it is a constant
+		final ZLikeMatcher matcher;
+
+		Like(ZCompiledExpression a, ZCompiledExpression pattern) {
+			this.a = a;
+			this.pattern = pattern;
+			Object p = (pattern instanceof Literal ? ((Literal) pattern).value : null);
+			this.matcher = (p instanceof String ? ZLikeMatcher.compile((String) p) : null);
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			if (matcher != null) {
+				Object x = a.eval(row);
+				if (x instanceof String) {
+					return matcher.matches((String) x);
+				}
+			}
+			return ZEval.like(a.eval(row), pattern.eval(row));
+		}
+	}
+
+	/**
+	 * IN and NOT IN: the constants of the list are looked up in hash sets, the other elements are compared one by one.
+	 * The result is unknown (false) if the value is NULL, or if it is not found and the list contains NULL.
+	 */
+	static final class In extends ZCompiledPredicate {
+		final ZCompiledExpression a;
+		final ZInList set;
+		final ZCompiledExpression[] list;
+		final boolean not;
+
+		In(ZCompiledExpression a, ZInList set, ZCompiledExpression[] list, boolean not) {
+			this.a = a;
+			this.set = set;
+			this.list = list;
+			this.not = not;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			Object x = a.eval(row);
+			if (x == null) {
+				return false;
+			}
+			boolean found;
+			if (x instanceof Number) {
+				found = set.contains(((Number) x).doubleValue());
+			} else if (x instanceof String) {
+				found = set.contains((String) x);
+			} else {
+				throw new SQLException("ZEval.evalCmp(): can't compare (" + x.toString() + ") with an IN list");
+			}
+			for (int i = 0; !found && i < list.length; i++) {
+				found = ZEval.compare(x, list[i].eval(row)) == 0;
+			}
+			return found ? !not : !set.hasNull() && not;
+		}
+	}
+
+	static final class IsNull extends ZCompiledPredicate {
+		final ZCompiledExpression a;
+
+		IsNull(ZCompiledExpression a) {
+			this.a = a;
+		}
+
+		public boolean test(ZRow row) throws SQLException {
+			return a.eval(row) == null;
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Values
+
+	/**
+	 * Compile operand i of an operator that takes n operands.
+	 */
+	private ZCompiledExpression value(ZExpression x, int i, int n) throws SQLException {
+		if (x.nbOperands() < n) {
+			throw new SQLException("ZEval.evalCmp(): Trying to compare less than " + n + " values");
+		}
+		if (x.nbOperands() > n) {
+			throw new SQLException("ZEval.evalCmp(): Trying to compare more than " + n + " values");
+		}
+		return value(x.getOperand(i));
+	}
+
+	ZCompiledExpression value(ZExp exp) throws SQLException {
+		if (exp instanceof ZConstant) {
+			ZConstant c = (ZConstant) exp;
+			switch (c.getType()) {
+			case COLUMNNAME:
+				int slot = schema.indexOf(c.getValue());
+				if (slot < 0) {
+					throw new SQLException("ZEval.evalExpValue(): unknown column " + c.getValue());
+				}
+				return new Column(slot, c.getValue());
+			case NUMBER:
+				return new Numeric(Double.parseDouble(c.getValue()));
+			case BIND:
+				return parameter(c);
+			case STRING:
+			default:
+				return new Literal(c.getValue());
+			}
+		}
+		if (isParameter(exp)) {
+			return parameter(exp);
+		}
+		if (!(exp instanceof ZExpression)) {
+			return new Literal(null); // Sub-queries are not evaluated
+		}
+		ZExpression x = (ZExpression) exp;
+		ZFunction f = x.getFunction();
+		if (f != null) {
+			if (f.getImplementation() == null) {
+				throw new SQLException("ZEval.evalExpValue(): function " + f.getName() + " has no implementation");
+			}
+			return new Call(f.getImplementation(), values(x, 0));
+		}
+		if (x.nbOperands() == 0) {
+			throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
+		}
+		switch (x.getOpcode()) {
+		case PLUS:
+			return new Add(values(x, 0));
+		case MINUS:
+			if (x.nbOperands() == 1) {
+				return new Neg(value(x.getOperand(0)));
+			}
+			return new Sub(value(x.getOperand(0)), values(x, 1));
+		case TIMES:
+			return new Mul(values(x, 0));
+		case DIVIDE:
+			return new Div(value(x.getOperand(0)), values(x, 1));
+		case POWER:
+			return new Pow(value(x.getOperand(0)), values(x, 1));
+		default:
+			throw new SQLException("ZEval.evalNumericExp(): Unknown operator " + x.getOperator());
+		}
+	}
+
+	private ZCompiledExpression[] values(ZExpression x, int from) throws SQLException {
+		ZCompiledExpression[] v = new ZCompiledExpression[x.nbOperands() - from];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = value(x.getOperand(from + i));
+		}
+		return v;
+	}
+
+	private static boolean isParameter(ZExp exp) {
+		if (exp instanceof ZConstant) {
+			return ((ZConstant) exp).getType() == ZConstant.Type.BIND;
+		}
+		return exp instanceof ZExpression && ((ZExpression) exp).getOpcode() == ZOperator.PARAMETER;
+	}
+
+	private ZCompiledExpression parameter(ZExp exp) {
+		ZBindings b = eval.getBindings();
+		ZPreparedTemplate t = (b == null ? null : b.getTemplate());
+		return new Parameter(eval, exp, t, t == null ? 0 : t.indexOf(exp));
+	}
+
+	/**
+	 * @return true if an expression is a number or an arithmetic expression (its value is computed by evalDouble()).
+	 */
+	static boolean isNumeric(ZCompiledExpression e) {
+		return e instanceof Numeric || e instanceof Arithmetic;
+	}
+
+	/**
+	 * The difference of a value and a number (see ZEval.compare()).
+	 */
+	static double compare(Object a, double b) throws SQLException {
+		if (a instanceof Double) {
+			return ((Double) a).doubleValue() - b;
+		}
+		return ZEval.compare(a, Double.valueOf(b));
+	}
+
+	/**
+	 * The difference of a number and a value (see ZEval.compare()).
+	 */
+	static double compare(double a, Object b) throws SQLException {
+		if (b instanceof Double) {
+			return a - ((Double) b).doubleValue();
+		}
+		return ZEval.compare(Double.valueOf(a), b);
+	}
+
+	/**
+	 * The numeric value of an operand (like ZEval.evalNumericExp()).
+	 */
+	static double toDouble(Object o) throws SQLException {
+		if (o instanceof Number) {
+			return ((Number) o).doubleValue();
+		}
+		throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
+	}
+
+	static final class Column extends ZCompiledExpression {
+		final int slot;
+		final String name;
+
+		Column(int slot, String name) {
+			this.slot = slot;
+			this.name = name;
+		}
+
+		public Object eval(ZRow row) throws SQLException {
+			Object o = row.getAttValue(slot);
+			if (o == null) {
+				throw new SQLException("ZEval.evalExpValue(): unknown column " + name);
+			}
+			return ZEval.number(o);
+		}
+	}
+
+	static final class Numeric extends ZCompiledExpression {
+		final double value;
+		final Double boxed;
+
+		Numeric(double value) {
+			this.value = value;
+			this.boxed = Double.valueOf(value);
+		}
+
+		public Object eval(ZRow row) {
+			return boxed;
+		}
+
+		public double evalDouble(ZRow row) {
+			return value;
+		}
+	}
+
+	static final class Literal extends ZCompiledExpression {
+		final Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		public Object eval(ZRow row) {
+			return value;
+		}
+	}
+
+	/**
+	 * A placeholder, resolved against the template of the evaluator's bindings at compile time (bindings of another
+	 * template are looked up at each evaluation).
+	 */
+	static final class Parameter extends ZCompiledExpression {
+		final ZEval eval;
+		final ZExp placeholder;
+		final ZPreparedTemplate template;
+		final int index;
+
+		Parameter(ZEval eval, ZExp placeholder, ZPreparedTemplate template, int index) {
+			this.eval = eval;
+			this.placeholder = placeholder;
+			this.template = template;
+			this.index = index;
+		}
+
+		public Object eval(ZRow row) throws SQLException {
+			ZBindings b = eval.getBindings();
+			if (b != null && b.getTemplate() == template) {
+				return eval.parameter(index, placeholder);
+			}
+			return eval.parameter(b == null ? 0 : b.getTemplate().indexOf(placeholder), placeholder);
+		}
+	}
+
+	static final class Call extends ZCompiledExpression {
+		final ZFunction.Implementation f;
+		final ZCompiledExpression[] args;
+
+		Call(ZFunction.Implementation f, ZCompiledExpression[] args) {
+			this.f = f;
+			this.args = args;
+		}
+
+		public Object eval(ZRow row) throws SQLException {
+			Object[] v = new Object[args.length];
+			for (int i = 0; i < v.length; i++) {
+				v[i] = args[i].eval(row);
+			}
+			return ZEval.number(f.call(v));
+		}
+	}
+
+	/**
+	 * An arithmetic operator: its value is computed as a primitive double.
+	 */
+	abstract static class Arithmetic extends ZCompiledExpression {
+		public Object eval(ZRow row) throws SQLException {
+			return Double.valueOf(evalDouble(row));
+		}
+
+		public abstract double evalDouble(ZRow row) throws SQLException;
+	}
+
+	static final class Add extends Arithmetic {
+		final ZCompiledExpression[] v;
+
+		Add(ZCompiledExpression[] v) {
+			this.v = v;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			double d = v[0].evalDouble(row);
+			for (int i = 1; i < v.length; i++) {
+				d += v[i].evalDouble(row);
+			}
+			return d;
+		}
+	}
+
+	static final class Mul extends Arithmetic {
+		final ZCompiledExpression[] v;
+
+		Mul(ZCompiledExpression[] v) {
+			this.v = v;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			double d = v[0].evalDouble(row);
+			for (int i = 1; i < v.length; i++) {
+				d *= v[i].evalDouble(row);
+			}
+			return d;
+		}
+	}
+
+	static final class Neg extends Arithmetic {
+		final ZCompiledExpression a;
+
+		Neg(ZCompiledExpression a) {
+			this.a = a;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			return -a.evalDouble(row);
+		}
+	}
+
+	static final class Sub extends Arithmetic {
+		final ZCompiledExpression a;
+		final ZCompiledExpression[] v;
+
+		Sub(ZCompiledExpression a, ZCompiledExpression[] v) {
+			this.a = a;
+			this.v = v;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			double d = a.evalDouble(row);
+			for (ZCompiledExpression e : v) {
+				d -= e.evalDouble(row);
+			}
+			return d;
+		}
+	}
+
+	static final class Div extends Arithmetic {
+		final ZCompiledExpression a;
+		final ZCompiledExpression[] v;
+
+		Div(ZCompiledExpression a, ZCompiledExpression[] v) {
+			this.a = a;
+			this.v = v;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			double d = a.evalDouble(row);
+			for (ZCompiledExpression e : v) {
+				d /= e.evalDouble(row);
+			}
+			return d;
+		}
+	}
+
+	static final class Pow extends Arithmetic {
+		final ZCompiledExpression a;
+		final ZCompiledExpression[] v;
+
+		Pow(ZCompiledExpression a, ZCompiledExpression[] v) {
+			this.a = a;
+			this.v = v;
+		}
+
+		public double evalDouble(ZRow row) throws SQLException {
+			double d = a.evalDouble(row);
+			for (ZCompiledExpression e : v) {
+				d = Math.pow(d, e.evalDouble(row));
+			}
+			return d;
+		}
+	}
+}
@@ -20,23 +20,187 @@ package org.gibello.zql.data;
 import static org.gibello.zql.ZUtils.isDouble;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FileReader;
 import java.sql.SQLException;
+import java.util.IdentityHashMap;
 import java.util.List;
 
+import org.gibello.zql.ZBindings;
 import org.gibello.zql.ZConstant;
 import org.gibello.zql.ZExp;
 import org.gibello.zql.ZExpression;
+import org.gibello.zql.ZFunction;
+import org.gibello.zql.ZOperator;
+import org.gibello.zql.ZQuery;
 import org.gibello.zql.ZqlParser;
 
 /**
- * Evaluate SQL expressions
+ * Evaluate SQL expressions. The "?" and ":name" placeholders of an expression are replaced by the values of the
+ * bindings of the evaluator (see ZPreparedTemplate).<br>
+ * eval() interprets the expression tree for each tuple; to evaluate the same expression on many rows, compile it once
+ * with compile(), and optionally generate the hot ones with a ZCodegen. An expression interpreted many times should
+ * first be rewritten once with ZOptimizer.optimize() (compile() does it).<br>
+ * An evaluator is not thread-safe (it keeps the LIKE matchers and IN lists it has built): use one evaluator per
+ * thread. Compiled predicates and expressions can be shared by several threads (see ZParallelFilter).
  */
 public class ZEval {
 
+	// The number of IN lists kept by an evaluator
+	private static final int MAX_IN_LISTS = 64;
+
+	private ZBindings bindings = null;
+	private ZLikeMatcher lastLike = null;
+	private IdentityHashMap<ZExpression, ZInList> inLists = null;
+	private ZCodegen codegen = null;
+	private boolean adaptiveOrdering = false;
+
+	/**
+	 * Create an evaluator without parameter bindings.
+	 */
+	public ZEval() {
+	}
+
+	/**
+	 * Create an evaluator for a prepared template.
+	 * 
+	 * @param bindings
+	 *            The parameter values
+	 */
+	public ZEval(ZBindings bindings) {
+		this.bindings = bindings;
+	}
+
+	/**
+	 * Set the parameter values used to evaluate placeholders.
+	 * 
+	 * @param bindings
+	 *            The parameter values (may be null)
+	 */
+	public void setBindings(ZBindings bindings) {
+		this.bindings = bindings;
+	}
+
+	/**
+	 * @return The parameter values used to evaluate placeholders (null if there's none).
+	 */
+	public ZBindings getBindings() {
+		return bindings;
+	}
+
+	/**
+	 * Compile a boolean expression, to evaluate it on many rows. Columns are resolved to the slots of the schema, and
+	 * placeholders to the parameters of the template of this evaluator's bindings (the values are read from the
+	 * bindings at each evaluation). The expression is first rewritten by ZOptimizer.
+	 * 
+	 * @param exp
+	 *            The expression to compile
+	 * @param schema
+	 *            The columns of the rows
+	 * @return The compiled predicate.
+	 */
+	public ZCompiledPredicate compile(ZExp exp, ZSchema schema) throws SQLException {
+		ZCompiledPredicate p = new ZCompiler(this, schema, adaptiveOrdering).predicate(ZOptimizer.optimize(exp));
+		return codegen == null ? p : codegen.adaptive(p);
+	}
+
+	/**
+	 * Compile a numeric or string expression, to evaluate it on many rows (see compile()).
+	 * 
+	 * @param exp
+	 *            The expression to compile
+	 * @param schema
+	 *            The columns of the rows
+	 * @return The compiled expression.
+	 */
+	public ZCompiledExpression compileExpression(ZExp exp, ZSchema schema) throws SQLException {
+		ZCompiledExpression e = new ZCompiler(this, schema).value(ZOptimizer.optimize(exp));
+		return codegen == null ? e : codegen.adaptive(e);
+	}
+
+	/**
+	 * Compile a boolean expression, to evaluate it on batches of rows stored by column (see ZColumnBatch and
+	 * compile()). In batches, a comparison with a null value is unknown, like in SQL.
+	 * 
+	 * @param exp
+	 *            The expression to compile
+	 * @param schema
+	 *            The columns of the batches
+	 * @return The compiled predicate.
+	 */
+	public ZBatchPredicate compileBatch(ZExp exp, ZSchema schema) throws SQLException {
+		return new ZBatchPredicate(ZVectorizer.filter(new ZCompiler(this, schema).predicate(ZOptimizer.optimize(exp))));
+	}
+
+	/**
+	 * Create an aggregator for a query: the rows added to the aggregator are filtered by the WHERE clause and grouped
+	 * by the GROUP BY expressions, and the result holds the SELECT items of the groups that satisfy the HAVING clause
+	 * (see ZAggregator).
+	 * 
+	 * @param q
+	 *            The query (its FROM clause is ignored)
+	 * @param schema
+	 *            The columns of the rows
+	 * @return A new aggregator.
+	 */
+	public ZAggregator aggregate(ZQuery q, ZSchema schema) throws SQLException {
+		return new ZAggregator(this, q, schema);
+	}
+
+	/**
+	 * Compile a numeric expression, to evaluate it on batches of rows stored by column (see compileBatch()).
+	 * 
+	 * @param exp
+	 *            The expression to compile
+	 * @param schema
+	 *            The columns of the batches
+	 * @return The compiled expression.
+	 */
+	public ZBatchExpression compileBatchExpression(ZExp exp, ZSchema schema) throws SQLException {
+		return new ZBatchExpression(new ZCompiler(this, schema).value(ZOptimizer.optimize(exp)));
+	}
+
 	/**
-	 * Evaluate a boolean expression to true or false (for example, SQL WHERE clauses are boolean expressions)
+	 * Generate classes for the hot expressions compiled by this evaluator.
+	 * 
+	 * @param codegen
+	 *            The code generator (may be shared by several evaluators), or null to interpret compiled expressions.
+	 */
+	public void setCodegen(ZCodegen codegen) {
+		this.codegen = codegen;
+	}
+
+	/**
+	 * @return The code generator used by compile(), or null if there's none.
+	 */
+	public ZCodegen getCodegen() {
+		return codegen;
+	}
+
+	/**
+	 * Reorder the operands of the AND and OR of the predicates compiled by this evaluator, according to their observed
+	 * cost and selectivity: the operands that are cheap and most often decide the result are evaluated first.<br>
+	 * Operands must not depend on their evaluation order (like in SQL, an operand that fails on some rows may be
+	 * evaluated before the operand that excludes them). The AND and OR of adaptive predicates are not generated by
+	 * the ZCodegen, since their order changes.
+	 * 
+	 * @param adaptive
+	 *            true to reorder the operands, false to evaluate them in the order of the expression (the default).
+	 */
+	public void setAdaptiveOrdering(boolean adaptive) {
+		this.adaptiveOrdering = adaptive;
+	}
+
+	/**
+	 * @return true if compile() reorders the operands of AND and OR.
+	 */
+	public boolean isAdaptiveOrdering() {
+		return adaptiveOrdering;
+	}
+
+	/**
+	 * Evaluate a boolean expression to true or false (for example, SQL WHERE clauses are boolean expressions).<br>
+	 * Numeric comparisons and arithmetic are computed on primitive doubles: they don't allocate, as long as the
+	 * numbers of the tuple are Number objects (see evalDouble()).
 	 * 
 	 * @param tuple
 	 *            The tuple on which to evaluate the expression
@@ -54,90 +218,172 @@ public class ZEval {
 		}
 
 		ZExpression pred = (ZExpression) exp;
-		String op = pred.getOperator();
+		ZOperator op = pred.getOpcode();
 
 		switch (op) {
 
-		case "AND":
-			boolean and = true;
-			for (int i = 0; and && i < pred.nbOperands(); i++) {
-				and &= eval(tuple, pred.getOperand(i));
+		case AND:
+			for (int i = 0; i < pred.nbOperands(); i++) {
+				if (!eval(tuple, pred.getOperand(i))) {
+					return false;
+				}
 			}
-			return and;
-		case "OR":
-			boolean or = false;
+			return true;
+		case OR:
 			for (int i = 0; i < pred.nbOperands(); i++) {
-				or |= eval(tuple, pred.getOperand(i));
+				if (eval(tuple, pred.getOperand(i))) {
+					return true;
+				}
 			}
-			return or;
-		case "NOT":
-			return !eval(tuple, pred.getOperand(0));
-		case "=":
+			return false;
+		case NOT:
+			return evalNot(tuple, pred.getOperand(0));
+		case EQ:
 			return evalCmp(tuple, pred.getOperands()) == 0;
-		case "!=":
-			return evalCmp(tuple, pred.getOperands()) != 0;
-		case "<>":
+		case NE:
+			if ("#".equals(pred.getOperator())) {
+				throw new SQLException("ZEval.eval(): Operator # not supported");
+			}
 			return evalCmp(tuple, pred.getOperands()) != 0;
-		case "#":
-			throw new SQLException("ZEval.eval(): Operator # not supported");
-		case ">":
+		case GT:
 			return evalCmp(tuple, pred.getOperands()) > 0;
-		case ">=":
+		case GE:
 			return evalCmp(tuple, pred.getOperands()) >= 0;
-		case "<":
+		case LT:
 			return evalCmp(tuple, pred.getOperands()) < 0;
-		case "<=":
+		case LE:
 			return evalCmp(tuple, pred.getOperands()) <= 0;
-		case "BETWEEN":
-		case "NOT BETWEEN":
-			ZExpression newexp = new ZExpression("AND", new ZExpression(">=", pred.getOperand(0), pred.getOperand(1)),
-					new ZExpression("<=", pred.getOperand(0), pred.getOperand(2)));
-
-			if ("NOT BETWEEN".equals(op)) {
-				return !eval(tuple, newexp);
-			} else {
-				return eval(tuple, newexp);
-			}
+		case BETWEEN:
+		case NOT_BETWEEN:
+			ZExp x = pred.getOperand(0);
+			boolean between = compare(tuple, x, pred.getOperand(1)) >= 0 && compare(tuple, x, pred.getOperand(2)) <= 0;
+			return op == ZOperator.BETWEEN ? between : !between;
 
-		case "LIKE":
-		case "NOT LIKE":
+		case LIKE:
+		case NOT_LIKE:
 			boolean like = evalLike(tuple, pred.getOperands());
-			return "LIKE".equals(op) ? like : !like;
+			return op == ZOperator.LIKE ? like : !like;
 
-		case "IN":
-		case "NOT IN":
-			newexp = new ZExpression("OR");
+		case IN:
+		case NOT_IN:
+			return evalIn(tuple, pred, op == ZOperator.NOT_IN);
 
-			for (int i = 1; i < pred.nbOperands(); i++) {
-				newexp.addOperand(new ZExpression("=", pred.getOperand(0), pred.getOperand(i)));
-			}
+		case IS_NULL:
+			return isNull(pred);
 
-			if ("NOT IN".equals(op)) {
-				return !eval(tuple, newexp);
-			} else {
-				return eval(tuple, newexp);
-			}
+		case IS_NOT_NULL:
+			return !isNull(pred);
+
+		default:
+			throw new SQLException("ZEval.eval(): Unknown operator " + pred.getOperator());
+		}
+
+	}
 
-		case "IS NULL":
-			if (pred.nbOperands() <= 0 || pred.getOperand(0) == null) {
+	/**
+	 * Evaluate NOT: the negation is pushed down through AND, OR and NOT to the IN lists (De Morgan), so that NOT of an
+	 * unknown IN is still unknown (false), like in SQL.
+	 */
+	private boolean evalNot(ZTuple tuple, ZExp exp) throws SQLException {
+		if (exp instanceof ZExpression) {
+			ZExpression pred = (ZExpression) exp;
+			switch (pred.getOpcode()) {
+			case AND:
+				for (int i = 0; i < pred.nbOperands(); i++) {
+					if (evalNot(tuple, pred.getOperand(i))) {
+						return true;
+					}
+				}
+				return false;
+			case OR:
+				for (int i = 0; i < pred.nbOperands(); i++) {
+					if (!evalNot(tuple, pred.getOperand(i))) {
+						return false;
+					}
+				}
 				return true;
+			case NOT:
+				return eval(tuple, pred.getOperand(0));
+			case IN:
+			case NOT_IN:
+				return evalIn(tuple, pred, pred.getOpcode() == ZOperator.IN);
+			default:
+				break;
 			}
-			ZExp x = pred.getOperand(0);
-			if (x instanceof ZConstant) {
-				return ((ZConstant) x).getType() == ZConstant.Type.NULL;
-			} else {
-				throw new SQLException("ZEval.eval(): can't eval IS (NOT) NULL");
+		}
+		return !eval(tuple, exp);
+	}
+
+	/**
+	 * Evaluate IN and NOT IN: the result is unknown (false) if the value is NULL, or if it is not found and the list
+	 * contains NULL.
+	 */
+	private boolean evalIn(ZTuple tuple, ZExpression pred, boolean not) throws SQLException {
+		ZExp x = pred.getOperand(0);
+		Object v = raw(tuple, x);
+		if (v == null) {
+			return false;
+		}
+		int n = pred.nbOperands();
+		if (n - 1 < ZInList.MIN_SIZE) {
+			boolean hasNull = false;
+			for (int i = 1; i < n; i++) {
+				ZExp e = pred.getOperand(i);
+				if (e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.NULL) {
+					hasNull = true;
+				} else if (compare(tuple, x, v, e) == 0) {
+					return !not;
+				}
 			}
+			return !hasNull && not;
+		}
 
-		case "IS NOT NULL":
-			ZExpression xs = new ZExpression("IS NULL");
-			xs.setOperands(pred.getOperands());
-			return !eval(tuple, xs);
+		ZInList list = inList(pred);
+		boolean found;
+		if (isNumber(x, v)) {
+			found = list.contains(toDouble(tuple, x, v));
+		} else if (v instanceof String) {
+			found = list.contains((String) v);
+		} else {
+			throw new SQLException("ZEval.evalCmp(): can't compare (" + v.toString() + ") with an IN list");
+		}
+		for (int i = 0; !found && i < list.getOthers().size(); i++) {
+			found = compare(tuple, x, v, list.getOthers().get(i)) == 0;
+		}
+		return found ? !not : !list.hasNull() && not;
+	}
 
-		default:
-			throw new SQLException("ZEval.eval(): Unknown operator " + op);
+	/**
+	 * The hash sets of an IN list, built at its first evaluation.
+	 */
+	private ZInList inList(ZExpression pred) {
+		if (inLists == null) {
+			inLists = new IdentityHashMap<ZExpression, ZInList>();
 		}
+		ZInList list = inLists.get(pred);
+		if (list == null) {
+			if (inLists.size() >= MAX_IN_LISTS) {
+				inLists.clear();
+			}
+			list = new ZInList(pred.getOperands());
+			inLists.put(pred, list);
+		}
+		return list;
+	}
 
+	private boolean isNull(ZExpression pred) throws SQLException {
+		if (pred.nbOperands() <= 0 || pred.getOperand(0) == null) {
+			return true;
+		}
+		ZExp x = pred.getOperand(0);
+		if (isParameter(x)) {
+			return rawParameter(x) == null;
+		}
+		if (x instanceof ZConstant) {
+			return ((ZConstant) x).getType() == ZConstant.Type.NULL;
+		} else {
+			throw new SQLException("ZEval.eval(): can't eval IS (NOT) NULL");
+		}
 	}
 
 	double evalCmp(ZTuple tuple, List<ZExp> operands) throws SQLException {
@@ -149,10 +395,37 @@ public class ZEval {
 			throw new SQLException("ZEval.evalCmp(): Trying to compare more than two values");
 		}
 
-		Object o1 = null, o2 = null;
+		return compare(tuple, operands.get(0), operands.get(1));
+	}
+
+	/**
+	 * Compare two operands: on primitive doubles if both are numbers, with compare(Object, Object) otherwise.
+	 */
+	private double compare(ZTuple tuple, ZExp a, ZExp b) throws SQLException {
+		return compare(tuple, a, raw(tuple, a), b);
+	}
+
+	/**
+	 * Compare two operands, given the raw value of the first one.
+	 */
+	private double compare(ZTuple tuple, ZExp a, Object x, ZExp b) throws SQLException {
+		Object y = raw(tuple, b);
+		if (isNumber(a, x) && isNumber(b, y)) {
+			return toDouble(tuple, a, x) - toDouble(tuple, b, y);
+		}
+		return compare(value(tuple, a, x), value(tuple, b, y));
+	}
 
-		o1 = evalExpValue(tuple, operands.get(0));
-		o2 = evalExpValue(tuple, operands.get(1));
+	/**
+	 * Compare two values (Strings are only compared for equality).
+	 * 
+	 * @return 0 if the values are equal, a negative number if o1 is smaller than o2, a positive number if o1 is greater
+	 *         than o2.
+	 */
+	static double compare(Object o1, Object o2) throws SQLException {
+		if (o1 == null || o2 == null) {
+			throw new SQLException("ZEval.evalCmp(): can't compare NULL values");
+		}
 
 		if (o1 instanceof String || o2 instanceof String) {
 			return o1.equals(o2) ? 0 : -1;
@@ -187,80 +460,196 @@ public class ZEval {
 
 		Object o1 = evalExpValue(tuple, (ZExp) operands.get(0));
 		Object o2 = evalExpValue(tuple, (ZExp) operands.get(1));
+		if (!(o1 instanceof String) || !(o2 instanceof String)) {
+			throw new SQLException("ZEval.evalLike(): LIKE can only compare strings");
+		}
+		// The pattern is usually a constant: keep its matcher
+		ZLikeMatcher m = lastLike;
+		if (m == null || !m.getPattern().equals(o2)) {
+			lastLike = m = ZLikeMatcher.compile((String) o2);
+		}
+		return m.matches((String) o1);
+	}
 
+	/**
+	 * @return true if the String o1 matches the pattern o2 (see ZLikeMatcher).
+	 */
+	static boolean like(Object o1, Object o2) throws SQLException {
 		if ((o1 instanceof String) && (o2 instanceof String)) {
-			String s1 = (String) o1;
-			String s2 = (String) o2;
-			if (s2.startsWith("%")) {
-				return s1.endsWith(s2.substring(1));
-			} else if (s2.endsWith("%")) {
-				return s1.startsWith(s2.substring(0, s2.length() - 1));
-			} else {
-				return s1.equalsIgnoreCase(s2);
-			}
+			return ZLikeMatcher.compile((String) o2).matches((String) o1);
 		} else {
 			throw new SQLException("ZEval.evalLike(): LIKE can only compare strings");
 		}
 
 	}
 
-	double evalNumericExp(ZTuple tuple, ZExpression exp) throws SQLException {
-
-		if (tuple == null || exp == null || exp.getOperator() == null) {
-			throw new SQLException("ZEval.eval(): null argument or operator");
+	/**
+	 * Evaluate a numeric expression (example: a+1) on primitive doubles. Column values are not converted to objects:
+	 * the evaluation does not allocate, except for numbers stored as Strings in the tuple and for custom functions.
+	 * 
+	 * @param tuple
+	 *            The tuple on which to evaluate the expression
+	 * @param exp
+	 *            The expression to evaluate
+	 * @return The expression's value
+	 * @throws SQLException
+	 *             If the expression is not numeric.
+	 */
+	public double evalDouble(ZTuple tuple, ZExp exp) throws SQLException {
+		if (exp instanceof ZConstant) {
+			ZConstant c = (ZConstant) exp;
+			switch (c.getType()) {
+			case COLUMNNAME:
+				return toDouble(column(tuple, c));
+			case NUMBER:
+				return parseNumber(c.getValue());
+			case BIND:
+				return parameterDouble(c);
+			default:
+				throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
+			}
 		}
-
-		String op = exp.getOperator();
-
-		Object o1 = evalExpValue(tuple, exp.getOperand(0));
-		if (!(o1 instanceof Double)) {
+		if (isParameter(exp)) {
+			return parameterDouble(exp);
+		}
+		if (!(exp instanceof ZExpression)) {
 			throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
 		}
-		Double dobj = (Double) o1;
-
-		switch (op) {
-		case "+":
-			double val = dobj.doubleValue();
-			for (int i = 1; i < exp.nbOperands(); i++) {
-				Object obj = evalExpValue(tuple, exp.getOperand(i));
-				val += ((Number) obj).doubleValue();
+		ZExpression x = (ZExpression) exp;
+		if (x.getFunction() != null) {
+			return toDouble(call(tuple, x));
+		}
+		int n = x.nbOperands();
+		if (n == 0) {
+			throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
+		}
+		double val = evalDouble(tuple, x.getOperand(0));
+		switch (x.getOpcode()) {
+		case PLUS:
+			for (int i = 1; i < n; i++) {
+				val += evalDouble(tuple, x.getOperand(i));
 			}
 			return val;
-		case "-":
-			val = dobj.doubleValue();
-			if (exp.nbOperands() == 1) {
+		case MINUS:
+			if (n == 1) {
 				return -val;
 			}
-			for (int i = 1; i < exp.nbOperands(); i++) {
-				Object obj = evalExpValue(tuple, exp.getOperand(i));
-				val -= ((Number) obj).doubleValue();
+			for (int i = 1; i < n; i++) {
+				val -= evalDouble(tuple, x.getOperand(i));
+			}
+			return val;
+		case TIMES:
+			for (int i = 1; i < n; i++) {
+				val *= evalDouble(tuple, x.getOperand(i));
+			}
+			return val;
+		case DIVIDE:
+			for (int i = 1; i < n; i++) {
+				val /= evalDouble(tuple, x.getOperand(i));
+			}
+			return val;
+		case POWER:
+			for (int i = 1; i < n; i++) {
+				val = Math.pow(val, evalDouble(tuple, x.getOperand(i)));
 			}
 			return val;
+		default:
+			throw new SQLException("ZEval.evalNumericExp(): Unknown operator " + x.getOperator());
+		}
+	}
 
-		case "*":
-			val = dobj.doubleValue();
-			for (int i = 1; i < exp.nbOperands(); i++) {
-				Object obj = evalExpValue(tuple, exp.getOperand(i));
-				val *= ((Number) obj).doubleValue();
+	/**
+	 * Evaluate an integer expression (example: id+1) on primitive longs: values are exact up to 64 bits. Division is
+	 * the integer division.
+	 * 
+	 * @param tuple
+	 *            The tuple on which to evaluate the expression
+	 * @param exp
+	 *            The expression to evaluate
+	 * @return The expression's value
+	 * @throws SQLException
+	 *             If a value is not an integer.
+	 */
+	public long evalLong(ZTuple tuple, ZExp exp) throws SQLException {
+		if (exp instanceof ZConstant) {
+			ZConstant c = (ZConstant) exp;
+			switch (c.getType()) {
+			case COLUMNNAME:
+				return toLong(column(tuple, c));
+			case NUMBER:
+				return toLong(c.getValue());
+			case BIND:
+				return parameterLong(c);
+			default:
+				throw new SQLException("ZEval.evalLong(): expression not an integer");
+			}
+		}
+		if (isParameter(exp)) {
+			return parameterLong(exp);
+		}
+		if (!(exp instanceof ZExpression)) {
+			throw new SQLException("ZEval.evalLong(): expression not an integer");
+		}
+		ZExpression x = (ZExpression) exp;
+		if (x.getFunction() != null) {
+			return toLong(call(tuple, x));
+		}
+		int n = x.nbOperands();
+		if (n == 0) {
+			throw new SQLException("ZEval.evalLong(): expression not an integer");
+		}
+		long val = evalLong(tuple, x.getOperand(0));
+		switch (x.getOpcode()) {
+		case PLUS:
+			for (int i = 1; i < n; i++) {
+				val += evalLong(tuple, x.getOperand(i));
+			}
+			return val;
+		case MINUS:
+			if (n == 1) {
+				return -val;
+			}
+			for (int i = 1; i < n; i++) {
+				val -= evalLong(tuple, x.getOperand(i));
+			}
+			return val;
+		case TIMES:
+			for (int i = 1; i < n; i++) {
+				val *= evalLong(tuple, x.getOperand(i));
 			}
 			return val;
-		case "/":
-			val = dobj.doubleValue();
-			for (int i = 1; i < exp.nbOperands(); i++) {
-				Object obj = evalExpValue(tuple, exp.getOperand(i));
-				val /= ((Number) obj).doubleValue();
+		case DIVIDE:
+			for (int i = 1; i < n; i++) {
+				long d = evalLong(tuple, x.getOperand(i));
+				if (d == 0) {
+					throw new SQLException("ZEval.evalLong(): division by zero");
+				}
+				val /= d;
 			}
 			return val;
-		case "**":
-			val = dobj.doubleValue();
-			for (int i = 1; i < exp.nbOperands(); i++) {
-				Object obj = evalExpValue(tuple, exp.getOperand(i));
-				val = Math.pow(val, ((Number) obj).doubleValue());
+		case POWER:
+			for (int i = 1; i < n; i++) {
+				val = power(val, evalLong(tuple, x.getOperand(i)));
 			}
 			return val;
 		default:
-			throw new SQLException("ZEval.evalNumericExp(): Unknown operator " + op);
+			throw new SQLException("ZEval.evalLong(): Unknown operator " + x.getOperator());
+		}
+	}
+
+	private static long power(long base, long exp) throws SQLException {
+		if (exp < 0) {
+			throw new SQLException("ZEval.evalLong(): negative exponent");
+		}
+		long r = 1;
+		while (exp > 0) {
+			if ((exp & 1) != 0) {
+				r *= base;
+			}
+			base *= base;
+			exp >>= 1;
 		}
+		return r;
 	}
 
 	/**
@@ -283,21 +672,15 @@ public class ZEval {
 			switch (c.getType()) {
 
 			case COLUMNNAME:
-
-				Object o1 = tuple.getAttValue(c.getValue());
-				if (o1 == null) {
-					throw new SQLException("ZEval.evalExpValue(): unknown column " + c.getValue());
-				}
-
-				if (isDouble(o1)) {
-					o2 = Double.valueOf(o1.toString());
-				} else {
-					o2 = o1;
-				}
+				o2 = number(column(tuple, c));
 				break;
 
 			case NUMBER:
-				o2 = new Double(c.getValue());
+				o2 = Double.valueOf(parseNumber(c.getValue()));
+				break;
+
+			case BIND:
+				o2 = parameter(c);
 				break;
 
 			case STRING:
@@ -305,12 +688,258 @@ public class ZEval {
 				o2 = c.getValue();
 				break;
 			}
+		} else if (isParameter(exp)) {
+			o2 = parameter(exp);
+		} else if (exp instanceof ZExpression && ((ZExpression) exp).getFunction() != null) {
+			o2 = call(tuple, (ZExpression) exp);
 		} else if (exp instanceof ZExpression) {
-			o2 = new Double(evalNumericExp(tuple, (ZExpression) exp));
+			o2 = Double.valueOf(evalDouble(tuple, exp));
 		}
 		return o2;
 	}
 
+	/**
+	 * Call the implementation of a custom function (resolved by the parser).
+	 */
+	private Object call(ZTuple tuple, ZExpression exp) throws SQLException {
+		ZFunction f = exp.getFunction();
+		if (f.getImplementation() == null) {
+			throw new SQLException("ZEval.evalExpValue(): function " + f.getName() + " has no implementation");
+		}
+		Object[] args = new Object[exp.nbOperands()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = evalExpValue(tuple, exp.getOperand(i));
+		}
+		return number(f.getImplementation().call(args));
+	}
+
+	private static Object column(ZTuple tuple, ZConstant c) throws SQLException {
+		Object o = tuple.getAttValue(c.getValue());
+		if (o == null) {
+			throw new SQLException("ZEval.evalExpValue(): unknown column " + c.getValue());
+		}
+		return o;
+	}
+
+	// Marks the operands that are evaluated with evalDouble() (number constants and arithmetic)
+	private static final Object NUMERIC = new Object();
+
+	/**
+	 * The value of an operand, not converted: NUMERIC for number constants and arithmetic expressions.
+	 */
+	private Object raw(ZTuple tuple, ZExp e) throws SQLException {
+		if (e instanceof ZConstant) {
+			ZConstant c = (ZConstant) e;
+			switch (c.getType()) {
+			case COLUMNNAME:
+				return column(tuple, c);
+			case NUMBER:
+				return NUMERIC;
+			case BIND:
+				return rawParameter(c);
+			default:
+				return c.getValue();
+			}
+		}
+		if (isParameter(e)) {
+			return rawParameter(e);
+		}
+		if (e instanceof ZExpression) {
+			ZExpression x = (ZExpression) e;
+			return x.getFunction() != null ? call(tuple, x) : NUMERIC;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if an operand is a number (String constants, like '12', are not numbers).
+	 */
+	private static boolean isNumber(ZExp e, Object raw) {
+		if (raw == NUMERIC || raw instanceof Number) {
+			return true;
+		}
+		return isDouble(raw) && !(e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.STRING);
+	}
+
+	/**
+	 * The value of an operand, like evalExpValue(), from its raw value.
+	 */
+	private Object value(ZTuple tuple, ZExp e, Object raw) throws SQLException {
+		if (raw == NUMERIC) {
+			return Double.valueOf(evalDouble(tuple, e));
+		}
+		return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.STRING ? raw : number(raw);
+	}
+
+	private double toDouble(ZTuple tuple, ZExp e, Object raw) throws SQLException {
+		return raw == NUMERIC ? evalDouble(tuple, e) : toDouble(raw);
+	}
+
+	/**
+	 * The numeric value of an object (like number(o).doubleValue(), without allocation for numbers).
+	 */
+	static double toDouble(Object o) throws SQLException {
+		if (o instanceof Double || o instanceof Long || o instanceof Integer || o instanceof Short
+				|| o instanceof Byte) {
+			return ((Number) o).doubleValue();
+		}
+		if (o instanceof String && isDouble(o)) {
+			return parseNumber((String) o);
+		}
+		Object n = number(o);
+		if (n instanceof Number) {
+			return ((Number) n).doubleValue();
+		}
+		throw new SQLException("ZEval.evalNumericExp(): expression not numeric");
+	}
+
+	/**
+	 * The value of an integer object.
+	 */
+	static long toLong(Object o) throws SQLException {
+		if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			return ((Number) o).longValue();
+		}
+		if (o instanceof String && isInteger((String) o)) {
+			try {
+				return Long.parseLong((String) o);
+			} catch (NumberFormatException e) {
+				throw new SQLException("ZEval.evalLong(): integer overflow (" + o + ")");
+			}
+		}
+		double d = toDouble(o);
+		if (d != Math.rint(d) || Double.isInfinite(d) || Math.abs(d) >= 0x1p63) {
+			throw new SQLException("ZEval.evalLong(): expression not an integer");
+		}
+		return (long) d;
+	}
+
+	private static boolean isInteger(String s) {
+		int n = s.length();
+		int i = (n > 0 && s.charAt(0) == '-') ? 1 : 0;
+		if (i == n) {
+			return false;
+		}
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+			1e13, 1e14, 1e15 };
+
+	/**
+	 * Parse a number, like Double.parseDouble(). Numbers of up to 15 digits, without exponent, are parsed without
+	 * allocation: the mantissa and the power of ten are exact doubles, so their quotient is correctly rounded.
+	 */
+	static double parseNumber(String s) {
+		int n = s.length();
+		int i = (n > 0 && s.charAt(0) == '-') ? 1 : 0;
+		long m = 0;
+		int digits = 0;
+		int scale = -1;
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				m = m * 10 + (c - '0');
+				digits++;
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if (c == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				break;
+			}
+		}
+		if (i < n || digits == 0 || digits > 15) {
+			return Double.parseDouble(s);
+		}
+		double d = (scale > 0 ? m / POW10[scale] : m);
+		return s.charAt(0) == '-' ? -d : d;
+	}
+
+	/**
+	 * Convert a value to a Double if it is a number (like "12" or 12L).
+	 */
+	static Object number(Object o) {
+		if (o instanceof Double || o == null) {
+			return o;
+		}
+		if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			return Double.valueOf(((Number) o).doubleValue());
+		}
+		return isDouble(o) ? Double.valueOf(o.toString()) : o;
+	}
+
+	private static boolean isParameter(ZExp exp) {
+		if (exp instanceof ZConstant) {
+			return ((ZConstant) exp).getType() == ZConstant.Type.BIND;
+		}
+		return exp instanceof ZExpression && ((ZExpression) exp).getOpcode() == ZOperator.PARAMETER;
+	}
+
+	/**
+	 * Get the value bound to a placeholder (numbers are returned as Double objects, like column values).
+	 */
+	private Object parameter(ZExp exp) throws SQLException {
+		return parameter(bindings == null ? 0 : bindings.getTemplate().indexOf(exp), exp);
+	}
+
+	/**
+	 * Get the value bound to parameter i (0 if the placeholder is not a parameter of the template).
+	 */
+	Object parameter(int i, ZExp exp) throws SQLException {
+		checkBound(i, exp);
+		if (bindings.isNumber(i)) {
+			return Double.valueOf(bindings.getDouble(i));
+		}
+		return number(bindings.getObject(i));
+	}
+
+	private int checkBound(int i, ZExp exp) throws SQLException {
+		if (i == 0) {
+			throw new SQLException("ZEval.evalExpValue(): no value for parameter " + exp);
+		}
+		if (!bindings.isBound(i)) {
+			throw new SQLException("ZEval.evalExpValue(): parameter " + exp + " (" + i + ") is not bound");
+		}
+		return i;
+	}
+
+	private int parameterIndex(ZExp exp) throws SQLException {
+		return checkBound(bindings == null ? 0 : bindings.getTemplate().indexOf(exp), exp);
+	}
+
+	/**
+	 * The value bound to a placeholder, not converted: NUMERIC for numbers.
+	 */
+	private Object rawParameter(ZExp exp) throws SQLException {
+		int i = parameterIndex(exp);
+		return bindings.isNumber(i) ? NUMERIC : bindings.getObject(i);
+	}
+
+	private double parameterDouble(ZExp exp) throws SQLException {
+		int i = parameterIndex(exp);
+		return bindings.isNumber(i) ? bindings.getDouble(i) : toDouble(bindings.getObject(i));
+	}
+
+	private long parameterLong(ZExp exp) throws SQLException {
+		int i = parameterIndex(exp);
+		if (!bindings.isNumber(i)) {
+			return toLong(bindings.getObject(i));
+		}
+		try {
+			return bindings.getLong(i);
+		} catch (IllegalStateException e) {
+			throw new SQLException("ZEval.evalLong(): parameter " + exp + " (" + i + ") is not an integer");
+		}
+	}
+
 	// test
 	public static void main(String args[]) throws Exception {
 		BufferedReader db = new BufferedReader(new FileReader("test.db"));
@@ -325,8 +954,7 @@ public class ZEval {
 			BufferedReader sql = new BufferedReader(new FileReader("test.sql"));
 			String query;
 			while ((query = sql.readLine()) != null) {
-				parser.initParser(new ByteArrayInputStream(query.getBytes()));
-				ZExp exp = parser.readExpression();
+				ZExp exp = parser.parseExpression(query);
 				System.out.print(tpl + ", " + query + ", ");
 				System.out.println(evaluator.eval(t, exp));
 			}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.gibello.zql.ZConstant;
+import org.gibello.zql.ZExp;
+
+/**
+ * ZInList: the constants of an IN list, in hash sets (numbers in a set of primitive doubles, strings in a HashSet), so
+ * that a value is looked up in constant time instead of being compared to each element.<br>
+ * A value is in the list if it is equal to one of the constants, like with ZEval.compare(): numbers are compared as
+ * doubles, and string constants are only equal to strings. NULL constants are never equal to a value: they make the
+ * result of NOT IN unknown.
+ */
+final class ZInList {
+
+	// Lists shorter than this are compared element by element
+	static final int MIN_SIZE = 8;
+
+	// Marks the empty slots: NaN is never added to the set (it is not equal to any number)
+	private static final long EMPTY = Double.doubleToRawLongBits(Double.NaN);
+
+	private long[] doubles;
+	private int ndoubles = 0;
+	private final HashSet<String> strings = new HashSet<String>();
+	private boolean hasNull = false;
+	private final List<ZExp> others = new ArrayList<ZExp>();
+
+	/**
+	 * Build the set of an IN expression.
+	 * 
+	 * @param operands
+	 *            The operands of the expression (the first one is the tested value)
+	 */
+	ZInList(List<ZExp> operands) {
+		int n = operands.size();
+		doubles = new long[Integer.highestOneBit(Math.max(4, n) * 2) * 2];
+		Arrays.fill(doubles, EMPTY);
+		for (int i = 1; i < n; i++) {
+			ZExp e = operands.get(i);
+			if (!add(e)) {
+				others.add(e);
+			}
+		}
+	}
+
+	private boolean add(ZExp e) {
+		if (!(e instanceof ZConstant)) {
+			return false;
+		}
+		ZConstant c = (ZConstant) e;
+		switch (c.getType()) {
+		case NULL:
+			hasNull = true;
+			return true;
+		case NUMBER:
+			add(ZEval.parseNumber(c.getValue()));
+			return true;
+		case STRING:
+			strings.add(c.getValue());
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void add(double d) {
+		if (d != d || contains(d)) {
+			return;
+		}
+		if (++ndoubles * 2 > doubles.length) {
+			long[] old = doubles;
+			doubles = new long[old.length * 2];
+			Arrays.fill(doubles, EMPTY);
+			for (long bits : old) {
+				if (bits != EMPTY) {
+					doubles[slot(bits)] = bits;
+				}
+			}
+		}
+		long bits = Double.doubleToRawLongBits(d + 0.0);
+		doubles[slot(bits)] = bits;
+	}
+
+	/**
+	 * @return The slot of a value (linear probing).
+	 */
+	private int slot(long bits) {
+		int mask = doubles.length - 1;
+		int i = (int) ((bits * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (doubles[i] != EMPTY && doubles[i] != bits) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * @return true if the number is equal to one of the numeric constants.
+	 */
+	boolean contains(double d) {
+		if (d != d) {
+			return false;
+		}
+		// d + 0.0 turns -0.0 into 0.0
+		long bits = Double.doubleToRawLongBits(d + 0.0);
+		return doubles[slot(bits)] == bits;
+	}
+
+	/**
+	 * @return true if the String is equal to one of the string constants.
+	 */
+	boolean contains(String s) {
+		return strings.contains(s);
+	}
+
+	/**
+	 * @return true if the list contains a NULL constant.
+	 */
+	boolean hasNull() {
+		return hasNull;
+	}
+
+	/**
+	 * @return The elements that are not constants (columns, expressions, parameters): they must be compared to the
+	 *         value at each evaluation.
+	 */
+	List<ZExp> getOthers() {
+		return others;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ZLikeMatcher: a compiled SQL LIKE pattern ("%" matches any sequence of characters, "_" matches one character).<br>
+ * Each pattern is compiled once into a specialized matcher: exact value, prefix ("ab%"), suffix ("%ab"), substring
+ * ("%ab%", searched with a skip table) or general pattern. Compiled matchers are immutable, and shared through a
+ * bounded cache (see compile()).
+ */
+public abstract class ZLikeMatcher {
+
+	private static final int CACHE_SIZE = 256;
+
+	@SuppressWarnings("serial")
+	private static final Map<String, ZLikeMatcher> CACHE = new LinkedHashMap<String, ZLikeMatcher>(64, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, ZLikeMatcher> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final String pattern;
+
+	ZLikeMatcher(String pattern) {
+		this.pattern = pattern;
+	}
+
+	/**
+	 * Get the matcher of a pattern (from the cache, or compiled if needed). This method is thread-safe.
+	 * 
+	 * @param pattern
+	 *            The LIKE pattern
+	 * @return The compiled pattern.
+	 */
+	public static ZLikeMatcher compile(String pattern) {
+		ZLikeMatcher m;
+		synchronized (CACHE) {
+			m = CACHE.get(pattern);
+		}
+		if (m == null) {
+			m = create(pattern);
+			synchronized (CACHE) {
+				CACHE.put(pattern, m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Compile a pattern, without using the cache.
+	 */
+	static ZLikeMatcher create(String pattern) {
+		if (pattern.indexOf('_') < 0) {
+			int n = pattern.length();
+			int start = 0;
+			while (start < n && pattern.charAt(start) == '%') {
+				start++;
+			}
+			int end = n;
+			while (end > start && pattern.charAt(end - 1) == '%') {
+				end--;
+			}
+			String lit = pattern.substring(start, end);
+			if (lit.indexOf('%') < 0) {
+				if (start == 0 && end == n) {
+					return new Exact(pattern);
+				} else if (lit.length() == 0) {
+					return new Any(pattern);
+				} else if (start == 0) {
+					return new Prefix(pattern, lit);
+				} else if (end == n) {
+					return new Suffix(pattern, lit);
+				} else {
+					return new Contains(pattern, lit);
+				}
+			}
+		}
+		return new General(pattern);
+	}
+
+	/**
+	 * @return true if the whole String matches the pattern.
+	 */
+	public abstract boolean matches(String s);
+
+	/**
+	 * @return The LIKE pattern.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	public String toString() {
+		return pattern;
+	}
+
+	static final class Exact extends ZLikeMatcher {
+		Exact(String pattern) {
+			super(pattern);
+		}
+
+		public boolean matches(String s) {
+			return getPattern().equals(s);
+		}
+	}
+
+	static final class Any extends ZLikeMatcher {
+		Any(String pattern) {
+			super(pattern);
+		}
+
+		public boolean matches(String s) {
+			return true;
+		}
+	}
+
+	static final class Prefix extends ZLikeMatcher {
+		final String prefix;
+
+		Prefix(String pattern, String prefix) {
+			super(pattern);
+			this.prefix = prefix;
+		}
+
+		public boolean matches(String s) {
+			return s.startsWith(prefix);
+		}
+	}
+
+	static final class Suffix extends ZLikeMatcher {
+		final String suffix;
+
+		Suffix(String pattern, String suffix) {
+			super(pattern);
+			this.suffix = suffix;
+		}
+
+		public boolean matches(String s) {
+			return s.endsWith(suffix);
+		}
+	}
+
+	/**
+	 * A substring search (Boyer-Moore-Horspool): the skip table is indexed by the ASCII characters, and all the other
+	 * characters share the smallest of their shifts.
+	 */
+	static final class Contains extends ZLikeMatcher {
+		final char[] lit;
+		final int[] skip = new int[128];
+		final int otherSkip;
+
+		Contains(String pattern, String lit) {
+			super(pattern);
+			this.lit = lit.toCharArray();
+			int m = this.lit.length;
+			Arrays.fill(skip, m);
+			int other = m;
+			for (int i = 0; i < m - 1; i++) {
+				char c = this.lit[i];
+				if (c < 128) {
+					skip[c] = m - 1 - i;
+				} else {
+					other = m - 1 - i;
+				}
+			}
+			otherSkip = other;
+		}
+
+		public boolean matches(String s) {
+			char[] p = lit;
+			int last = p.length - 1;
+			if (last == 0) {
+				return s.indexOf(p[0]) >= 0;
+			}
+			char end = p[last];
+			int n = s.length();
+			for (int i = last; i < n;) {
+				char c = s.charAt(i);
+				if (c == end) {
+					int j = last - 1;
+					int k = i - 1;
+					while (s.charAt(k) == p[j]) {
+						if (j == 0) {
+							return true;
+						}
+						j--;
+						k--;
+					}
+				}
+				i += (c < 128 ? skip[c] : otherSkip);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Any pattern: "%" are matched greedily, and the matching backtracks to the last "%" on failure (so the matching
+	 * time is at most proportional to the length of the String times the length of the pattern).
+	 */
+	static final class General extends ZLikeMatcher {
+		final char[] p;
+
+		General(String pattern) {
+			super(pattern);
+			this.p = pattern.toCharArray();
+		}
+
+		public boolean matches(String s) {
+			char[] p = this.p;
+			int n = s.length();
+			int i = 0;
+			int j = 0;
+			int star = -1;
+			int mark = 0;
+			while (i < n) {
+				if (j < p.length && p[j] != '%' && (p[j] == '_' || p[j] == s.charAt(i))) {
+					i++;
+					j++;
+				} else if (j < p.length && p[j] == '%') {
+					star = j++;
+					mark = i;
+				} else if (star >= 0) {
+					j = star + 1;
+					i = ++mark;
+				} else {
+					return false;
+				}
+			}
+			while (j < p.length && p[j] == '%') {
+				j++;
+			}
+			return j == p.length;
+		}
+	}
+}
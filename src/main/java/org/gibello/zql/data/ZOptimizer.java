@@ -0,0 +1,444 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.gibello.zql.ZConstant;
+import org.gibello.zql.ZExp;
+import org.gibello.zql.ZExpression;
+import org.gibello.zql.ZOperator;
+import org.gibello.zql.ZQuery;
+import org.gibello.zql.ZStatement;
+import org.gibello.zql.ZTransformer;
+import org.gibello.zql.ZVisitor;
+
+/**
+ * ZOptimizer: a logical rewrite of SQL expressions, run once before evaluating them on many tuples (see ZEval).<br>
+ * The rewritten expression has the same value as the original one for ZEval:
+ * <ul>
+ * <li>BETWEEN is replaced by two comparisons, IN lists of one element (not a sub-query) by a comparison (if the
+ * tested value can't be NULL: a NULL is unknown in an IN list, and an error in a comparison);</li>
+ * <li>arithmetic on numbers and comparisons of constants are computed (2 * 3600 becomes 7200, 1 = 1 becomes TRUE);
+ * </li>
+ * <li>nested AND and OR are flattened, and their duplicate (unless they call a function, that may not be
+ * deterministic), TRUE (in AND) or FALSE (in OR) operands removed;</li>
+ * <li>NOT is pushed down to the operands of AND and OR (De Morgan), and merged with the operators that have an exact
+ * negation (= and &lt;&gt;, LIKE, IN, IS NULL).</li>
+ * </ul>
+ * Comparisons like a &lt; b are not negated into a &gt;= b: they are both false if a value is not a number (NaN).<br>
+ * The optimizer has no state: it can be used by several threads.
+ */
+public class ZOptimizer extends ZTransformer {
+
+	/**
+	 * The TRUE predicate (1 = 1).
+	 */
+	public static final ZExpression TRUE = new ZExpression("=", number(1), number(1)).freeze();
+
+	/**
+	 * The FALSE predicate (1 = 0).
+	 */
+	public static final ZExpression FALSE = new ZExpression("=", number(1), number(0)).freeze();
+
+	private static final ZOptimizer INSTANCE = new ZOptimizer();
+
+	// Folded integers are exact below 2^53
+	private static final double MAX_EXACT = 9007199254740992.0;
+
+	/**
+	 * Optimize an expression.
+	 * 
+	 * @param e
+	 *            The expression (may be null)
+	 * @return The rewritten expression (e itself if nothing has changed).
+	 */
+	public static ZExp optimize(ZExp e) {
+		return INSTANCE.rewrite(e);
+	}
+
+	/**
+	 * Optimize the expressions of a statement.
+	 * 
+	 * @param st
+	 *            The statement (may be null)
+	 * @return The rewritten statement (st itself if nothing has changed).
+	 */
+	public static ZStatement optimize(ZStatement st) {
+		return INSTANCE.rewrite(st);
+	}
+
+	public ZExp transform(ZExpression e) {
+		if (e.getFunction() != null) {
+			return e;
+		}
+		switch (e.getOpcode()) {
+		case AND:
+			return and(e.getOperands(), e);
+		case OR:
+			return or(e.getOperands(), e);
+		case NOT:
+			return e.nbOperands() == 1 ? not(e.getOperand(0), e) : e;
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+		case GT:
+		case GE:
+			return comparison(e);
+		case BETWEEN:
+		case NOT_BETWEEN:
+			if (e.nbOperands() != 3) {
+				return e;
+			}
+			ZExp x = e.getOperand(0);
+			ZExp between = and(list(comparison(new ZExpression(">=", x, e.getOperand(1))),
+					comparison(new ZExpression("<=", x, e.getOperand(2)))), null);
+			return e.getOpcode() == ZOperator.BETWEEN ? between : not(between, null);
+		case IN:
+		case NOT_IN:
+			// Not with a sub-query: it may return several rows
+			if (e.nbOperands() == 2 && !isNull(e.getOperand(1)) && !(e.getOperand(1) instanceof ZQuery)
+					&& !canBeNull(e.getOperand(0))) {
+				return comparison(new ZExpression(e.getOpcode() == ZOperator.IN ? "=" : "<>", e.getOperand(0), e
+						.getOperand(1)));
+			}
+			return e;
+		case IS_NULL:
+		case IS_NOT_NULL:
+			if (e.nbOperands() == 1 && isValue(e.getOperand(0))) {
+				return isNull(e.getOperand(0)) == (e.getOpcode() == ZOperator.IS_NULL) ? TRUE : FALSE;
+			}
+			return e;
+		case PLUS:
+		case MINUS:
+		case TIMES:
+		case DIVIDE:
+		case POWER:
+			return arithmetic(e);
+		default:
+			return e;
+		}
+	}
+
+	/**
+	 * @return The conjunction of predicates, flattened and simplified (e itself if it is unchanged).
+	 */
+	private static ZExp and(List<ZExp> operands, ZExpression e) {
+		return junction(ZOperator.AND, operands, e);
+	}
+
+	private static ZExp or(List<ZExp> operands, ZExpression e) {
+		return junction(ZOperator.OR, operands, e);
+	}
+
+	private static ZExp junction(ZOperator op, List<ZExp> operands, ZExpression e) {
+		// AND: TRUE operands are removed, a FALSE operand makes it FALSE (and the contrary for OR)
+		ZExp neutral = (op == ZOperator.AND ? TRUE : FALSE);
+		ZExp absorbing = (op == ZOperator.AND ? FALSE : TRUE);
+		List<ZExp> l = new ArrayList<ZExp>(operands.size());
+		HashSet<ZExp> seen = new HashSet<ZExp>();
+		for (ZExp x : operands) {
+			List<ZExp> flat = (x instanceof ZExpression && ((ZExpression) x).getOpcode() == op
+					&& ((ZExpression) x).getFunction() == null ? ((ZExpression) x).getOperands() : list(x));
+			for (ZExp y : flat) {
+				if (absorbing.equals(y)) {
+					return absorbing;
+				}
+				// A function may not be deterministic: f(x) > 0.5 AND f(x) > 0.5 is kept
+				if (!neutral.equals(y) && (hasFunction(y) || seen.add(y))) {
+					l.add(y);
+				}
+			}
+		}
+		if (l.isEmpty()) {
+			return neutral;
+		}
+		if (l.size() == 1) {
+			return l.get(0);
+		}
+		if (e != null && l.equals(operands)) {
+			return e;
+		}
+		ZExpression r = new ZExpression(op == ZOperator.AND ? "AND" : "OR");
+		r.setOperands(l);
+		return r;
+	}
+
+	/**
+	 * @return The negation of a predicate, pushed down as far as possible (e, NOT p, if it is unchanged).
+	 */
+	private static ZExp not(ZExp p, ZExpression e) {
+		if (TRUE.equals(p)) {
+			return FALSE;
+		}
+		if (FALSE.equals(p)) {
+			return TRUE;
+		}
+		if (!(p instanceof ZExpression) || ((ZExpression) p).getFunction() != null) {
+			return e != null ? e : new ZExpression("NOT", p);
+		}
+		ZExpression x = (ZExpression) p;
+		String op = null;
+		switch (x.getOpcode()) {
+		case NOT:
+			if (x.nbOperands() == 1) {
+				return x.getOperand(0);
+			}
+			break;
+		case AND:
+		case OR:
+			List<ZExp> l = new ArrayList<ZExp>(x.nbOperands());
+			for (ZExp y : x.getOperands()) {
+				l.add(not(y, null));
+			}
+			return x.getOpcode() == ZOperator.AND ? or(l, null) : and(l, null);
+		case EQ:
+			op = "<>";
+			break;
+		case NE:
+			op = "#".equals(x.getOperator()) ? null : "=";
+			break;
+		case LIKE:
+			op = "NOT LIKE";
+			break;
+		case NOT_LIKE:
+			op = "LIKE";
+			break;
+		case IN:
+		case NOT_IN:
+			// Not exact if the list contains NULL: x NOT IN (1, NULL) is never true
+			op = (x.getOpcode() == ZOperator.IN ? "NOT IN" : "IN");
+			for (int i = 1; i < x.nbOperands(); i++) {
+				if (isNull(x.getOperand(i))) {
+					op = null;
+				}
+			}
+			break;
+		case BETWEEN:
+			op = "NOT BETWEEN";
+			break;
+		case NOT_BETWEEN:
+			op = "BETWEEN";
+			break;
+		case IS_NULL:
+			op = "IS NOT NULL";
+			break;
+		case IS_NOT_NULL:
+			op = "IS NULL";
+			break;
+		default:
+			break;
+		}
+		if (op == null) {
+			return e != null ? e : new ZExpression("NOT", p);
+		}
+		ZExpression r = new ZExpression(op);
+		r.setOperands(new ArrayList<ZExp>(x.getOperands()));
+		return r;
+	}
+
+	/**
+	 * @return The value of a comparison of two constants, or the comparison itself.
+	 */
+	private static ZExp comparison(ZExpression e) {
+		if (e.nbOperands() != 2 || "#".equals(e.getOperator())) {
+			return e;
+		}
+		ZExp a = e.getOperand(0);
+		ZExp b = e.getOperand(1);
+		double d;
+		if (isNumber(a) && isNumber(b)) {
+			d = value(a) - value(b);
+		} else if (isString(a) && isString(b)) {
+			// Strings are only compared for equality
+			if (e.getOpcode() != ZOperator.EQ && e.getOpcode() != ZOperator.NE) {
+				return e;
+			}
+			d = ((ZConstant) a).getValue().equals(((ZConstant) b).getValue()) ? 0 : -1;
+		} else {
+			return e;
+		}
+		boolean r;
+		switch (e.getOpcode()) {
+		case EQ:
+			r = d == 0;
+			break;
+		case NE:
+			r = d != 0;
+			break;
+		case LT:
+			r = d < 0;
+			break;
+		case LE:
+			r = d <= 0;
+			break;
+		case GT:
+			r = d > 0;
+			break;
+		default:
+			r = d >= 0;
+			break;
+		}
+		return r ? TRUE : FALSE;
+	}
+
+	/**
+	 * @return The value of an arithmetic expression of numbers, or the expression itself.
+	 */
+	private static ZExp arithmetic(ZExpression e) {
+		int n = e.nbOperands();
+		if (n == 0) {
+			return e;
+		}
+		for (ZExp x : e.getOperands()) {
+			if (!isNumber(x)) {
+				return e;
+			}
+		}
+		double v = value(e.getOperand(0));
+		boolean integers = isInteger(v);
+		if (n == 1) {
+			return e.getOpcode() == ZOperator.MINUS ? fold(e, -v) : e;
+		}
+		for (int i = 1; i < n; i++) {
+			double y = value(e.getOperand(i));
+			integers &= isInteger(y);
+			switch (e.getOpcode()) {
+			case PLUS:
+				v += y;
+				break;
+			case MINUS:
+				v -= y;
+				break;
+			case TIMES:
+				v *= y;
+				break;
+			case DIVIDE:
+				v /= y;
+				break;
+			default:
+				if (y < 0) {
+					integers = false;
+				}
+				v = Math.pow(v, y);
+				break;
+			}
+		}
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			return e;
+		}
+		// Integers are also evaluated with integer arithmetic (ZEval.evalLong()): only exact results are folded
+		if (integers && !isInteger(v)) {
+			return e;
+		}
+		return fold(e, v);
+	}
+
+	/**
+	 * @return The constant of a computed value, or the expression itself if the value is -0 (written as 0, it would
+	 *         lose its sign: 1 / -0 is negative).
+	 */
+	private static ZExp fold(ZExpression e, double v) {
+		return v == 0 && Double.doubleToRawLongBits(v) != 0 ? e : number(v);
+	}
+
+	private static boolean isInteger(double d) {
+		return d == Math.rint(d) && Math.abs(d) < MAX_EXACT;
+	}
+
+	private static ZConstant number(double d) {
+		String s = (isInteger(d) ? Long.toString((long) d) : BigDecimal.valueOf(d).toPlainString());
+		return new ZConstant(s, ZConstant.Type.NUMBER);
+	}
+
+	private static double value(ZExp e) {
+		return ZEval.parseNumber(((ZConstant) e).getValue());
+	}
+
+	private static boolean isNumber(ZExp e) {
+		return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.NUMBER;
+	}
+
+	private static boolean isString(ZExp e) {
+		return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.STRING;
+	}
+
+	private static boolean isNull(ZExp e) {
+		return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.Type.NULL;
+	}
+
+	/**
+	 * @return true if the value of an expression may be NULL without an error: placeholders, function calls and
+	 *         sub-queries (a NULL column or a NULL in arithmetic is an error for ZEval).
+	 */
+	private static boolean canBeNull(ZExp e) {
+		if (e instanceof ZConstant) {
+			ZConstant.Type t = ((ZConstant) e).getType();
+			return t == ZConstant.Type.NULL || t == ZConstant.Type.BIND;
+		}
+		if (e instanceof ZExpression) {
+			ZExpression x = (ZExpression) e;
+			switch (x.getOpcode()) {
+			case PLUS:
+			case MINUS:
+			case TIMES:
+			case DIVIDE:
+			case POWER:
+				return x.getFunction() != null;
+			default:
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the expression contains a function call (sub-queries included).
+	 */
+	private static boolean hasFunction(ZExp e) {
+		final boolean[] found = new boolean[1];
+		new ZVisitor() {
+			public boolean visit(ZExpression x) {
+				if (x.getFunction() != null) {
+					found[0] = true;
+				}
+				return !found[0];
+			}
+		}.walk(e);
+		return found[0];
+	}
+
+	/**
+	 * @return true if the expression is a NULL, number or string constant.
+	 */
+	private static boolean isValue(ZExp e) {
+		return isNull(e) || isNumber(e) || isString(e);
+	}
+
+	private static List<ZExp> list(ZExp... e) {
+		List<ZExp> l = new ArrayList<ZExp>(e.length);
+		for (ZExp x : e) {
+			l.add(x);
+		}
+		return l;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gibello.zql.ZBindings;
+import org.gibello.zql.ZExp;
+
+/**
+ * ZParallelFilter: selects the rows of a large list that satisfy a predicate, on several cores.<br>
+ * The list is split into chunks of consecutive rows, filtered in parallel by an executor (by default, a shared
+ * ForkJoinPool with one thread per core). The selected rows are returned in source order, or in the order the chunks
+ * are completed (which does not wait for the slowest chunk to merge the others).<br>
+ * A compiled predicate is shared by all the workers (see ZCompiledPredicate). An interpreted expression is evaluated
+ * by one ZEval per chunk, since an evaluator is not thread-safe.<br>
+ * If a predicate fails on a row, the remaining chunks are abandoned and the error is thrown (the first one in source
+ * order, if the rows are selected in order).
+ */
+public class ZParallelFilter {
+
+	private static final int DEFAULT_CHUNK = 16 * 1024;
+	// Rows between two checks of the stop flag
+	private static final int CHECK_INTERVAL = 1024;
+
+	private static ForkJoinPool defaultPool = null;
+
+	private final ExecutorService executor;
+	private final int chunkSize;
+
+	/**
+	 * Create a parallel filter that uses a shared pool with one thread per core.
+	 */
+	public ZParallelFilter() {
+		this(getDefaultPool(), DEFAULT_CHUNK);
+	}
+
+	/**
+	 * Create a parallel filter.
+	 * 
+	 * @param executor
+	 *            The executor on which chunks are filtered (a ForkJoinPool, or any other executor service)
+	 * @param chunkSize
+	 *            The number of consecutive rows filtered by one task
+	 */
+	public ZParallelFilter(ExecutorService executor, int chunkSize) {
+		if (executor == null || chunkSize <= 0) {
+			throw new IllegalArgumentException("ZParallelFilter: null executor or bad chunk size");
+		}
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+	}
+
+	private static synchronized ForkJoinPool getDefaultPool() {
+		if (defaultPool == null) {
+			defaultPool = new ForkJoinPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Select the rows that satisfy a compiled predicate.
+	 * 
+	 * @param rows
+	 *            The rows (a list with fast random access, not modified during the selection)
+	 * @param p
+	 *            The predicate, compiled for the schema of the rows
+	 * @param ordered
+	 *            true to return the rows in source order, false to return them in any order
+	 * @return The selected rows.
+	 */
+	public <T extends ZRow> List<T> select(final List<T> rows, final ZCompiledPredicate p, boolean ordered)
+			throws SQLException {
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		List<Chunk<T>> chunks = new ArrayList<Chunk<T>>();
+		for (int from = 0; from < rows.size(); from += chunkSize) {
+			chunks.add(new Chunk<T>(rows, from, Math.min(rows.size(), from + chunkSize), stop) {
+				boolean test(T row) throws SQLException {
+					return p.test(row);
+				}
+			});
+		}
+		return run(chunks, stop, ordered);
+	}
+
+	/**
+	 * Select the tuples that satisfy an expression, evaluated by the interpreter (the expression is first rewritten
+	 * by ZOptimizer).
+	 * 
+	 * @param rows
+	 *            The tuples (a list with fast random access, not modified during the selection)
+	 * @param exp
+	 *            The boolean expression
+	 * @param bindings
+	 *            The values of the placeholders of the expression (may be null), read by all the workers
+	 * @param ordered
+	 *            true to return the rows in source order, false to return them in any order
+	 * @return The selected tuples.
+	 */
+	public <T extends ZTuple> List<T> select(final List<T> rows, ZExp exp, final ZBindings bindings, boolean ordered)
+			throws SQLException {
+		final ZExp e = ZOptimizer.optimize(exp);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		List<Chunk<T>> chunks = new ArrayList<Chunk<T>>();
+		for (int from = 0; from < rows.size(); from += chunkSize) {
+			chunks.add(new Chunk<T>(rows, from, Math.min(rows.size(), from + chunkSize), stop) {
+				private final ZEval eval = new ZEval(bindings);
+
+				boolean test(T row) throws SQLException {
+					return eval.eval(row, e);
+				}
+			});
+		}
+		return run(chunks, stop, ordered);
+	}
+
+	private <T> List<T> run(List<Chunk<T>> chunks, AtomicBoolean stop, boolean ordered) throws SQLException {
+		List<T> res = new ArrayList<T>();
+		if (chunks.size() == 1) {
+			return chunks.get(0).call();
+		}
+		try {
+			if (ordered) {
+				List<Future<List<T>>> done = executor.invokeAll(chunks);
+				for (Future<List<T>> f : done) {
+					res.addAll(get(f, stop));
+				}
+			} else {
+				CompletionService<List<T>> cs = new ExecutorCompletionService<List<T>>(executor);
+				for (Chunk<T> c : chunks) {
+					cs.submit(c);
+				}
+				for (int i = 0; i < chunks.size(); i++) {
+					res.addAll(get(cs.take(), stop));
+				}
+			}
+		} catch (InterruptedException e) {
+			stop.set(true);
+			Thread.currentThread().interrupt();
+			throw new SQLException("ZParallelFilter: interrupted");
+		}
+		return res;
+	}
+
+	/**
+	 * Get the rows selected by a chunk, or throw its error.
+	 */
+	private static <T> List<T> get(Future<List<T>> f, AtomicBoolean stop) throws SQLException, InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			stop.set(true);
+			Throwable t = e.getCause();
+			// A ForkJoinPool may wrap the exceptions of a Callable in RuntimeExceptions
+			for (Throwable c = t; c != null; c = c.getCause()) {
+				if (c instanceof SQLException) {
+					throw (SQLException) c;
+				}
+			}
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw new SQLException("ZParallelFilter: " + t, t);
+		}
+	}
+
+	/**
+	 * Filters a range of rows.
+	 */
+	private abstract static class Chunk<T> implements Callable<List<T>> {
+		final List<T> rows;
+		final int from;
+		final int to;
+		// Set when a chunk fails
+		final AtomicBoolean stop;
+
+		Chunk(List<T> rows, int from, int to, AtomicBoolean stop) {
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+			this.stop = stop;
+		}
+
+		abstract boolean test(T row) throws SQLException;
+
+		public List<T> call() throws SQLException {
+			List<T> res = new ArrayList<T>();
+			for (int i = from; i < to; i++) {
+				if ((i - from) % CHECK_INTERVAL == 0 && stop.get()) {
+					break;
+				}
+				T row = rows.get(i);
+				boolean ok;
+				try {
+					ok = test(row);
+				} catch (SQLException e) {
+					stop.set(true);
+					throw e;
+				} catch (RuntimeException e) {
+					stop.set(true);
+					throw e;
+				}
+				if (ok) {
+					res.add(row);
+				}
+			}
+			return res;
+		}
+	}
+}
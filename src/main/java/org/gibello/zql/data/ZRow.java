@@ -0,0 +1,33 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+/**
+ * ZRow: a row of values, accessed by position (see ZSchema). ZTuple is a row.
+ */
+public interface ZRow {
+
+	/**
+	 * Return the value of the attribute corresponding to the index
+	 * 
+	 * @param index
+	 *            The attribute index (its slot in the schema)
+	 * @return The value (null if index is out of bound)
+	 */
+	Object getAttValue(int index);
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * ZSchema: the column names of the rows on which a compiled expression is evaluated (see ZEval.compile()). Column
+ * names are resolved to slot indexes once, when the expression is compiled.
+ */
+public class ZSchema {
+
+	private final List<String> names;
+	private final Map<String, Integer> slots;
+
+	/**
+	 * Create a schema, given its column names.
+	 * 
+	 * @param colnames
+	 *            Column names separated by commas (,), like in ZTuple(String).
+	 */
+	public ZSchema(String colnames) {
+		this(split(colnames));
+	}
+
+	/**
+	 * Create a schema, given its column names.
+	 * 
+	 * @param colnames
+	 *            The column names, in slot order.
+	 */
+	public ZSchema(List<String> colnames) {
+		names = Collections.unmodifiableList(new ArrayList<String>(colnames));
+		slots = new HashMap<String, Integer>();
+		for (int i = 0; i < names.size(); i++) {
+			if (!slots.containsKey(names.get(i))) {
+				slots.put(names.get(i), Integer.valueOf(i));
+			}
+		}
+	}
+
+	/**
+	 * @return The schema of a tuple (its attribute names).
+	 */
+	public static ZSchema of(ZTuple tuple) {
+		List<String> l = new ArrayList<String>();
+		for (int i = 0; i < tuple.getNumAtt(); i++) {
+			l.add(tuple.getAttName(i));
+		}
+		return new ZSchema(l);
+	}
+
+	private static List<String> split(String colnames) {
+		List<String> l = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(colnames, ",");
+		while (st.hasMoreTokens()) {
+			l.add(st.nextToken().trim());
+		}
+		return l;
+	}
+
+	/**
+	 * @return The slot of a column, -1 if there's no such column.
+	 */
+	public int indexOf(String name) {
+		Integer i = (name == null ? null : slots.get(name));
+		return i == null ? -1 : i.intValue();
+	}
+
+	/**
+	 * @return The name of the column in a slot.
+	 */
+	public String getName(int index) {
+		return names.get(index);
+	}
+
+	/**
+	 * @return The column names, in slot order.
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return The number of columns.
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	public String toString() {
+		return names.toString();
+	}
+}
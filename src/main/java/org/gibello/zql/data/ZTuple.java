@@ -25,7 +25,7 @@ import java.util.StringTokenizer;
 
 import static org.gibello.zql.ZUtils.isDouble;
 
-public class ZTuple {
+public class ZTuple implements ZRow {
 
 	/**
 	 * the names of the attributes
@@ -0,0 +1,725 @@
+/*
+ * This file is part of Zql.
+ *
+ * Zql is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zql is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Zql.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.gibello.zql.data;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * ZVectorizer: turns compiled trees (see ZCompiler) into filters and vectors that work on a ZColumnBatch.<br>
+ * AND, OR and NOT narrow the selection vector in place; comparisons of numeric columns and arithmetic run in tight
+ * loops over primitive arrays. The other nodes are evaluated row by row with the interpreter, except when they only use
+ * one string column: they are then evaluated once per dictionary entry.<br>
+ * Null values follow SQL: a comparison with a null is unknown, and only the rows for which the predicate is true are
+ * selected (NOT is pushed down to the comparisons, so that NOT of an unknown is still unknown).
+ */
+final class ZVectorizer {
+
+	private ZVectorizer() {
+	}
+
+	// -------------------------------------------------------------------------
+	// Filters
+
+	abstract static class Filter {
+		/**
+		 * Keep the selected rows for which the predicate is true (or false, if negate).
+		 * 
+		 * @return The new number of selected rows.
+		 */
+		abstract int filter(ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException;
+	}
+
+	static Filter filter(ZCompiledPredicate p) {
+		if (p instanceof ZCompiler.Const) {
+			return new ConstFilter(((ZCompiler.Const) p).value);
+		}
+		if (p instanceof ZCompiler.And) {
+			return new AndFilter(filters(((ZCompiler.And) p).p));
+		}
+		if (p instanceof ZCompiler.Or) {
+			return new OrFilter(filters(((ZCompiler.Or) p).p));
+		}
+		if (p instanceof ZCompiler.Not) {
+			return new NotFilter(filter(((ZCompiler.Not) p).p));
+		}
+		if (p instanceof ZCompiler.Comparison) {
+			ZCompiler.Comparison c = (ZCompiler.Comparison) p;
+			Vector a = vector(c.a);
+			Vector b = vector(c.b);
+			if (a != null && b != null) {
+				return new CompareFilter(op(c), a, b, new RowFilter(p));
+			}
+		}
+		if (p instanceof ZCompiler.Between) {
+			ZCompiler.Between c = (ZCompiler.Between) p;
+			Vector a = vector(c.a);
+			Vector low = vector(c.low);
+			Vector high = vector(c.high);
+			if (a != null && low != null && high != null) {
+				RowFilter row = new RowFilter(p);
+				return new AndFilter(new Filter[] { new CompareFilter(GE, a, low, row),
+						new CompareFilter(LE, a, high, row) });
+			}
+		}
+		if (p instanceof ZCompiler.In && ((ZCompiler.In) p).list.length == 0) {
+			Vector a = vector(((ZCompiler.In) p).a);
+			if (a != null) {
+				return new InFilter((ZCompiler.In) p, a, new RowFilter(p));
+			}
+		}
+		return new RowFilter(p);
+	}
+
+	private static Filter[] filters(ZCompiledPredicate[] p) {
+		Filter[] f = new Filter[p.length];
+		for (int i = 0; i < p.length; i++) {
+			f[i] = filter(p[i]);
+		}
+		return f;
+	}
+
+	static final class ConstFilter extends Filter {
+		final boolean value;
+
+		ConstFilter(boolean value) {
+			this.value = value;
+		}
+
+		int filter(ZColumnBatch b, int[] sel, int n, boolean negate) {
+			return value != negate ? n : 0;
+		}
+	}
+
+	static final class NotFilter extends Filter {
+		final Filter f;
+
+		NotFilter(Filter f) {
+			this.f = f;
+		}
+
+		int filter(ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+			return f.filter(b, sel, n, !negate);
+		}
+	}
+
+	static final class AndFilter extends Filter {
+		final Filter[] f;
+
+		AndFilter(Filter[] f) {
+			this.f = f;
+		}
+
+		int filter(ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+			return negate ? or(f, b, sel, n, true) : and(f, b, sel, n, false);
+		}
+	}
+
+	static final class OrFilter extends Filter {
+		final Filter[] f;
+
+		OrFilter(Filter[] f) {
+			this.f = f;
+		}
+
+		int filter(ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+			return negate ? and(f, b, sel, n, true) : or(f, b, sel, n, false);
+		}
+	}
+
+	private static int and(Filter[] f, ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+		for (int i = 0; i < f.length && n > 0; i++) {
+			n = f[i].filter(b, sel, n, negate);
+		}
+		return n;
+	}
+
+	/**
+	 * Each operand is evaluated on the rows that no previous operand has selected.
+	 */
+	private static int or(Filter[] f, ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+		int[] rest = Arrays.copyOf(sel, n);
+		int[] tmp = new int[n];
+		long[] chosen = new long[(b.size() + 63) >>> 6];
+		int rn = n;
+		for (int j = 0; j < f.length && rn > 0; j++) {
+			System.arraycopy(rest, 0, tmp, 0, rn);
+			int k = f[j].filter(b, tmp, rn, negate);
+			for (int i = 0; i < k; i++) {
+				chosen[tmp[i] >>> 6] |= 1L << tmp[i];
+			}
+			int m = 0;
+			for (int i = 0; i < rn; i++) {
+				if ((chosen[rest[i] >>> 6] & (1L << rest[i])) == 0) {
+					rest[m++] = rest[i];
+				}
+			}
+			rn = m;
+		}
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if ((chosen[sel[i] >>> 6] & (1L << sel[i])) != 0) {
+				sel[m++] = sel[i];
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Remove the rows that have a null value in one of the columns.
+	 */
+	static int removeNulls(ZColumnBatch b, int[] slots, int[] sel, int n) {
+		for (int s : slots) {
+			long[] bits = b.getNulls(s);
+			if (bits == null) {
+				continue;
+			}
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				int r = sel[i];
+				if ((bits[r >>> 6] & (1L << r)) == 0) {
+					sel[m++] = r;
+				}
+			}
+			n = m;
+		}
+		return n;
+	}
+
+	static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+	private static int op(ZCompiler.Comparison c) {
+		if (c instanceof ZCompiler.Eq) {
+			return EQ;
+		} else if (c instanceof ZCompiler.Ne) {
+			return NE;
+		} else if (c instanceof ZCompiler.Lt) {
+			return LT;
+		} else if (c instanceof ZCompiler.Le) {
+			return LE;
+		} else if (c instanceof ZCompiler.Gt) {
+			return GT;
+		}
+		return GE;
+	}
+
+	/**
+	 * A comparison of numeric vectors: the difference of the values is compared to 0, like in ZEval.compare(). If a
+	 * column of the batch is not numeric, the rows are evaluated by the interpreter.
+	 */
+	static final class CompareFilter extends Filter {
+		final int op;
+		final Vector a, b;
+		final int[] slots;
+		final RowFilter row;
+
+		CompareFilter(int op, Vector a, Vector b, RowFilter row) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			BitSet s = new BitSet();
+			a.slots(s);
+			b.slots(s);
+			this.slots = toArray(s);
+			this.row = row;
+		}
+
+		int filter(ZColumnBatch batch, int[] sel, int n, boolean negate) throws SQLException {
+			if (!a.isNumeric(batch) || !b.isNumeric(batch)) {
+				return row.filter(batch, sel, n, negate);
+			}
+			n = removeNulls(batch, slots, sel, n);
+			double[] x = new double[n];
+			a.eval(batch, sel, n, x);
+			double c = 0;
+			double[] y = null;
+			if (b instanceof ConstVector) {
+				c = ((ConstVector) b).value;
+			} else {
+				y = new double[n];
+				b.eval(batch, sel, n, y);
+			}
+			int k = 0;
+			switch (op) {
+			case EQ:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) == 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+				break;
+			case NE:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) != 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+				break;
+			case LT:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) < 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+				break;
+			case LE:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) <= 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+				break;
+			case GT:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) > 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+				break;
+			default:
+				for (int i = 0; i < n; i++) {
+					if ((x[i] - (y == null ? c : y[i]) >= 0) != negate) {
+						sel[k++] = sel[i];
+					}
+				}
+			}
+			return k;
+		}
+	}
+
+	/**
+	 * A numeric value looked up in the constants of an IN list. If a column of the batch is not numeric, the rows are
+	 * evaluated by the interpreter.
+	 */
+	static final class InFilter extends Filter {
+		final ZCompiler.In in;
+		final Vector a;
+		final int[] slots;
+		final RowFilter row;
+
+		InFilter(ZCompiler.In in, Vector a, RowFilter row) {
+			this.in = in;
+			this.a = a;
+			BitSet s = new BitSet();
+			a.slots(s);
+			this.slots = toArray(s);
+			this.row = row;
+		}
+
+		int filter(ZColumnBatch batch, int[] sel, int n, boolean negate) throws SQLException {
+			if (!a.isNumeric(batch)) {
+				return row.filter(batch, sel, n, negate);
+			}
+			n = removeNulls(batch, slots, sel, n);
+			double[] x = new double[n];
+			a.eval(batch, sel, n, x);
+			// A value that is not found is unknown if the list contains NULL: it is never selected
+			boolean keepFound = in.not == negate;
+			boolean keepOther = !in.set.hasNull() && in.not != negate;
+			ZInList set = in.set;
+			int k = 0;
+			for (int i = 0; i < n; i++) {
+				if (set.contains(x[i]) ? keepFound : keepOther) {
+					sel[k++] = sel[i];
+				}
+			}
+			return k;
+		}
+	}
+
+	/**
+	 * A predicate evaluated by the interpreter, row by row (or once per dictionary entry, if it only uses one string
+	 * column). Rows that have a null in a column used by the predicate are never selected.
+	 */
+	static final class RowFilter extends Filter {
+		final ZCompiledPredicate p;
+		final int[] slots;
+		// The results for the last dictionary (racy, but immutable)
+		private DictionaryResults last;
+
+		RowFilter(ZCompiledPredicate p) {
+			this.p = p;
+			BitSet s = new BitSet();
+			slots(p, s);
+			this.slots = toArray(s);
+		}
+
+		int filter(ZColumnBatch b, int[] sel, int n, boolean negate) throws SQLException {
+			n = removeNulls(b, slots, sel, n);
+			for (int s : slots) {
+				if (b.getType(s) == null) {
+					return 0; // Not set: null
+				}
+			}
+			if (slots.length == 1 && b.getType(slots[0]) == ZColumnBatch.Type.STRING) {
+				return filterCodes(b, slots[0], sel, n, negate);
+			}
+			ZColumnBatch.Cursor cur = new ZColumnBatch.Cursor(b);
+			int k = 0;
+			for (int i = 0; i < n; i++) {
+				cur.row = sel[i];
+				if (p.test(cur) != negate) {
+					sel[k++] = sel[i];
+				}
+			}
+			return k;
+		}
+
+		private int filterCodes(ZColumnBatch b, int slot, int[] sel, int n, boolean negate) throws SQLException {
+			String[] dict = b.getDictionary(slot);
+			DictionaryResults r = last;
+			if (r == null || r.dictionary != dict) {
+				last = r = new DictionaryResults(p, slot, dict);
+			}
+			int[] codes = b.getCodes(slot);
+			byte[] res = r.results;
+			byte keep = (byte) (negate ? 0 : 1);
+			int k = 0;
+			for (int i = 0; i < n; i++) {
+				byte v = res[codes[sel[i]]];
+				if (v == keep) {
+					sel[k++] = sel[i];
+				} else if (v == DictionaryResults.ERROR) {
+					throw r.errors[codes[sel[i]]];
+				}
+			}
+			return k;
+		}
+	}
+
+	/**
+	 * The value of a predicate for each entry of a dictionary.
+	 */
+	static final class DictionaryResults {
+		static final byte ERROR = 2;
+
+		final String[] dictionary;
+		final byte[] results;
+		final SQLException[] errors;
+
+		DictionaryResults(ZCompiledPredicate p, final int slot, String[] dictionary) {
+			this.dictionary = dictionary;
+			results = new byte[dictionary.length];
+			SQLException[] err = null;
+			final String[] value = new String[1];
+			ZRow row = new ZRow() {
+				public Object getAttValue(int index) {
+					return index == slot ? value[0] : null;
+				}
+			};
+			for (int i = 0; i < dictionary.length; i++) {
+				value[0] = dictionary[i];
+				try {
+					results[i] = (byte) (p.test(row) ? 1 : 0);
+				} catch (SQLException e) {
+					// Only reported if the entry is used by a selected row
+					if (err == null) {
+						err = new SQLException[dictionary.length];
+					}
+					err[i] = e;
+					results[i] = ERROR;
+				}
+			}
+			errors = err;
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Vectors
+
+	/**
+	 * A numeric expression, evaluated on the selected rows of a batch.
+	 */
+	abstract static class Vector {
+		/**
+		 * @return true if the columns used by the vector are numeric in this batch.
+		 */
+		abstract boolean isNumeric(ZColumnBatch b);
+
+		/**
+		 * Compute the values of the selected rows (out[i] is the value of row sel[i]).
+		 */
+		abstract void eval(ZColumnBatch b, int[] sel, int n, double[] out) throws SQLException;
+
+		/**
+		 * Add the slots of the columns used by the vector.
+		 */
+		abstract void slots(BitSet s);
+	}
+
+	/**
+	 * @return The vector of an expression, or null if it is not a numeric expression of columns and constants.
+	 */
+	static Vector vector(ZCompiledExpression e) {
+		if (e instanceof ZCompiler.Numeric) {
+			return new ConstVector(((ZCompiler.Numeric) e).value);
+		}
+		if (e instanceof ZCompiler.Column) {
+			return new ColumnVector(((ZCompiler.Column) e).slot);
+		}
+		if (e instanceof ZCompiler.Neg) {
+			Vector a = vector(((ZCompiler.Neg) e).a);
+			return a == null ? null : new ArithVector('_', new Vector[] { a });
+		}
+		char op;
+		ZCompiledExpression[] v;
+		if (e instanceof ZCompiler.Add) {
+			op = '+';
+			v = ((ZCompiler.Add) e).v;
+		} else if (e instanceof ZCompiler.Mul) {
+			op = '*';
+			v = ((ZCompiler.Mul) e).v;
+		} else if (e instanceof ZCompiler.Sub) {
+			op = '-';
+			v = prepend(((ZCompiler.Sub) e).a, ((ZCompiler.Sub) e).v);
+		} else if (e instanceof ZCompiler.Div) {
+			op = '/';
+			v = prepend(((ZCompiler.Div) e).a, ((ZCompiler.Div) e).v);
+		} else if (e instanceof ZCompiler.Pow) {
+			op = '^';
+			v = prepend(((ZCompiler.Pow) e).a, ((ZCompiler.Pow) e).v);
+		} else {
+			return null;
+		}
+		Vector[] operands = new Vector[v.length];
+		for (int i = 0; i < v.length; i++) {
+			if ((operands[i] = vector(v[i])) == null) {
+				return null;
+			}
+		}
+		return new ArithVector(op, operands);
+	}
+
+	private static ZCompiledExpression[] prepend(ZCompiledExpression a, ZCompiledExpression[] v) {
+		ZCompiledExpression[] r = new ZCompiledExpression[v.length + 1];
+		r[0] = a;
+		System.arraycopy(v, 0, r, 1, v.length);
+		return r;
+	}
+
+	static final class ConstVector extends Vector {
+		final double value;
+
+		ConstVector(double value) {
+			this.value = value;
+		}
+
+		boolean isNumeric(ZColumnBatch b) {
+			return true;
+		}
+
+		void eval(ZColumnBatch b, int[] sel, int n, double[] out) {
+			Arrays.fill(out, 0, n, value);
+		}
+
+		void slots(BitSet s) {
+		}
+	}
+
+	static final class ColumnVector extends Vector {
+		final int slot;
+
+		ColumnVector(int slot) {
+			this.slot = slot;
+		}
+
+		boolean isNumeric(ZColumnBatch b) {
+			return b.getType(slot) == ZColumnBatch.Type.DOUBLE || b.getType(slot) == ZColumnBatch.Type.LONG;
+		}
+
+		void eval(ZColumnBatch b, int[] sel, int n, double[] out) {
+			if (b.getType(slot) == ZColumnBatch.Type.DOUBLE) {
+				double[] v = b.getDoubles(slot);
+				for (int i = 0; i < n; i++) {
+					out[i] = v[sel[i]];
+				}
+			} else {
+				long[] v = b.getLongs(slot);
+				for (int i = 0; i < n; i++) {
+					out[i] = v[sel[i]];
+				}
+			}
+		}
+
+		void slots(BitSet s) {
+			s.set(slot);
+		}
+	}
+
+	static final class ArithVector extends Vector {
+		final char op;
+		final Vector[] v;
+
+		ArithVector(char op, Vector[] v) {
+			this.op = op;
+			this.v = v;
+		}
+
+		boolean isNumeric(ZColumnBatch b) {
+			for (Vector x : v) {
+				if (!x.isNumeric(b)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void eval(ZColumnBatch b, int[] sel, int n, double[] out) throws SQLException {
+			v[0].eval(b, sel, n, out);
+			if (op == '_') {
+				for (int i = 0; i < n; i++) {
+					out[i] = -out[i];
+				}
+				return;
+			}
+			double[] tmp = null;
+			for (int j = 1; j < v.length; j++) {
+				double c;
+				if (v[j] instanceof ConstVector) {
+					c = ((ConstVector) v[j]).value;
+					switch (op) {
+					case '+':
+						for (int i = 0; i < n; i++) {
+							out[i] += c;
+						}
+						break;
+					case '-':
+						for (int i = 0; i < n; i++) {
+							out[i] -= c;
+						}
+						break;
+					case '*':
+						for (int i = 0; i < n; i++) {
+							out[i] *= c;
+						}
+						break;
+					case '/':
+						for (int i = 0; i < n; i++) {
+							out[i] /= c;
+						}
+						break;
+					default:
+						for (int i = 0; i < n; i++) {
+							out[i] = Math.pow(out[i], c);
+						}
+					}
+					continue;
+				}
+				if (tmp == null) {
+					tmp = new double[n];
+				}
+				v[j].eval(b, sel, n, tmp);
+				switch (op) {
+				case '+':
+					for (int i = 0; i < n; i++) {
+						out[i] += tmp[i];
+					}
+					break;
+				case '-':
+					for (int i = 0; i < n; i++) {
+						out[i] -= tmp[i];
+					}
+					break;
+				case '*':
+					for (int i = 0; i < n; i++) {
+						out[i] *= tmp[i];
+					}
+					break;
+				case '/':
+					for (int i = 0; i < n; i++) {
+						out[i] /= tmp[i];
+					}
+					break;
+				default:
+					for (int i = 0; i < n; i++) {
+						out[i] = Math.pow(out[i], tmp[i]);
+					}
+				}
+			}
+		}
+
+		void slots(BitSet s) {
+			for (Vector x : v) {
+				x.slots(s);
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+
+	static int[] toArray(BitSet s) {
+		int[] a = new int[s.cardinality()];
+		int k = 0;
+		for (int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i + 1)) {
+			a[k++] = i;
+		}
+		return a;
+	}
+
+	/**
+	 * Add the slots of the columns used by a node of a compiled tree.
+	 */
+	static void slots(Object node, BitSet s) {
+		if (node instanceof ZCompiler.Column) {
+			s.set(((ZCompiler.Column) node).slot);
+		} else if (node instanceof ZCompiler.And) {
+			slots(((ZCompiler.And) node).p, s);
+		} else if (node instanceof ZCompiler.Or) {
+			slots(((ZCompiler.Or) node).p, s);
+		} else if (node instanceof ZCompiler.Not) {
+			slots(((ZCompiler.Not) node).p, s);
+		} else if (node instanceof ZCompiler.Comparison) {
+			slots(((ZCompiler.Comparison) node).a, s);
+			slots(((ZCompiler.Comparison) node).b, s);
+		} else if (node instanceof ZCompiler.Between) {
+			ZCompiler.Between b = (ZCompiler.Between) node;
+			slots(new Object[] { b.a, b.low, b.high }, s);
+		} else if (node instanceof ZCompiler.Like) {
+			slots(new Object[] { ((ZCompiler.Like) node).a, ((ZCompiler.Like) node).pattern }, s);
+		} else if (node instanceof ZCompiler.In) {
+			slots(((ZCompiler.In) node).a, s);
+			slots(((ZCompiler.In) node).list, s);
+		} else if (node instanceof ZCompiler.IsNull) {
+			slots(((ZCompiler.IsNull) node).a, s);
+		} else if (node instanceof ZCompiler.Call) {
+			slots(((ZCompiler.Call) node).args, s);
+		} else if (node instanceof ZCompiler.Neg) {
+			slots(((ZCompiler.Neg) node).a, s);
+		} else if (node instanceof ZCompiler.Add) {
+			slots(((ZCompiler.Add) node).v, s);
+		} else if (node instanceof ZCompiler.Mul) {
+			slots(((ZCompiler.Mul) node).v, s);
+		} else if (node instanceof ZCompiler.Sub) {
+			slots(((ZCompiler.Sub) node).a, s);
+			slots(((ZCompiler.Sub) node).v, s);
+		} else if (node instanceof ZCompiler.Div) {
+			slots(((ZCompiler.Div) node).a, s);
+			slots(((ZCompiler.Div) node).v, s);
+		} else if (node instanceof ZCompiler.Pow) {
+			slots(((ZCompiler.Pow) node).a, s);
+			slots(((ZCompiler.Pow) node).v, s);
+		}
+	}
+
+	private static void slots(Object[] nodes, BitSet s) {
+		for (Object o : nodes) {
+			slots(o, s);
+		}
+	}
+}